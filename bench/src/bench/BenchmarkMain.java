@@ -0,0 +1,28 @@
+package bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.BenchmarkMain runs the benchmarks and writes the results as JMH JSON, to compare releases:
+ * {@code bench.BenchmarkMain [benchmark regex] [result file]}, by default all benchmarks into jmh-result.json.
+ * Every benchmark runs in a forked JVM with -Dchat.store.fsync=false.
+ * <p>
+ * version 18.10.2026
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "bench\\..*Benchmark")
+                .resultFormat(ResultFormatType.JSON)
+                .result(args.length > 1 ? args[1] : "jmh-result.json")
+                .jvmArgsAppend("-Dchat.store.fsync=false")
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,111 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import supplementary.BinaryCodec;
+import supplementary.CompressedCodec;
+import supplementary.Conversation;
+import supplementary.FrameCodec;
+import supplementary.Handshake;
+import supplementary.Message;
+import supplementary.Protocol;
+import supplementary.SerialCodec;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.CodecBenchmark encodes and decodes the frames sent most: a chat MESSAGE, the contact list of
+ * conversations sent at login and a page of history, with every codec a client can negotiate.
+ * <p>
+ * version 18.10.2026
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"serial", "binary", "binary+deflate"})
+    public String codec;
+    //conversations in the contact list
+    @Param({"50"})
+    public int conversations;
+
+    private FrameCodec frameCodec;
+    private Message message;
+    private HashMap<Integer, Conversation> contacts;
+    private ArrayList<String> page;
+    private byte[] messageBytes;
+    private byte[] contactsBytes;
+    private byte[] pageBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        switch (codec) {
+            case "serial":
+                frameCodec = new SerialCodec();
+                break;
+            case "binary":
+                frameCodec = new BinaryCodec();
+                break;
+            default:
+                frameCodec = CompressedCodec.wrap(new BinaryCodec(), Handshake.FEATURE_DEFLATE | Handshake.FEATURE_DICTIONARY);
+        }
+        message = new Message(Protocol.MESSAGE, new String[]{"alice", "1042", "Can you have a look at the report before the meeting?"});
+        contacts = new HashMap<>();
+        for (int i = 0; i < conversations; i++) {
+            ArrayList<String> members = new ArrayList<>();
+            for (int m = 0; m < 2 + i % 8; m++) members.add("user" + (i * 7 + m) % 500);
+            contacts.put(1000 + i, new Conversation(i % 3 == 0 ? "project " + i : "private", members));
+        }
+        page = new ArrayList<>();
+        for (int i = 0; i < 50; i++) page.add("user" + i % 9 + ": message number " + i + " about the release, see you at the meeting");
+        messageBytes = frameCodec.encode(message);
+        contactsBytes = frameCodec.encode(contacts);
+        pageBytes = frameCodec.encode(page);
+    }
+
+    @Benchmark
+    public byte[] encodeMessage() throws Exception {
+        return frameCodec.encode(message);
+    }
+
+    @Benchmark
+    public Object decodeMessage() throws Exception {
+        return frameCodec.decode(messageBytes, 0, messageBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeConversations() throws Exception {
+        return frameCodec.encode(contacts);
+    }
+
+    @Benchmark
+    public Object decodeConversations() throws Exception {
+        return frameCodec.decode(contactsBytes, 0, contactsBytes.length);
+    }
+
+    @Benchmark
+    public byte[] encodeHistoryPage() throws Exception {
+        return frameCodec.encode(page);
+    }
+
+    @Benchmark
+    public Object decodeHistoryPage() throws Exception {
+        return frameCodec.decode(pageBytes, 0, pageBytes.length);
+    }
+}
@@ -0,0 +1,79 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import supplementary.Message;
+import supplementary.Protocol;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.DispatchBenchmark hands decoded commands to supplementary.Protocol.processInput of a logged in session,
+ * everything the server does for a request after reading it: MESSAGE to a conversation of two, HISTORY of that
+ * conversation (the newest page, usually from memory) and SEARCH over all of the user's conversations.
+ * <p>
+ * version 18.10.2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+    @Param({"MESSAGE", "HISTORY", "SEARCH"})
+    public String command;
+
+    private ServerFixture fixture;
+    private Protocol protocol;
+    private Message request;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new ServerFixture();
+        fixture.addUser("alice");
+        fixture.addUser("bob");
+        int group = fixture.addGroup("private", Arrays.asList("alice", "bob"));
+        FakeSession alice = fixture.login("alice");
+        fixture.login("bob");
+        protocol = new Protocol(alice);
+        String groupId = String.valueOf(group);
+        //some history to page and search through
+        for (int i = 0; i < 500; i++)
+            protocol.processInput(new Message(Protocol.MESSAGE, new String[]{"alice", groupId, "status report number " + i}));
+        switch (command) {
+            case "MESSAGE":
+                request = new Message(Protocol.MESSAGE, new String[]{"alice", groupId, "Can you have a look at the report?"});
+                break;
+            case "HISTORY":
+                request = new Message(Protocol.HISTORY, new String[]{groupId, "50"});
+                break;
+            default:
+                request = new Message(Protocol.SEARCH, new String[]{"status report", "", "20"});
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void processInput() throws Exception {
+        protocol.processInput(request);
+    }
+}
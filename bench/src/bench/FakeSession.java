@@ -0,0 +1,64 @@
+package bench;
+
+import server.ClientSession;
+import server.OutboundQueue;
+import server.ServerModel;
+import supplementary.BinaryCodec;
+import supplementary.FrameCodec;
+import supplementary.Message;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.FakeSession is a server.ClientSession without a client: frames queued for it are taken off its
+ * server.OutboundQueue right away, like a writer on an infinitely fast socket, and only counted.
+ * <p>
+ * version 18.10.2026
+ */
+class FakeSession extends ClientSession {
+    private final FrameCodec codec = new BinaryCodec();
+    //the sender's thread and the presence flusher both queue frames
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    FakeSession(ServerModel server) {
+        super(server);
+    }
+
+    long frames() {
+        return frames.get();
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    @Override
+    protected FrameCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    protected void outboundReady() {
+        List<byte[]> batch = outbound.drain();
+        long size = OutboundQueue.sizeOf(batch);
+        outbound.written(size);
+        frames.addAndGet(batch.size());
+        bytes.addAndGet(size);
+    }
+
+    @Override
+    public void disconnect() {
+    }
+
+    @Override
+    public void createGroup() {
+    }
+
+    @Override
+    public void uploadChunk(Message header) {
+    }
+}
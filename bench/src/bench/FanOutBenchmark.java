@@ -0,0 +1,68 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import supplementary.Message;
+import supplementary.Protocol;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.FanOutBenchmark sends one message to a group whose other members are all logged in
+ * (server.ClientSession.sendMessage): queueing it for storage, the recent history and one frame for every
+ * recipient's outbound queue. Recipients are bench.FakeSession, so no socket time is included.
+ * <p>
+ * version 18.10.2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int recipients;
+
+    private ServerFixture fixture;
+    private FakeSession sender;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new ServerFixture();
+        ArrayList<String> members = new ArrayList<>();
+        for (int i = 0; i <= recipients; i++) {
+            fixture.addUser("user" + i);
+            members.add("user" + i);
+        }
+        int group = fixture.addGroup("team", members);
+        sender = fixture.login("user0");
+        for (int i = 1; i <= recipients; i++) fixture.login("user" + i);
+        message = new Message(Protocol.MESSAGE, new String[]{"user0", String.valueOf(group), "The build is green, releasing in ten minutes"});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void sendMessage() {
+        sender.sendMessage(message);
+    }
+}
@@ -0,0 +1,91 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.IdAllocator;
+import server.MessageHistory;
+import server.MessageStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.HistoryBenchmark reads pages of a conversation through server.MessageHistory from the embedded
+ * server.LogStore: the newest page, which server.RecentMessages keeps in memory, and pages before a random
+ * message, which are read from the store's segments.
+ * <p>
+ * version 18.10.2026
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    @Param({"100000"})
+    public int messages;
+    @Param({"50", "500"})
+    public int pageSize;
+
+    private ServerFixture fixture;
+    private MessageHistory history;
+    private int group;
+    private long firstId;
+    private long lastId;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        fixture = new ServerFixture();
+        fixture.addUser("alice");
+        fixture.addUser("bob");
+        group = fixture.addGroup("private", Arrays.asList("alice", "bob"));
+        MessageStore store = fixture.server().getStore();
+        IdAllocator ids = fixture.server().getIds();
+        List<MessageStore.Record> batch = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            long id = ids.next(IdAllocator.Kind.MESSAGE);
+            if (i == 0) firstId = id;
+            lastId = id;
+            batch.add(new MessageStore.Record(id, group, i % 2 == 0 ? "alice" : "bob",
+                    "message " + i + ": the numbers for this week are in the shared folder", System.currentTimeMillis(), null));
+            if (batch.size() == 1000) {
+                store.append(batch);
+                batch.clear();
+            }
+        }
+        store.append(batch);
+        history = fixture.server().getHistory();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public MessageHistory.Page newestPage() throws Exception {
+        return history.newest(group, pageSize);
+    }
+
+    @Benchmark
+    public MessageHistory.Page pageBefore() throws Exception {
+        return history.before(group, ThreadLocalRandom.current().nextLong(firstId + pageSize, lastId), pageSize);
+    }
+}
@@ -0,0 +1,56 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import supplementary.ObjectConverter;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.ObjectConverterBenchmark converts a file reference to its stored form and back, as
+ * supplementary.ObjectConverter does for attachments of old clients.
+ * <p>
+ * version 18.10.2026
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectConverterBenchmark {
+    private File file;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() {
+        file = new File("/home/alice/Documents/reports/quarterly report.pdf");
+        bytes = ObjectConverter.getByteArrayObject(file);
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return ObjectConverter.getByteArrayObject(file);
+    }
+
+    @Benchmark
+    public File fromBytes() {
+        return ObjectConverter.getJavaObject(bytes);
+    }
+
+    @Benchmark
+    public File roundTrip() {
+        return ObjectConverter.getJavaObject(ObjectConverter.getByteArrayObject(file));
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import server.IdAllocator;
+import server.LogStore;
+import server.ServerModel;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * bench.ServerFixture is a server without a socket for the benchmarks: server.ServerModel opened on a
+ * server.LogStore in a temporary directory, so nothing but the local disk is needed, and sessions
+ * (bench.FakeSession) talking to it directly. Run the benchmarks with -Dchat.store.fsync=false (BenchmarkMain
+ * does), the disk's flush time would drown everything else.
+ * <p>
+ * version 18.10.2026
+ */
+class ServerFixture {
+    static final String PASSWORD = "secret";
+
+    private final Path dir;
+    private final ServerModel server;
+
+    ServerFixture() throws IOException {
+        dir = Files.createTempDirectory("chat-bench");
+        System.setProperty("chat.attachments.dir", dir.resolve("attachments").toString());
+        server = new ServerModel(ServerModel.Mode.THREADS, 1, 0, null);
+        server.open(new LogStore(dir.resolve("store")));
+    }
+
+    ServerModel server() {
+        return server;
+    }
+
+    void addUser(String login) throws IOException {
+        server.getStore().addUser(server.getIds().nextInt(IdAllocator.Kind.USER), login, PASSWORD, login);
+    }
+
+    //addGroup - a group of users already added, returns its id
+    int addGroup(String name, Collection<String> members) throws IOException {
+        int id = server.getIds().nextInt(IdAllocator.Kind.GROUP);
+        server.getStore().addGroup(id, name, members);
+        return id;
+    }
+
+    //login - a session logged in as the user, as after a LOGIN command
+    FakeSession login(String login) throws IOException {
+        FakeSession session = new FakeSession(server);
+        session.login(login, PASSWORD);
+        if (session.getCurrentUser() == null) throw new IllegalStateException("Could not log in " + login);
+        return session;
+    }
+
+    //close - writes what is queued, closes the store and deletes the directory
+    void close() throws IOException {
+        server.getMessageWriter().shutdown(10000);
+        server.getStore().close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+}
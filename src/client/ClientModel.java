@@ -3,9 +3,19 @@ package client;
 import supplementary.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Nabeel, Ali, Roman
@@ -15,18 +25,49 @@ import java.util.Map;
  * Version 18.04.2018
  */
 public class ClientModel {
+    //messages per history page
+    private static final int HISTORY_PAGE = 50;
+    //logins per contact directory page
+    private static final int CONTACTS_PAGE = 200;
+    //messages per page of the messages after the cached ones, the most the server sends at once
+    private static final int DELTA_PAGE = 500;
+    //pages of newer messages fetched for a conversation before its cache is dropped for the newest page
+    private static final int DELTA_PAGES = 10;
+
+    //how far below the newest cached id a message may still be stored, as the server told at login; that much is
+    //asked for again and the duplicates are skipped, -1 if the server did not tell
+    private long syncOverlap = -1;
 
     private String serverName;
     private int serverPort;
     private Socket serverSocket;
 
-    private ObjectOutputStream oos;
-    private ObjectInputStream ois;
+    private FrameOutputStream oos;
+    private FrameInputStream ois;
+    //attachment uploads and downloads
+    private FileTransfers transfers;
 
     private MainChatView view;
     private String login;
     //stores info about all conversations and their group id. Needed for view interaction.
     private Map<Integer, Conversation> allUsers;
+    //history paging per group id: id of the oldest message loaded, -1 when everything is loaded
+    private Map<Integer, Long> oldestLoaded = new ConcurrentHashMap<>();
+    //groups whose older page has been asked for and has not arrived yet
+    private Set<Integer> loadingOlder = ConcurrentHashMap.newKeySet();
+    //texts for contacts whose private conversation has been asked for and has not arrived yet
+    private Map<String, ArrayList<String>> waitingForPrivate = new ConcurrentHashMap<>();
+    //history of the conversations on disk, per server and login
+    private HistoryCache cache;
+    //groups whose cache has every message up to now: their new messages are cached as they come
+    private Set<Integer> synced = ConcurrentHashMap.newKeySet();
+    //pages of newer messages fetched so far per group
+    private Map<Integer, Integer> deltaPages = new ConcurrentHashMap<>();
+    //the group shown and the ids of its lines in the view, so a message coming both live and in a page is shown once;
+    //the lock keeps the check and the view update in the same order on both threads
+    private ReentrantLock shownLock = new ReentrantLock();
+    private int shownGroup = -1;
+    private Set<Long> shownIds = new HashSet<>();
 
     // Constructor with port number and server address establishment
     public ClientModel(String serverName, int serverPort) {
@@ -39,8 +80,11 @@ public class ClientModel {
     public boolean connect() {
         try {
             serverSocket = new Socket(serverName, serverPort);
-            oos = new ObjectOutputStream(serverSocket.getOutputStream());
-            ois = new ObjectInputStream(serverSocket.getInputStream());
+            serverSocket.setTcpNoDelay(true);
+            oos = new FrameOutputStream(serverSocket.getOutputStream());
+            ois = new FrameInputStream(serverSocket.getInputStream());
+            negotiate();
+            transfers = new FileTransfers(oos);
             return true;
         } catch (IOException e) {
             e.printStackTrace();
@@ -49,6 +93,18 @@ public class ClientModel {
         }
     }
 
+    // Negotiate method offers the server all codecs and features we speak and switches the streams to what it picked.
+    private void negotiate() throws IOException {
+        oos.writeFrame(Handshake.offer(Handshake.SUPPORTED, Handshake.FEATURES));
+        byte[] answer = ois.readFrame();
+        int version = Handshake.parseAccept(answer);
+        if (version < 0) throw new IOException("Server did not answer the codec offer");
+        //compression only if the server agreed to it as well
+        FrameCodec codec = CompressedCodec.wrap(FrameCodec.forVersion(version), Handshake.parseAcceptFeatures(answer));
+        oos.setCodec(codec);
+        ois.setCodec(codec);
+    }
+
     // Register method sends registration info to a server and responds back to client.LoginView if it was successful or not.
     public boolean register(String login, String password, String legalName) {
         try {
@@ -70,10 +126,16 @@ public class ClientModel {
     public boolean login(String username, String password) {
         try {
             oos.writeObject(new Message(Protocol.LOGIN, new String[]{username, password}));
-            if (((Message) ois.readObject()).getCommand() == Protocol.TRUE) {
+            Message answer = (Message) ois.readObject();
+            if (answer.getCommand() == Protocol.TRUE) {
                 login = username;
+                String[] content = answer.getContent();
+                syncOverlap = content != null && content.length > 0 ? Long.parseLong(content[0]) : -1;
                 allUsers = new HashMap<>();
-                allUsers = (Map) ois.readObject();
+                allUsers = readObject();
+                cache = new HistoryCache(Paths.get(System.getProperty("chat.client.historyDir",
+                        System.getProperty("user.home") + File.separator + ".chat" + File.separator + "history"),
+                        serverName + "_" + serverPort, URLEncoder.encode(username, "UTF-8")));
                 return true;
             }
         } catch (IOException e) {
@@ -99,12 +161,17 @@ public class ClientModel {
                         switch (userMessage.getCommand()) {
                             case Protocol.REGISTER:
                                 if (view != null) {
-                                    Conversation c = (Conversation) ois.readObject();
-                                    allUsers.put(Integer.valueOf(tokens[0]), c);
-                                    view.updateRegister(Integer.valueOf(tokens[0]), tokens[1]);
+                                    view.updateRegister(tokens[0]);
                                 }
                                 System.out.println("client got info about new user created");
                                 break;
+                            case Protocol.CONTACTS:
+                                ArrayList<String> contacts = readObject();
+                                if (view != null) view.addContacts(contacts);
+                                //the directory is fetched page by page until it is complete
+                                if (Boolean.parseBoolean(tokens[0]) && !contacts.isEmpty())
+                                    getContacts(contacts.get(contacts.size() - 1));
+                                break;
                             case Protocol.ONLINE:
                                 if (view != null) {
                                     view.updateOnline(tokens[0]);
@@ -118,24 +185,58 @@ public class ClientModel {
                                 System.out.println("client got offline");
                                 System.out.println("client remove" + tokens[0]);
                                 break;
+                            case Protocol.PRESENCE:
+                                //changes of several contacts at once, the first one after login lists who is online
+                                if (view != null) {
+                                    for (String update : tokens) {
+                                        String contact = update.substring(1);
+                                        if (update.startsWith(Protocol.PRESENCE_ONLINE)) view.updateOnline(contact);
+                                        else view.updateOffline(contact);
+                                    }
+                                }
+                                break;
                             case Protocol.MESSAGE:
                                 System.out.println("client got message");
                                 String loginToPrint = tokens[0];
                                 // if(loginToPrint.equals(login)) loginToPrint="You";
-                                if (view != null) {
-                                    view.updateMessages(loginToPrint, allUsers.get(Integer.valueOf(tokens[1])).getName(), tokens[2]);
+                                int messageGroup = Integer.valueOf(tokens[1]);
+                                long messageId = tokens.length > Protocol.MESSAGE_ID ? Long.parseLong(tokens[Protocol.MESSAGE_ID]) : -1;
+                                if (messageId >= 0 && synced.contains(messageGroup)) {
+                                    cache.add(messageGroup, Collections.singletonList(messageId),
+                                            Collections.singletonList(tokens[0] + ": " + tokens[2]), false);
+                                }
+                                shownLock.lock();
+                                try {
+                                    //already shown from a page of newer messages
+                                    if (messageId >= 0 && messageGroup == shownGroup && !shownIds.add(messageId)) break;
+                                    if (view != null) {
+                                        view.updateMessages(loginToPrint, allUsers.get(messageGroup).getName(), tokens[2]);
+                                    }
+                                } finally {
+                                    shownLock.unlock();
                                 }
                                 break;
                             case Protocol.HISTORY:
-                                ArrayList<String> messages = (ArrayList<String>) ois.readObject();
-                                allUsers.get(Integer.valueOf(tokens[0])).getMessages().addAll(messages);
-                                view.updateHistory(messages);
+                                ArrayList<String> messages = readObject();
+                                ArrayList<String> messageIdTexts = readObject();
+                                ArrayList<Long> messageIds = new ArrayList<>();
+                                for (String messageIdText : messageIdTexts) messageIds.add(Long.parseLong(messageIdText));
+                                history(tokens, messages, messageIds);
                                 break;
                             case Protocol.CREATE_GROUP:
                                 Integer id = (Integer) ois.readObject();
                                 Conversation conversation = (Conversation) ois.readObject();
                                 allUsers.put(id, conversation);
-                                view.updateGroups(conversation.getName(), id);
+                                String contact = privateContact(conversation);
+                                if (contact == null) {
+                                    view.updateGroups(conversation.getName(), id);
+                                    break;
+                                }
+                                view.updatePrivate(contact, id);
+                                ArrayList<String> waiting = waitingForPrivate.remove(contact);
+                                if (waiting != null) {
+                                    for (String text : waiting) sendMessage(id, text);
+                                }
                                 break;
                             case Protocol.LEAVE_GROUP:
                                 String deletedLogin = userMessage.getContent()[0];
@@ -147,6 +248,21 @@ public class ClientModel {
                                 } else
                                     allUsers.get(groupId).getParticipants().remove(deletedLogin);
                                 break;
+                            case Protocol.UPLOAD_ACK:
+                                transfers.uploadAcknowledged(tokens);
+                                break;
+                            case Protocol.UPLOAD_DONE:
+                                transfers.uploadDone(tokens);
+                                break;
+                            case Protocol.DOWNLOAD_CHUNK:
+                                transfers.downloadChunk(tokens, (byte[]) ois.readObject());
+                                break;
+                            case Protocol.MESSAGE_FAILED:
+                                if (view != null) view.messageFailed(tokens[1]);
+                                break;
+                            case Protocol.TRANSFER_FAILED:
+                                transfers.failed(tokens);
+                                break;
                             case Protocol.EXIT:
                                 running = false;
                                 break;
@@ -162,6 +278,11 @@ public class ClientModel {
             }
         }.start();
 
+        try {
+            getContacts("");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     //finalizing client and closing all streams when applications is closed or down.
@@ -181,16 +302,144 @@ public class ClientModel {
         }
     }
 
+    //history method takes a page of a conversation into its cache and the view
+    private void history(String[] tokens, ArrayList<String> messages, ArrayList<Long> ids) throws IOException {
+        int groupId = Integer.valueOf(tokens[0]);
+        ArrayList<String> loaded = allUsers.get(groupId).getMessages();
+        //the id of the oldest message is the cursor for the next older page
+        boolean more = Boolean.parseBoolean(tokens[4]);
+        if (tokens[1].equals(Protocol.HISTORY_BEFORE)) {
+            loadingOlder.remove(groupId);
+            oldestLoaded.put(groupId, more ? Long.parseLong(tokens[2]) : -1);
+            loaded.addAll(0, messages);
+            cache.add(groupId, ids, messages, !more);
+            shownLock.lock();
+            try {
+                if (groupId == shownGroup) shownIds.addAll(ids);
+            } finally {
+                shownLock.unlock();
+            }
+            view.prependHistory(groupId, messages);
+        } else if (tokens[1].equals(Protocol.HISTORY_AFTER)) {
+            //messages newer than the cached ones, every id not shown yet goes below the cached lines
+            cache.add(groupId, ids, messages, false);
+            ArrayList<String> added = new ArrayList<>();
+            shownLock.lock();
+            try {
+                if (groupId == shownGroup) {
+                    for (int i = 0; i < ids.size(); i++) {
+                        if (shownIds.add(ids.get(i))) added.add(messages.get(i));
+                    }
+                    loaded.addAll(added);
+                    if (!added.isEmpty()) view.appendHistory(groupId, added);
+                }
+            } finally {
+                shownLock.unlock();
+            }
+            if (!more) {
+                deltaPages.remove(groupId);
+                synced.add(groupId);
+                return;
+            }
+            if (deltaPages.merge(groupId, 1, Integer::sum) < DELTA_PAGES) {
+                oos.writeObject(new Message(Protocol.HISTORY, new String[]{tokens[0], String.valueOf(DELTA_PAGE),
+                        Protocol.HISTORY_AFTER, tokens[3], Protocol.HISTORY_IDS}));
+            } else {
+                //too far behind to catch up page by page, starting over from the newest page
+                deltaPages.remove(groupId);
+                oos.writeObject(new Message(Protocol.HISTORY, new String[]{tokens[0], String.valueOf(HISTORY_PAGE),
+                        Protocol.HISTORY_NEWEST, "0", Protocol.HISTORY_IDS}));
+            }
+        } else {
+            oldestLoaded.put(groupId, more ? Long.parseLong(tokens[2]) : -1);
+            loaded.clear();
+            loaded.addAll(messages);
+            cache.replace(groupId, ids, messages, !more);
+            synced.add(groupId);
+            shownLock.lock();
+            try {
+                if (groupId == shownGroup) {
+                    shownIds.clear();
+                    shownIds.addAll(ids);
+                }
+                view.updateHistory(groupId, messages);
+            } finally {
+                shownLock.unlock();
+            }
+        }
+    }
+
     //sendMessage method sends message to server for appropriate conversation by group id.
     public void sendMessage(int groupId, String text) {
         try {
             oos.writeObject(new Message(Protocol.MESSAGE, new String[]{login, String.valueOf(groupId), text}));
             allUsers.get(groupId).getMessages().add(login + ": " + text);
+            //the server does not send our own messages back, the cache gets them with the next newer messages
+            synced.remove(groupId);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    //sendPrivate method sends a message to a contact whose private conversation does not exist yet: it is opened first
+    //and the message goes out once the server has sent it
+    public void sendPrivate(String contact, String text) {
+        try {
+            boolean[] first = new boolean[1];
+            //compute keeps this atomic with the reading thread taking the list away
+            waitingForPrivate.compute(contact, (key, waiting) -> {
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    first[0] = true;
+                }
+                waiting.add(text);
+                return waiting;
+            });
+            if (first[0]) openPrivate(contact);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //openPrivate method asks the server for the private conversation with a contact, it arrives as CREATE_GROUP
+    public void openPrivate(String contact) throws IOException {
+        oos.writeObject(new Message(Protocol.OPEN_PRIVATE, new String[]{contact}));
+    }
+
+    //getContacts method asks for the page of the user directory after the given login
+    public void getContacts(String after) throws IOException {
+        oos.writeObject(new Message(Protocol.CONTACTS, new String[]{after, String.valueOf(CONTACTS_PAGE)}));
+    }
+
+    //privateContact method gives the other member of a private conversation, null for a group
+    public String privateContact(Conversation conversation) {
+        if (!conversation.getName().equals("private")) return null;
+        for (String member : conversation.getParticipants()) {
+            if (!member.equals(login)) return member;
+        }
+        return null;
+    }
+
+    //sendAttachment method uploads a file with progress reports and then sends it to the conversation as a message.
+    //Calling it again for the same unchanged file after a disconnect continues the upload.
+    public CompletableFuture<String> sendAttachment(int groupId, String text, Path file, FileTransfers.Listener listener) throws IOException {
+        return transfers.upload(file, listener).thenApply(reference -> {
+            try {
+                oos.writeObject(new Message(Protocol.MESSAGE, new String[]{login, String.valueOf(groupId), text, reference}));
+                allUsers.get(groupId).getMessages().add(login + ": " + text);
+                synced.remove(groupId);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return reference;
+        });
+    }
+
+    //downloadAttachment method saves an attachment to disk with progress reports, resuming an earlier try
+    public CompletableFuture<Path> downloadAttachment(String reference, Path target, FileTransfers.Listener listener) throws IOException {
+        return transfers.download(reference, target, listener);
+    }
+
     //setView method establishes new created view with chatboxes and dialogs
     public void setView(MainChatView view) {
         this.view = view;
@@ -201,7 +450,7 @@ public class ClientModel {
         return login;
     }
 
-    public ObjectOutputStream getOut() {
+    public FrameOutputStream getOut() {
         return oos;
     }
 
@@ -209,15 +458,58 @@ public class ClientModel {
         return allUsers;
     }
 
-    //getHistory method needed to request a history for particular chat from server
+    //getHistory method shows the cached history of a chat at once and asks the server only for the messages after it,
+    //or for the newest page if nothing is cached
     public void getHistory(int groupId) throws IOException {
-        oos.writeObject(new Message(Protocol.HISTORY, new String[]{String.valueOf(groupId)}));
+        loadingOlder.remove(groupId);
+        deltaPages.remove(groupId);
+        List<Long> ids = cache.ids(groupId);
+        ArrayList<String> lines = new ArrayList<>(cache.lines(groupId));
+        shownLock.lock();
+        try {
+            shownGroup = groupId;
+            shownIds.clear();
+            shownIds.addAll(ids);
+            if (!lines.isEmpty()) {
+                ArrayList<String> loaded = allUsers.get(groupId).getMessages();
+                loaded.clear();
+                loaded.addAll(lines);
+                oldestLoaded.put(groupId, cache.hasStart(groupId) ? -1 : ids.get(0));
+                view.updateHistory(groupId, lines);
+            }
+        } finally {
+            shownLock.unlock();
+        }
+        //without the overlap nothing tells which messages may be missing after the cached ones, the newest page replaces them
+        if (lines.isEmpty() || syncOverlap < 0) {
+            oos.writeObject(new Message(Protocol.HISTORY, new String[]{String.valueOf(groupId), String.valueOf(HISTORY_PAGE),
+                    Protocol.HISTORY_NEWEST, "0", Protocol.HISTORY_IDS}));
+        } else {
+            //not below the oldest cached line, the lines come in below the cached ones
+            long after = Math.max(ids.get(0), ids.get(ids.size() - 1) - syncOverlap);
+            oos.writeObject(new Message(Protocol.HISTORY, new String[]{String.valueOf(groupId), String.valueOf(DELTA_PAGE),
+                    Protocol.HISTORY_AFTER, String.valueOf(after), Protocol.HISTORY_IDS}));
+        }
+    }
+
+    //readObject - the object following a message, of the type the protocol gives it; the codecs cannot check that
+    @SuppressWarnings("unchecked")
+    private <T> T readObject() throws IOException, ClassNotFoundException {
+        return (T) ois.readObject();
+    }
+
+    //getOlderHistory method asks for the page before the oldest loaded message, does nothing if there is none or it is on its way
+    public void getOlderHistory(int groupId) throws IOException {
+        Long oldest = oldestLoaded.get(groupId);
+        if (oldest == null || oldest < 0 || !loadingOlder.add(groupId)) return;
+        oos.writeObject(new Message(Protocol.HISTORY, new String[]{String.valueOf(groupId), String.valueOf(HISTORY_PAGE),
+                Protocol.HISTORY_BEFORE, String.valueOf(oldest), Protocol.HISTORY_IDS}));
     }
 
     public void createGroup(String name, ArrayList<String> participants) {
         try {
-            oos.writeObject(new Message(Protocol.CREATE_GROUP));
-            oos.writeObject(new Conversation(name, participants));
+            //in one call, so an upload chunk from the transfer thread cannot get between the command and its conversation
+            oos.writeObjects(new Message(Protocol.CREATE_GROUP), new Conversation(name, participants));
         } catch (IOException e) {
             e.printStackTrace();
         }
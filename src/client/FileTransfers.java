@@ -0,0 +1,219 @@
+package client;
+
+import supplementary.FrameOutputStream;
+import supplementary.Message;
+import supplementary.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * client.FileTransfers uploads and downloads attachments in chunks (see supplementary.Protocol.UPLOAD), reading
+ * and writing the files on disk chunk by chunk, so no file is ever held in memory as a whole. Each upload has its
+ * own thread which never has more than the server's window unacknowledged, so chat messages keep going out between
+ * the chunks. Both directions resume where they stopped: an upload of the same unchanged file continues at what the
+ * server already has, a download continues a ".part" file next to the target which is renamed once complete.
+ * <p>
+ * version 18.10.2026
+ */
+public class FileTransfers {
+
+    //Listener is told how many bytes of a transfer have arrived at the other end
+    public interface Listener {
+        void progress(long done, long total);
+    }
+
+    private class Upload implements Runnable {
+        private final String id;
+        private final FileChannel channel;
+        private final long size;
+        private final Listener listener;
+        private final CompletableFuture<String> done = new CompletableFuture<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition acknowledgedMore = lock.newCondition();
+        private boolean started;
+        private long sent;
+        private long acknowledged;
+        private int window;
+
+        Upload(String id, FileChannel channel, long size, Listener listener) {
+            this.id = id;
+            this.channel = channel;
+            this.size = size;
+            this.listener = listener;
+        }
+
+        void acknowledge(long offset, int window) {
+            lock.lock();
+            try {
+                acknowledged = Math.max(acknowledged, offset);
+                this.window = window;
+                if (!started) {
+                    //the first answer says where to continue
+                    started = true;
+                    sent = offset;
+                    Thread sender = new Thread(this, "client.FileTransfers-upload");
+                    sender.setDaemon(true);
+                    sender.start();
+                }
+                acknowledgedMore.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (listener != null) listener.progress(offset, size);
+        }
+
+        void finish(Throwable failure, String reference) {
+            if (done.isDone()) return;
+            uploads.remove(id, this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            lock.lock();
+            try {
+                acknowledgedMore.signal();
+            } finally {
+                lock.unlock();
+            }
+            if (failure != null) done.completeExceptionally(failure);
+            else {
+                if (listener != null) listener.progress(size, size);
+                done.complete(reference);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long position;
+                    int length;
+                    lock.lock();
+                    try {
+                        while (!done.isDone() && (sent >= size || sent - acknowledged >= window)) acknowledgedMore.await();
+                        if (done.isDone()) return;
+                        position = sent;
+                        length = (int) Math.min(Protocol.CHUNK_SIZE, size - sent);
+                        sent += length;
+                    } finally {
+                        lock.unlock();
+                    }
+                    ByteBuffer chunk = ByteBuffer.allocate(length);
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, position + chunk.position()) < 0) throw new IOException("File got shorter");
+                    }
+                    out.writeObjects(new Message(Protocol.UPLOAD_CHUNK, new String[]{id, String.valueOf(position)}), chunk.array());
+                }
+            } catch (IOException | InterruptedException e) {
+                finish(e, null);
+            }
+        }
+    }
+
+    private static class Download {
+        private final Path target;
+        private final Path part;
+        private final FileChannel channel;
+        private final Listener listener;
+        private final CompletableFuture<Path> done = new CompletableFuture<>();
+
+        Download(Path target, Path part, FileChannel channel, Listener listener) {
+            this.target = target;
+            this.part = part;
+            this.channel = channel;
+            this.listener = listener;
+        }
+    }
+
+    private FrameOutputStream out;
+    private Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private Map<String, Download> downloads = new ConcurrentHashMap<>();
+
+    public FileTransfers(FrameOutputStream out) {
+        this.out = out;
+    }
+
+    //upload - sends a file to the server, the future gives the attachment reference to put in a message
+    public CompletableFuture<String> upload(Path file, Listener listener) throws IOException {
+        long size = Files.size(file);
+        //the same file unchanged gets the same id, which is what lets the server resume it
+        String id = UUID.nameUUIDFromBytes((file.toAbsolutePath() + "|" + size + "|" + Files.getLastModifiedTime(file).toMillis())
+                .getBytes(StandardCharsets.UTF_8)).toString();
+        Upload upload = new Upload(id, FileChannel.open(file, StandardOpenOption.READ), size, listener);
+        Upload previous = uploads.put(id, upload);
+        if (previous != null) previous.finish(new IOException("Upload restarted"), null);
+        out.writeObject(new Message(Protocol.UPLOAD, new String[]{id, String.valueOf(size)}));
+        return upload.done;
+    }
+
+    //download - fetches an attachment into the target file, the future completes when it is all there
+    public CompletableFuture<Path> download(String reference, Path target, Listener listener) throws IOException {
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        Download download = new Download(target, part, channel, listener);
+        downloads.put(reference, download);
+        out.writeObject(new Message(Protocol.DOWNLOAD, new String[]{reference, String.valueOf(channel.size())}));
+        return download.done;
+    }
+
+    //the reading thread hands over everything about transfers
+
+    void uploadAcknowledged(String[] content) {
+        Upload upload = uploads.get(content[0]);
+        if (upload != null) upload.acknowledge(Long.parseLong(content[1]), Integer.parseInt(content[2]));
+    }
+
+    void uploadDone(String[] content) {
+        Upload upload = uploads.get(content[0]);
+        if (upload != null) upload.finish(null, content[1]);
+    }
+
+    void downloadChunk(String[] content, byte[] data) throws IOException {
+        Download download = downloads.get(content[0]);
+        if (download == null) return;
+        long offset = Long.parseLong(content[1]);
+        long size = Long.parseLong(content[2]);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) download.channel.write(buffer, offset + buffer.position());
+        long received = offset + data.length;
+        if (download.listener != null) download.listener.progress(received, size);
+        out.writeObject(new Message(Protocol.DOWNLOAD_ACK, new String[]{content[0], String.valueOf(received)}));
+        if (received < size) return;
+        downloads.remove(content[0]);
+        download.channel.truncate(size);
+        download.channel.close();
+        Files.move(download.part, download.target, StandardCopyOption.REPLACE_EXISTING);
+        download.done.complete(download.target);
+    }
+
+    void failed(String[] content) {
+        IOException failure = new IOException(content[1]);
+        Upload upload = uploads.get(content[0]);
+        if (upload != null) upload.finish(failure, null);
+        Download download = downloads.remove(content[0]);
+        if (download != null) {
+            try {
+                download.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            download.done.completeExceptionally(failure);
+        }
+    }
+}
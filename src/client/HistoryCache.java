@@ -0,0 +1,238 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * client.HistoryCache keeps the history of every conversation on disk, by message id, so opening a conversation
+ * shows what was seen before straight away and only asks the server for the messages after the newest one cached
+ * (supplementary.Protocol.HISTORY_AFTER). Each conversation is one file of records appended as pages and messages
+ * arrive, read once when the conversation is first opened; a record cut short by a crash is dropped then.
+ * The cached lines of a conversation are always one unbroken stretch of its history, from the oldest cached
+ * message to the newest, and at most chat.client.historyLines (default 10000) of them are kept.
+ * <p>
+ * version 18.10.2026
+ */
+public class HistoryCache {
+    private static final int MAX_LINES = Integer.getInteger("chat.client.historyLines", 10000);
+    private static final byte LINE = 0;
+    //the oldest cached line is the first message of the conversation
+    private static final byte START = 1;
+
+    //one conversation's cached lines
+    private static class History {
+        private final TreeMap<Long, String> lines = new TreeMap<>();
+        private boolean start;
+        //records in the file, which is rewritten once it has twice as many as lines are kept
+        private int records;
+    }
+
+    private final Path dir;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, History> histories = new HashMap<>();
+
+    public HistoryCache(Path dir) {
+        this.dir = dir;
+    }
+
+    //ids and lines - the cached messages of a conversation, oldest first
+    public List<Long> ids(int groupId) {
+        lock.lock();
+        try {
+            return new ArrayList<>(history(groupId).lines.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<String> lines(int groupId) {
+        lock.lock();
+        try {
+            return new ArrayList<>(history(groupId).lines.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //newestId and oldestId - -1 if nothing is cached
+    public long newestId(int groupId) {
+        lock.lock();
+        try {
+            History history = history(groupId);
+            return history.lines.isEmpty() ? -1 : history.lines.lastKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long oldestId(int groupId) {
+        lock.lock();
+        try {
+            History history = history(groupId);
+            return history.lines.isEmpty() ? -1 : history.lines.firstKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //hasStart - true if the first message of the conversation is cached
+    public boolean hasStart(int groupId) {
+        lock.lock();
+        try {
+            return history(groupId).start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(int groupId, long id) {
+        lock.lock();
+        try {
+            return history(groupId).lines.containsKey(id);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //add - caches messages next to the cached ones, start tells that the oldest of them is the first of the conversation
+    public void add(int groupId, List<Long> ids, List<String> lines, boolean start) {
+        lock.lock();
+        try {
+            History history = history(groupId);
+            ArrayList<Integer> added = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i++) {
+                if (history.lines.put(ids.get(i), lines.get(i)) == null) added.add(i);
+            }
+            boolean startChanged = start && !history.start;
+            history.start |= start;
+            boolean trimmed = trim(history);
+            if (trimmed || history.records + added.size() > 2 * MAX_LINES) {
+                rewrite(groupId, history);
+                return;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file(groupId),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                for (int i : added) writeLine(out, ids.get(i), lines.get(i));
+                if (startChanged) out.writeByte(START);
+            }
+            history.records += added.size() + (startChanged ? 1 : 0);
+        } catch (IOException e) {
+            //the cache only saves round trips, the conversation still works without it
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //replace - caches only these messages, for a page which may not join up with what was cached
+    public void replace(int groupId, List<Long> ids, List<String> lines, boolean start) {
+        lock.lock();
+        try {
+            History history = new History();
+            for (int i = 0; i < ids.size(); i++) history.lines.put(ids.get(i), lines.get(i));
+            history.start = start;
+            trim(history);
+            histories.put(groupId, history);
+            rewrite(groupId, history);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //trim - drops the oldest lines beyond the limit, true if there were any
+    private boolean trim(History history) {
+        if (history.lines.size() <= MAX_LINES) return false;
+        while (history.lines.size() > MAX_LINES) history.lines.pollFirstEntry();
+        history.start = false;
+        return true;
+    }
+
+    //history - the conversation's lines, read from its file the first time
+    private History history(int groupId) {
+        History history = histories.get(groupId);
+        if (history != null) return history;
+        history = new History();
+        histories.put(groupId, history);
+        Path file = file(groupId);
+        if (!Files.exists(file)) return history;
+        long good = 0;
+        try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+            DataInputStream in = new DataInputStream(stream);
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == START) {
+                    history.start = true;
+                    good += 1;
+                } else if (type == LINE) {
+                    long id = in.readLong();
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    history.lines.put(id, new String(bytes, StandardCharsets.UTF_8));
+                    good += 1 + 8 + 4 + bytes.length;
+                } else break;
+                history.records++;
+            }
+        } catch (IOException | NegativeArraySizeException | OutOfMemoryError e) {
+            //a torn record at the end, everything before it is kept
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > good) channel.truncate(good);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return history;
+    }
+
+    //rewrite - replaces the conversation's file with exactly the lines kept
+    private void rewrite(int groupId, History history) throws IOException {
+        Files.createDirectories(dir);
+        Path temp = dir.resolve(groupId + ".tmp");
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            DataOutputStream out = new DataOutputStream(stream);
+            for (Map.Entry<Long, String> line : history.lines.entrySet()) writeLine(out, line.getKey(), line.getValue());
+            if (history.start) out.writeByte(START);
+            out.flush();
+        }
+        Files.move(temp, file(groupId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        history.records = history.lines.size() + (history.start ? 1 : 0);
+    }
+
+    private static void writeLine(DataOutputStream out, long id, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(LINE);
+        out.writeLong(id);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private Path file(int groupId) {
+        return dir.resolve(groupId + ".history");
+    }
+}
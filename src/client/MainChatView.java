@@ -5,12 +5,18 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Highlighter;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @author Roman Gaev, Ioana, Ali, Nabeel
@@ -28,16 +34,31 @@ public class MainChatView extends JPanel implements ActionListener {
     private JList<ListEntry> userList = new JList(usrListModel);
     private ListSelectionModel listSelectionModel;
     //Right side (east) list with messages
-    private DefaultListModel<String> msgModel;
+    private MessageListModel msgModel;
     private JList<String> msgList;
+    private JScrollPane msgScroll;
     //idNameGroups - map to find specific group conversation id for particular nickname
     private Map<String, Integer> idNameGroups;
     private JTextArea inputField;
     private JButton groupButton;
     private JLabel conversationInfo = new JLabel(" ... ");
     private JButton sendButton;
-    //matches list - for storing message search matches
-    private ArrayList<Integer> matches;
+    //search - lines of the open conversation matching the search field
+    private MessageSearch search;
+    private JTextField searchField = new JTextField();
+    private JLabel matchLabel = new JLabel();
+    //changes from the reading thread, applied on the EDT once per frame
+    private ViewUpdates updates = new ViewUpdates(new ViewUpdates.View() {
+        @Override
+        public void presence(Map<String, Boolean> online) {
+            MainChatView.this.presence(online);
+        }
+
+        @Override
+        public void messages(String chatBox, List<String> lines) {
+            MainChatView.this.messages(chatBox, lines);
+        }
+    });
 
     private ImageIcon offlineIcon =new ImageIcon(LoginView.class.getProtectionDomain().getCodeSource().getLocation().getPath()+ "/client/offline.png");
     private ImageIcon onlineIcon =new ImageIcon(LoginView.class.getProtectionDomain().getCodeSource().getLocation().getPath()+ "/client/online.png");
@@ -103,26 +124,35 @@ public class MainChatView extends JPanel implements ActionListener {
         /**
          * EAST PANEL
          */
-        msgModel = new DefaultListModel<>();
+        msgModel = new MessageListModel();
         msgList = new JList<String>(msgModel) {
             @Override
             public boolean getScrollableTracksViewportWidth() {
                 return true;
             }
-        };
-       msgList.setCellRenderer(new MessageCellRenderer());
-        ComponentListener l = new ComponentAdapter() {
+
+            //rows are laid out as they are shown, also after a look and feel change
             @Override
-            public void componentResized(ComponentEvent e) {
-                msgList.setFixedCellHeight(10);
-                msgList.setFixedCellHeight(-1);
+            public void updateUI() {
+                setUI(new MessageListUI());
             }
         };
-        msgList.addComponentListener(l);
+       msgList.setCellRenderer(new MessageCellRenderer());
+        search = new MessageSearch(msgModel, this::showMatches);
         msgList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
         JPanel east = new JPanel();
         east.setLayout(new BorderLayout());
-        east.add(new JScrollPane(msgList), BorderLayout.CENTER);
+        msgScroll = new JScrollPane(msgList);
+        //older history is asked for when the user scrolls to the top of what is loaded
+        msgScroll.getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (e.getValueIsAdjusting() || e.getValue() > 0 || msgModel.isEmpty() || userList.getSelectedValue() == null) return;
+            try {
+                client.getOlderHistory(idNameGroups.get(userList.getSelectedValue().getName()));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        });
+        east.add(msgScroll, BorderLayout.CENTER);
 
         JPanel eastsouth = new JPanel();
         eastsouth.setLayout(new BorderLayout());
@@ -141,11 +171,14 @@ public class MainChatView extends JPanel implements ActionListener {
             @Override
             public void actionPerformed(ActionEvent e) {
                 String text = inputField.getText();
-                int groupId = idNameGroups.get(userList.getSelectedValue().getName());
+                String name = userList.getSelectedValue().getName();
+                Integer groupId = idNameGroups.get(name);
                 text = text.trim();
                 if (!text.equals("") && !text.equals(" ")) {
-                    client.sendMessage(groupId, text);
-                    msgModel.addElement(client.getLogin() + ": " + text);
+                    //a contact without a conversation yet gets one with this message
+                    if (groupId == null) client.sendPrivate(name, text);
+                    else client.sendMessage(groupId, text);
+                    msgModel.add(client.getLogin() + ": " + text);
                     inputField.setText("");
                     // In case of an empty text entry, a popup message warns the user
                 } else {
@@ -161,35 +194,34 @@ public class MainChatView extends JPanel implements ActionListener {
         east.add(eastsouth, BorderLayout.SOUTH);
         JPanel eastnorth = new JPanel();
         eastnorth.setLayout(new BorderLayout());
-        JTextField searchField = new JTextField();
         searchField.getDocument().addDocumentListener(new MyDocumentListener());
         JButton searchButton = new JButton("Search");
-        searchButton.addActionListener(new ActionListener() {
+        //every press goes on to the next match, the search field's Enter too
+        ActionListener nextMatch = new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if (matches == null || matches.isEmpty()) {
-                    matches = new ArrayList<>();
-
-                    for (int i = 0; i < msgModel.getSize(); i++) {
-                        String s = msgModel.get(i);
-                        String sf =searchField.getText();
-                        if (s.matches("(?i:(?s).*" + sf + ".*)")) {
-                            matches.add(i);
-                        }
-                    }
-                    if(matches!=null)msgList.setSelectedIndex(matches.get(0));
-                }else{
-                    msgList.setSelectedIndex(matches.get((matches.indexOf(msgList.getSelectedIndex())+1)%matches.size()));
-                }
+                int line = search.next(msgList.getSelectedIndex());
+                if (line < 0) return;
+                msgList.setSelectedIndex(line);
+                msgList.ensureIndexIsVisible(line);
+                showMatches();
             }
-        });
+        };
+        searchButton.addActionListener(nextMatch);
+        searchField.addActionListener(nextMatch);
+        matchLabel.setForeground(Color.white);
+        matchLabel.setBorder(BorderFactory.createEmptyBorder(0, 5, 0, 5));
+        JPanel searchButtons = new JPanel(new BorderLayout());
+        searchButtons.setOpaque(false);
+        searchButtons.add(matchLabel, BorderLayout.WEST);
+        searchButtons.add(searchButton, BorderLayout.EAST);
 
         eastnorth.add(conversationInfo, BorderLayout.WEST);
         conversationInfo.setFont(new Font("Rockwell",Font.BOLD,15));
         conversationInfo.setForeground(Color.white);
         conversationInfo.setBorder(BorderFactory.createEmptyBorder(5, 20, 5, 20));
         eastnorth.add(searchField, BorderLayout.CENTER);
-        eastnorth.add(searchButton, BorderLayout.EAST);
+        eastnorth.add(searchButtons, BorderLayout.EAST);
         east.add(eastnorth, BorderLayout.NORTH);
 
         /**
@@ -280,6 +312,7 @@ public class MainChatView extends JPanel implements ActionListener {
         private JTextArea ta2;
         private JLabel ta;
         private JPanel labelPanel;
+        private Highlighter.HighlightPainter hitPainter = new DefaultHighlighter.DefaultHighlightPainter(new Color(200, 140, 0));
 
         public MessageCellRenderer() {
             p = new JPanel();
@@ -315,6 +348,7 @@ public class MainChatView extends JPanel implements ActionListener {
             String[] msg = ((String) value).split(" ",2);
             ta.setText(msg[0]);
             ta2.setText(msg[1]);
+            highlight(msg[1]);
 
             int width = list.getWidth();
             if (isSelected) {
@@ -338,6 +372,20 @@ public class MainChatView extends JPanel implements ActionListener {
                 ta.setSize(width, Short.MAX_VALUE);
             return p;
         }
+
+        //highlight - marks the search hits in the text, only rows being painted get here
+        private void highlight(String text) {
+            Highlighter highlighter = ta2.getHighlighter();
+            highlighter.removeAllHighlights();
+            Pattern pattern = search.getPattern();
+            if (pattern == null) return;
+            Matcher matcher = pattern.matcher(text);
+            try {
+                while (matcher.find()) highlighter.addHighlight(matcher.start(), matcher.end(), hitPainter);
+            } catch (BadLocationException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
 
@@ -417,9 +465,13 @@ public class MainChatView extends JPanel implements ActionListener {
                             if (userList.getSelectedValue() == null) userList.setSelectedIndex(0);
                             ListEntry selectedValue = userList.getSelectedValue();
                             if (selectedValue.getIcon() != null) selectedValue.setIcon(noMessageIcon);
-                            int groupId = idNameGroups.get(selectedValue.getName());
+                            Integer groupId = idNameGroups.get(selectedValue.getName());
 
-                            client.getHistory(groupId);
+                            //a contact from the directory has no conversation until it is opened
+                            if (groupId == null) {
+                                msgModel.clear();
+                                client.openPrivate(selectedValue.getName());
+                            } else client.getHistory(groupId);
 
                             if(isPerson(selectedValue.getStatus().getDescription()))
                                 conversationInfo.setText("<html><div style='text-align: center;'>" + selectedValue + "</div></html>");
@@ -429,8 +481,6 @@ public class MainChatView extends JPanel implements ActionListener {
                                 client.getAllUsers().get(idNameGroups.get(selectedValue.getName())).getParticipants().forEach(x -> sb.append(" " + x));
                                 conversationInfo.setText(sb.toString() + "</div></html>");
                             }
-
-                            matches = null;
                         }catch (IOException em){em.printStackTrace();}
 
         }
@@ -494,60 +544,156 @@ public class MainChatView extends JPanel implements ActionListener {
 
     /**
      * SUPPORTIVE METHODS
+     * The update methods are called by the reading thread, the changes reach the lists through client.ViewUpdates
      */
-    public void updateRegister(int i, String s) {
-        usrListModel.addElement(new ListEntry(s, offlineIcon,null));
-        idNameGroups.put(s,i);
+    public void updateRegister(String s) {
+        updates.post(() -> addContact(s, offlineIcon));
+    }
+
+    //addContacts - a page of the user directory, contacts already listed stay as they are
+    public void addContacts(ArrayList<String> logins) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                for (String login : logins) {
+                    if (!login.equals(client.getLogin())) addContact(login, offlineIcon);
+                }
+            }
+        });
+    }
+
+    //updatePrivate - the private conversation with a contact has been opened
+    public void updatePrivate(String contact, int i) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                idNameGroups.put(contact, i);
+                addContact(contact, offlineIcon);
+                if (isSelected(i)) {
+                    try {
+                        client.getHistory(i);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    private void addContact(String s, ImageIcon status) {
+        if (usrListModel.indexOf(new ListEntry(s, null, null)) < 0) usrListModel.addElement(new ListEntry(s, status, null));
     }
 
     public void updateOnline(String s) {
-        // userListModel.set(userListModel.indexOf(s+" offlineIcon"),s+" onlineIcon");
-        usrListModel.get(usrListModel.indexOf(new ListEntry(s,null,null))).setStatus(onlineIcon);
+        updates.presence(s, true);
     }
 
     public void updateOffline(String s) {
-        //userListModel.set(userListModel.indexOf(s+" onlineIcon"),s+" offlineIcon");
-        usrListModel.get(usrListModel.indexOf(new ListEntry(s,null,null))).setStatus(offlineIcon);
+        updates.presence(s, false);
+    }
+
+    //presence - the status changes of a frame, the list is repainted once for all of them
+    private void presence(Map<String, Boolean> online) {
+        for (Map.Entry<String, Boolean> contact : online.entrySet()) {
+            // userListModel.set(userListModel.indexOf(s+" offlineIcon"),s+" onlineIcon");
+            int index = usrListModel.indexOf(new ListEntry(contact.getKey(), null, null));
+            //the directory may not have arrived yet
+            if (index < 0) {
+                if (contact.getValue()) addContact(contact.getKey(), onlineIcon);
+            } else usrListModel.get(index).setStatus(contact.getValue() ? onlineIcon : offlineIcon);
+        }
+        userList.repaint();
     }
 
+    //updateMessages - messages of the same chat arriving within a frame are added to the list together
+    //(client.MessageSearch follows the list)
     public void updateMessages(String sender,String conversation, String text) {
         String chatBox;
         if(conversation.equals("private")) chatBox=sender;
         else chatBox=conversation;
-        if(chatBox.equals(userList.getSelectedValue().getName())){
-            msgModel.addElement(chatBox+": "+text);
-            matches=null;
+        updates.message(chatBox, chatBox + ": " + text);
+    }
+
+    private void messages(String chatBox, List<String> lines) {
+        ListEntry selected = userList.getSelectedValue();
+        if (selected != null && chatBox.equals(selected.getName())) {
+            msgModel.addAll(msgModel.getSize(), lines);
         } else {
             //userListModel.set(userListModel.indexOf(login+" onlineIcon"),login+" onlineIcon O");
-            usrListModel.get(usrListModel.indexOf(new ListEntry(chatBox,null,null))).setIcon(messageIcon);
+            int index = usrListModel.indexOf(new ListEntry(chatBox, null, null));
+            if (index >= 0) usrListModel.get(index).setIcon(messageIcon);
+            userList.repaint();
         }
     }
 
-    public void updateHistory(ArrayList<String> history) {
-        SwingUtilities.invokeLater(new Runnable() {
+    //messageFailed - the server could not store a message of the user
+    public void messageFailed(String text) {
+        updates.post(() -> JOptionPane.showMessageDialog(this, "Your message \"" + text + "\" could not be saved, " +
+                "please send it again.", "Message Error", JOptionPane.WARNING_MESSAGE));
+    }
+
+    public void updateHistory(int groupId, ArrayList<String> history) {
+        updates.post(new Runnable() {
             @Override
             public void run() {
-                msgModel.removeAllElements();
-                for (String message : history) {
-                    msgModel.addElement(message);
-                }
+                if (!isSelected(groupId)) return;
+                msgModel.setAll(history);
+                //newest page: showing its end
+                if (!msgModel.isEmpty()) msgList.ensureIndexIsVisible(msgModel.getSize() - 1);
+            }
+        });
+
+    }
+
+    //appendHistory - puts messages newer than the loaded ones below them
+    public void appendHistory(int groupId, ArrayList<String> history) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSelected(groupId)) return;
+                msgModel.addAll(msgModel.getSize(), history);
+                if (!msgModel.isEmpty()) msgList.ensureIndexIsVisible(msgModel.getSize() - 1);
+            }
+        });
+    }
+
+    //prependHistory - puts an older page above the loaded messages, keeping the view on the message that was on top
+    public void prependHistory(int groupId, ArrayList<String> history) {
+        updates.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isSelected(groupId) || history.isEmpty()) return;
+                msgModel.addAll(0, history);
+                msgList.revalidate();
+                Rectangle top = msgList.getCellBounds(history.size(), history.size());
+                if (top != null) msgScroll.getViewport().setViewPosition(new Point(0, top.y));
             }
         });
+    }
 
+    private boolean isSelected(int groupId) {
+        ListEntry selected = userList.getSelectedValue();
+        if (selected == null) return false;
+        Integer id = idNameGroups.get(selected.getName());
+        return id != null && id == groupId;
     }
 
     public void updateGroups(String s, int i) {
-        //  userListModel.addElement(s);
-        usrListModel.addElement(new ListEntry(s, groupIcon,null));
-        idNameGroups.put(s, i);
+        updates.post(() -> {
+            //  userListModel.addElement(s);
+            usrListModel.addElement(new ListEntry(s, groupIcon,null));
+            idNameGroups.put(s, i);
+        });
     }
 
     public void deleteGroup(String groupName) {
-        // userListUI.setSelectedIndex((userListUI.getSelectedIndex()+1)%userListModel.getSize());
-        //userListModel.removeElement(groupName);
-        userList.setSelectedIndex((userList.getSelectedIndex()+1)% usrListModel.getSize());
-        usrListModel.removeElement(new ListEntry(groupName,null,null));
-        idNameGroups.remove(groupName);
+        updates.post(() -> {
+            // userListUI.setSelectedIndex((userListUI.getSelectedIndex()+1)%userListModel.getSize());
+            //userListModel.removeElement(groupName);
+            userList.setSelectedIndex((userList.getSelectedIndex()+1)% usrListModel.getSize());
+            usrListModel.removeElement(new ListEntry(groupName,null,null));
+            idNameGroups.remove(groupName);
+        });
     }
 
     public boolean isPerson(String s) {
@@ -602,20 +748,31 @@ public class MainChatView extends JPanel implements ActionListener {
         }
     }
 
+    //showMatches - shows how many lines match and repaints the highlights
+    private void showMatches() {
+        if (search.getPattern() == null) matchLabel.setText("");
+        else {
+            int position = search.position(msgList.getSelectedIndex());
+            matchLabel.setText(position > 0 ? position + "/" + search.count() : String.valueOf(search.count()));
+        }
+        msgList.repaint();
+    }
+
+    //searching as the user types
     class MyDocumentListener implements DocumentListener {
         @Override
         public void insertUpdate(DocumentEvent e) {
-            matches=null;
+            search.setQuery(searchField.getText());
         }
 
         @Override
         public void removeUpdate(DocumentEvent e) {
-            matches=null;
+            search.setQuery(searchField.getText());
         }
 
         @Override
         public void changedUpdate(DocumentEvent e) {
-            matches=null;
+            search.setQuery(searchField.getText());
         }
     }
 
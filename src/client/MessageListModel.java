@@ -0,0 +1,60 @@
+package client;
+
+import javax.swing.AbstractListModel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * client.MessageListModel holds the lines of the open conversation for the message list. Unlike DefaultListModel
+ * it takes whole pages at once: adding, prepending or replacing any number of lines fires one event, so the list
+ * and client.MessageSearch handle a page of history as one change instead of one per line.
+ * Only to be used on the EDT.
+ * <p>
+ * version 18.10.2026
+ */
+public class MessageListModel extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<String> lines = new ArrayList<>();
+
+    @Override
+    public int getSize() {
+        return lines.size();
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines.get(index);
+    }
+
+    public boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    public void add(String line) {
+        addAll(lines.size(), Collections.singletonList(line));
+    }
+
+    //addAll - inserts the lines before the given index with one event
+    public void addAll(int index, Collection<String> added) {
+        if (added.isEmpty()) return;
+        lines.addAll(index, added);
+        fireIntervalAdded(this, index, index + added.size() - 1);
+    }
+
+    //setAll - replaces all lines, one event for removing the old ones and one for adding the new ones
+    public void setAll(Collection<String> replacement) {
+        clear();
+        addAll(0, replacement);
+    }
+
+    public void clear() {
+        if (lines.isEmpty()) return;
+        int size = lines.size();
+        lines.clear();
+        fireIntervalRemoved(this, 0, size - 1);
+    }
+}
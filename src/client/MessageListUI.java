@@ -0,0 +1,160 @@
+package client;
+
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListModel;
+import javax.swing.plaf.basic.BasicListUI;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.awt.event.ComponentListener;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * client.MessageListUI lays out the message list without asking the renderer for every row. The standard list UI
+ * renders all rows to find their heights after every change and, since the messages wrap, after every resize, which
+ * takes seconds for a long conversation. Here a row is only measured when it is painted or scrolled to; the others
+ * are given the height of a one line message until then. Heights are cached by line text for each of the last few
+ * list widths, so switching back to a conversation or to an earlier width measures nothing again.
+ * <p>
+ * version 18.10.2026
+ */
+public class MessageListUI extends BasicListUI {
+    //list widths whose heights are kept
+    private static final int WIDTHS = 4;
+    //heights kept per width, all are dropped beyond this
+    private static final int MAX_HEIGHTS = 200000;
+    //a line of one word, measured for the height of rows not measured yet
+    private static final String ONE_LINE = "x: x";
+
+    //heights per line text, per width, least recently used width first
+    private final LinkedHashMap<Integer, HashMap<String, Integer>> byWidth = new LinkedHashMap<Integer, HashMap<String, Integer>>(8, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HashMap<String, Integer>> eldest) {
+            return size() > WIDTHS;
+        }
+    };
+    private HashMap<String, Integer> heights;
+    private int width = -1;
+    private ComponentListener resizeListener;
+
+    @Override
+    protected void installListeners() {
+        super.installListeners();
+        //wrapped rows change height with the width, which the standard list UI does not notice
+        resizeListener = new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                if (list.getWidth() == width) return;
+                updateLayoutStateNeeded = 1;
+                list.revalidate();
+                list.repaint();
+            }
+        };
+        list.addComponentListener(resizeListener);
+    }
+
+    @Override
+    protected void uninstallListeners() {
+        list.removeComponentListener(resizeListener);
+        super.uninstallListeners();
+    }
+
+    //updateLayoutState - row heights from the cache, estimated for rows not measured at this width
+    @Override
+    protected void updateLayoutState() {
+        if (list.getWidth() != width || heights == null) {
+            width = list.getWidth();
+            heights = byWidth.computeIfAbsent(width, key -> new HashMap<>());
+        }
+        if (heights.size() > MAX_HEIGHTS) heights.clear();
+        ListModel<?> model = list.getModel();
+        int size = model.getSize();
+        int estimate = size == 0 ? 0 : measure(ONE_LINE, 0);
+        if (cellHeights == null || cellHeights.length != size) cellHeights = new int[size];
+        for (int row = 0; row < size; row++) {
+            Integer height = heights.get(model.getElementAt(row));
+            cellHeights[row] = height != null ? height : estimate;
+        }
+        cellHeight = -1;
+        cellWidth = width;
+    }
+
+    //paint - measures the rows about to be painted first
+    @Override
+    public void paint(Graphics g, JComponent c) {
+        maybeUpdateLayoutState();
+        Rectangle clip = g.getClipBounds();
+        if (clip != null) {
+            int row = convertYToRow(clip.y);
+            if (row >= 0) {
+                for (int y = convertRowToY(row); row < cellHeights.length && y < clip.y + clip.height; row++) y += measure(row);
+            }
+        }
+        super.paint(g, c);
+    }
+
+    //getCellBounds - measures the rows first, and a screen above them, so scrolling to a row shows it where it ends up
+    //the raw list is BasicListUI's signature
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Rectangle getCellBounds(JList list, int index1, int index2) {
+        maybeUpdateLayoutState();
+        int from = Math.min(index1, index2);
+        int to = Math.max(index1, index2);
+        if (from >= 0 && to < cellHeights.length) {
+            int screen = list.getVisibleRect().height;
+            for (int row = from - 1, covered = 0; row >= 0 && covered < screen; row--) covered += measure(row);
+            for (int row = from; row <= to; row++) measure(row);
+        }
+        return super.getCellBounds(list, index1, index2);
+    }
+
+    //measure - measures a row, the list is laid out again if it is not as high as assumed
+    private int measure(int row) {
+        int height = measure((String) list.getModel().getElementAt(row), row);
+        if (height != cellHeights[row]) {
+            cellHeights[row] = height;
+            list.revalidate();
+        }
+        return height;
+    }
+
+    //measure - height of one line at the current width, from the cache or the renderer
+    private int measure(String line, int row) {
+        Integer known = heights.get(line);
+        if (known != null) return known;
+        JList<?> shown = list;
+        Component c = renderer().getListCellRendererComponent(shown, line, row, false, false);
+        rendererPane.add(c);
+        //the wrapped text needs its width before it can tell its height
+        c.setSize(width, Short.MAX_VALUE);
+        layout(c);
+        int height = c.getPreferredSize().height;
+        heights.put(line, height);
+        return height;
+    }
+
+    //renderer - the list's renderer; BasicListUI keeps the list raw, but it only ever shows the lines
+    @SuppressWarnings("unchecked")
+    private ListCellRenderer<Object> renderer() {
+        return (ListCellRenderer<Object>) list.getCellRenderer();
+    }
+
+    private static void layout(Component c) {
+        if (!(c instanceof Container)) return;
+        Container container = (Container) c;
+        container.doLayout();
+        for (Component child : container.getComponents()) layout(child);
+    }
+}
@@ -0,0 +1,181 @@
+package client;
+
+import javax.swing.ListModel;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * client.MessageSearch finds the lines of the open conversation containing the search text, as typed: the text is
+ * taken literally (no regular expression) and compiled once per query into a case-insensitive matcher. A new query
+ * is matched against a copy of the lines on a thread of its own, so the EDT never scans the whole conversation;
+ * afterwards the search listens to the message list and only matches the lines added, moving the matches below them.
+ * It keeps its own copy of the lines, so starting a scan costs one array copy.
+ * Matches are kept as sorted line numbers, everything but the full scan happens on the EDT.
+ * <p>
+ * version 18.10.2026
+ */
+public class MessageSearch implements ListDataListener {
+    //more lines added at once than this are matched on the search thread
+    private static final int EDT_LINES = 1000;
+
+    private final ListModel<String> lines;
+    //the lines as an array list, copied in one go for a scan
+    private final ArrayList<String> mirror = new ArrayList<>();
+    //run on the EDT whenever the matches change
+    private final Runnable onChange;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "client.MessageSearch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //null without a query
+    private Pattern pattern;
+    private Matcher matcher;
+    private int[] matches = new int[16];
+    private int size;
+    //counts the full scans, a scan's result is only used if no newer one has been started
+    private int scans;
+    private boolean scanning;
+
+    public MessageSearch(ListModel<String> lines, Runnable onChange) {
+        this.lines = lines;
+        this.onChange = onChange;
+        for (int i = 0; i < lines.getSize(); i++) mirror.add(lines.getElementAt(i));
+        lines.addListDataListener(this);
+    }
+
+    //setQuery - starts searching for the text, an empty text stops searching
+    public void setQuery(String query) {
+        pattern = query.isEmpty() ? null : Pattern.compile(Pattern.quote(query), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+        matcher = pattern == null ? null : pattern.matcher("");
+        size = 0;
+        if (pattern == null) {
+            scans++;
+            scanning = false;
+            onChange.run();
+        } else scan();
+    }
+
+    //getPattern - the compiled query for highlighting, null without a query
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    public int count() {
+        return size;
+    }
+
+    //next - the first matching line after the given one, from the top again after the last; -1 if none matches
+    public int next(int after) {
+        if (size == 0) return -1;
+        int at = Arrays.binarySearch(matches, 0, size, after + 1);
+        if (at < 0) at = -at - 1;
+        return matches[at < size ? at : 0];
+    }
+
+    //position - 1 based number of the matching line among all matches, 0 if it is not one
+    public int position(int line) {
+        int at = Arrays.binarySearch(matches, 0, size, line);
+        return at >= 0 ? at + 1 : 0;
+    }
+
+    @Override
+    public void intervalAdded(ListDataEvent e) {
+        ArrayList<String> added = new ArrayList<>(e.getIndex1() - e.getIndex0() + 1);
+        for (int i = e.getIndex0(); i <= e.getIndex1(); i++) added.add(lines.getElementAt(i));
+        mirror.addAll(e.getIndex0(), added);
+        if (pattern == null) return;
+        int count = added.size();
+        //lines added while a scan runs are in no snapshot yet, another scan covers them
+        if (scanning || count > EDT_LINES) {
+            scan();
+            return;
+        }
+        int at = shift(e.getIndex0(), count);
+        int[] found = new int[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (matcher.reset(added.get(i)).find()) found[n++] = e.getIndex0() + i;
+        }
+        if (n > 0) {
+            ensureCapacity(size + n);
+            System.arraycopy(matches, at, matches, at + n, size - at);
+            System.arraycopy(found, 0, matches, at, n);
+            size += n;
+        }
+        onChange.run();
+    }
+
+    @Override
+    public void intervalRemoved(ListDataEvent e) {
+        mirror.subList(e.getIndex0(), e.getIndex1() + 1).clear();
+        if (pattern == null) return;
+        if (scanning) {
+            scan();
+            return;
+        }
+        int count = e.getIndex1() - e.getIndex0() + 1;
+        int from = Arrays.binarySearch(matches, 0, size, e.getIndex0());
+        if (from < 0) from = -from - 1;
+        int to = from;
+        while (to < size && matches[to] <= e.getIndex1()) to++;
+        for (int i = to; i < size; i++) matches[i] -= count;
+        System.arraycopy(matches, to, matches, from, size - to);
+        size -= to - from;
+        onChange.run();
+    }
+
+    @Override
+    public void contentsChanged(ListDataEvent e) {
+        for (int i = Math.max(0, e.getIndex0()); i <= e.getIndex1() && i < lines.getSize(); i++) mirror.set(i, lines.getElementAt(i));
+        if (pattern != null) scan();
+    }
+
+    //shift - moves the matches at or below the line down by count lines, returns where matches for the line go
+    private int shift(int line, int count) {
+        int at = Arrays.binarySearch(matches, 0, size, line);
+        if (at < 0) at = -at - 1;
+        for (int i = at; i < size; i++) matches[i] += count;
+        return at;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (matches.length < capacity) matches = Arrays.copyOf(matches, Math.max(capacity, matches.length * 2));
+    }
+
+    //scan - matches a copy of all lines on the search thread and replaces the matches with the result
+    private void scan() {
+        int scan = ++scans;
+        scanning = true;
+        String[] copy = mirror.toArray(new String[0]);
+        Pattern query = pattern;
+        worker.execute(() -> {
+            Matcher m = query.matcher("");
+            int[] found = new int[16];
+            int n = 0;
+            for (int i = 0; i < copy.length; i++) {
+                if (!m.reset(copy[i]).find()) continue;
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = i;
+            }
+            int[] result = found;
+            int count = n;
+            SwingUtilities.invokeLater(() -> {
+                if (scan != scans) return;
+                scanning = false;
+                matches = result;
+                size = count;
+                onChange.run();
+            });
+        });
+    }
+}
@@ -0,0 +1,130 @@
+package client;
+
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * client.ViewUpdates carries the changes the reading thread makes to the view over to the EDT. Changes are queued
+ * and applied together at most once per frame (chat.client.frameMillis, default 33): online status changes of the
+ * same contact are merged so only the last one counts, and consecutive messages for the same chat are added to the
+ * message list in one go. Everything else runs in the order it was posted, messages included.
+ * <p>
+ * version 18.10.2026
+ */
+public class ViewUpdates {
+    private static final int FRAME_MILLIS = Integer.getInteger("chat.client.frameMillis", 33);
+
+    //what a frame's changes are applied with, called on the EDT
+    public interface View {
+        //presence - the latest status of every contact which changed, true if online
+        void presence(Map<String, Boolean> online);
+
+        //messages - lines for one chat, in the order they came
+        void messages(String chatBox, List<String> lines);
+    }
+
+    //a message line waiting in the queue
+    private static class Line {
+        private final String chatBox;
+        private final String text;
+
+        Line(String chatBox, String text) {
+            this.chatBox = chatBox;
+            this.text = text;
+        }
+    }
+
+    private final View view;
+    private final ReentrantLock lock = new ReentrantLock();
+    //Runnables and Lines in the order they were posted
+    private ArrayList<Object> queue = new ArrayList<>();
+    private LinkedHashMap<String, Boolean> presence = new LinkedHashMap<>();
+    private boolean scheduled;
+    private long lastFrame;
+    private final Timer timer;
+
+    public ViewUpdates(View view) {
+        this.view = view;
+        timer = new Timer(0, e -> frame());
+        timer.setRepeats(false);
+    }
+
+    //post - runs the change on the EDT in the next frame
+    public void post(Runnable change) {
+        add(change);
+    }
+
+    //message - adds a line to a chat in the next frame
+    public void message(String chatBox, String text) {
+        add(new Line(chatBox, text));
+    }
+
+    //presence - sets a contact's status in the next frame, replacing a change of it not applied yet
+    public void presence(String login, boolean online) {
+        lock.lock();
+        try {
+            presence.remove(login);
+            presence.put(login, online);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void add(Object change) {
+        lock.lock();
+        try {
+            queue.add(change);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //schedule - starts the timer for the next frame unless it runs already, the lock is held
+    private void schedule() {
+        if (scheduled) return;
+        scheduled = true;
+        timer.setInitialDelay((int) Math.max(0, lastFrame + FRAME_MILLIS - System.currentTimeMillis()));
+        timer.start();
+    }
+
+    //frame - applies everything queued, on the EDT
+    private void frame() {
+        ArrayList<Object> changes;
+        LinkedHashMap<String, Boolean> online;
+        lock.lock();
+        try {
+            changes = queue;
+            online = presence;
+            queue = new ArrayList<>();
+            presence = new LinkedHashMap<>();
+            scheduled = false;
+            lastFrame = System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+        int i = 0;
+        while (i < changes.size()) {
+            Object change = changes.get(i++);
+            if (change instanceof Runnable) {
+                ((Runnable) change).run();
+                continue;
+            }
+            Line first = (Line) change;
+            ArrayList<String> lines = new ArrayList<>();
+            lines.add(first.text);
+            while (i < changes.size() && changes.get(i) instanceof Line && ((Line) changes.get(i)).chatBox.equals(first.chatBox))
+                lines.add(((Line) changes.get(i++)).text);
+            view.messages(first.chatBox, lines);
+        }
+        //after the changes, which may add the contacts
+        if (!online.isEmpty()) view.presence(online);
+    }
+}
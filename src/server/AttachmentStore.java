@@ -0,0 +1,152 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.AttachmentStore keeps attachments as files under chat.attachments.dir (default "attachments"), named by the
+ * SHA-256 of their content. Messages only carry that name (the attachment reference), so the same file sent twice
+ * is stored once and the database holds no file content. Uploads are hashed through a direct buffer; downloads are
+ * read chunk by chunk by server.FileTransfers, since every chunk goes out as a frame of the session's codec.
+ * <p>
+ * version 18.10.2026
+ */
+public class AttachmentStore {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private Path root;
+    private Path incoming;
+
+    private AtomicLong stored = new AtomicLong();
+    private AtomicLong deduplicated = new AtomicLong();
+    private AtomicLong storedBytes = new AtomicLong();
+    private AtomicLong servedBytes = new AtomicLong();
+
+    public AttachmentStore() throws IOException {
+        this(Paths.get(System.getProperty("chat.attachments.dir", "attachments")));
+    }
+
+    public AttachmentStore(Path root) throws IOException {
+        this.root = root;
+        this.incoming = root.resolve("incoming");
+        Files.createDirectories(incoming);
+        removeStaleParts();
+    }
+
+    //commit - files a completely written temporary file under its content hash, the temporary file is gone afterwards
+    String commit(Path temp, MessageDigest digest) throws IOException {
+        String reference = hex(digest.digest());
+        Path target = path(reference);
+        if (Files.exists(target)) {
+            deduplicated.incrementAndGet();
+            Files.deleteIfExists(temp);
+            return reference;
+        }
+        Files.createDirectories(target.getParent());
+        long size = Files.size(temp);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            //the same content arrived twice at the same time
+            deduplicated.incrementAndGet();
+            Files.deleteIfExists(temp);
+            return reference;
+        }
+        stored.incrementAndGet();
+        storedBytes.addAndGet(size);
+        return reference;
+    }
+
+    public boolean contains(String reference) {
+        return isReference(reference) && Files.isRegularFile(path(reference));
+    }
+
+    public long size(String reference) throws IOException {
+        return Files.size(path(reference));
+    }
+
+    //open - the attachment for reading, the caller closes it
+    public FileChannel open(String reference) throws IOException {
+        return FileChannel.open(path(reference), StandardOpenOption.READ);
+    }
+
+    //served - counts bytes of attachments sent to clients
+    void served(long bytes) {
+        servedBytes.addAndGet(bytes);
+    }
+
+    //partFile - where an upload is received, the same for the same user and upload id so it can be resumed
+    Path partFile(String login, String uploadId) {
+        MessageDigest digest = sha256();
+        digest.update((login + "\n" + uploadId).getBytes(StandardCharsets.UTF_8));
+        return incoming.resolve(hex(digest.digest()) + ".part");
+    }
+
+    //commitPart - files a completely received upload and returns its reference
+    String commitPart(Path part) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return commit(part, digest);
+    }
+
+    //removeStaleParts - deletes uploads nobody has continued for chat.transfer.partMaxAgeHours (default 24)
+    public void removeStaleParts() throws IOException {
+        long limit = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(Long.getLong("chat.transfer.partMaxAgeHours", 24));
+        try (DirectoryStream<Path> parts = Files.newDirectoryStream(incoming)) {
+            for (Path part : parts) {
+                if (Files.getLastModifiedTime(part).toMillis() < limit) Files.deleteIfExists(part);
+            }
+        }
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        return "stored=" + stored.get() + " storedBytes=" + storedBytes.get() + " deduplicated=" + deduplicated.get() +
+                " servedBytes=" + servedBytes.get();
+    }
+
+    //path - where the attachment lives: two levels of directories from the start of the hash keep them small
+    private Path path(String reference) {
+        if (!isReference(reference)) throw new IllegalArgumentException("Not an attachment reference: " + reference);
+        return root.resolve(reference.substring(0, 2)).resolve(reference.substring(2, 4)).resolve(reference);
+    }
+
+    public static boolean isReference(String reference) {
+        if (reference == null || reference.length() != 64) return false;
+        for (int i = 0; i < reference.length(); i++) {
+            char c = reference.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,368 @@
+package server;
+
+import supplementary.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman, Ali, Maurice, Nabeel, Ioana
+ * <p>
+ * server.ClientSession holds everything the server does for one particular client (login, registration, messages, groups)
+ * using supplementary.Protocol. How the bytes reach the client is left to subclasses:
+ * server.NewServerThread works with blocking streams on its own thread, server.NioSession lives on a selector event loop.
+ * <p>
+ * version 18.10.2026
+ */
+public abstract class ClientSession {
+    //most logins one CONTACTS page may have
+    private static final int CONTACTS_MAX_PAGE = 500;
+
+    protected ServerModel server;
+    protected User currentUser;
+    protected Protocol protocol;
+    //frames waiting for this session's writer
+    protected OutboundQueue outbound = new OutboundQueue();
+    //attachment uploads and downloads of this session
+    protected FileTransfers transfers;
+
+    //users, groups and messages are read and written through server.getStore()
+    public ClientSession(ServerModel server) {
+        this.server = server;
+        this.protocol = new Protocol(this);
+        this.transfers = new FileTransfers(this, server.getAttachments());
+    }
+
+    //send - queues objects for this session's client and returns without waiting for the socket.
+    //Objects of one call are guaranteed to arrive one after another. Presence updates are dropped when the client is
+    //behind, a client which stays behind is disconnected (see server.OutboundQueue).
+    public void send(Object... objects) throws IOException {
+        FrameCodec codec = getCodec();
+        byte[][] payloads = new byte[objects.length][];
+        for (int i = 0; i < objects.length; i++) payloads[i] = codec.encode(objects[i]);
+        sendEncoded(payloads, isPresence(objects));
+    }
+
+    //sendEncoded - like send() for payloads already encoded with getCodec()
+    protected void sendEncoded(byte[][] payloads, boolean presence) {
+        switch (outbound.offer(payloads, presence)) {
+            case QUEUED:
+                outboundReady();
+                break;
+            case OVERFLOW:
+                System.out.println("server.ClientSession: disconnecting slow client " +
+                        (currentUser == null ? "" : currentUser.getLogin()));
+                server.countSlowConsumer();
+                disconnect();
+                break;
+            default:
+                break;
+        }
+    }
+
+    //codec agreed with this session's client
+    protected abstract FrameCodec getCodec();
+
+    //outboundReady - tells the writer that frames are waiting
+    protected abstract void outboundReady();
+
+    //disconnect - drops the connection from any thread, the session cleans up like after a network failure
+    public abstract void disconnect();
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    private static boolean isPresence(Object[] objects) {
+        if (objects.length != 1 || !(objects[0] instanceof Message)) return false;
+        int command = ((Message) objects[0]).getCommand();
+        return command == Protocol.ONLINE || command == Protocol.OFFLINE || command == Protocol.PRESENCE;
+    }
+
+    //createGroup - reads the conversation following CREATE_GROUP command and creates the group
+    public abstract void createGroup();
+
+    //uploadChunk - reads the bytes following UPLOAD_CHUNK command and hands them to the session's transfers
+    public abstract void uploadChunk(Message header);
+
+    public FileTransfers getTransfers() {
+        return transfers;
+    }
+
+    //Sending message as an object and storing it in the database (see server.MessageWriter).
+    //An attachment travels as a reference into server.AttachmentStore (supplementary.Protocol.ATTACHMENT).
+    public void sendMessage(Message message) {
+        try {
+            String from = message.getContent()[0];
+            int to = Integer.valueOf(message.getContent()[1]);
+            String content = message.getContent()[2];
+            String attachment = attachment(message);
+
+            //Queueing the insert, the writer thread stores it together with other messages
+            MessageWriter writer = server.getMessageWriter();
+            MessageWriter.Pending pending = writer.write(to, from, content, new Timestamp(System.currentTimeMillis()),
+                    attachment == null ? null : attachment.getBytes(StandardCharsets.US_ASCII));
+            long id = pending.getId();
+            //recipients get the id, so their history caches can tell what they have
+            Message delivered = new Message(Protocol.MESSAGE, new String[]{from, message.getContent()[1], content,
+                    attachment == null ? "" : attachment, String.valueOf(id)});
+
+            //the sender is told if the message could not be stored
+            String sender = currentUser.getLogin();
+            Message failed = new Message(Protocol.MESSAGE_FAILED, new String[]{message.getContent()[1], content});
+            if (writer.getDurability() == MessageWriter.Durability.COMMIT) {
+                //delivering only what has been stored, on the writer thread once the batch is committed
+                pending.getCommitted().whenComplete((stored, failure) -> {
+                    if (failure == null) deliver(delivered, id, to, sender);
+                    else notStored(failed);
+                });
+            } else {
+                deliver(delivered, id, to, sender);
+                //the recipients have seen it, but it will be missing from the history
+                pending.getCommitted().whenComplete((stored, failure) -> {
+                    if (failure != null) notStored(failed);
+                });
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void notStored(Message failed) {
+        try {
+            send(failed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //attachment - reference of the message's attachment, null if it has none or refers to nothing stored.
+    //Attachments only come in through UPLOAD; a java.io.File sent by an old client names a path on the client's
+    //disk and is never read here, since the server would otherwise hand out any file it can read.
+    private String attachment(Message message) {
+        String[] content = message.getContent();
+        if (content.length <= Protocol.ATTACHMENT) return null;
+        String reference = content[Protocol.ATTACHMENT];
+        return server.getAttachments().contains(reference) ? reference : null;
+    }
+
+    //Sending message to everyone in corresponding group except the sender, members come from the cache
+    private void deliver(Message message, long id, int to, String sender) {
+        server.getHistory().delivered(to, id, message.getContent()[0], message.getContent()[2]);
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) cluster.delivered(to, id, message.getContent()[0] + ": " + message.getContent()[2]);
+        try {
+            ArrayList<String> recipients = new ArrayList<>(server.getGroups().members(to));
+            recipients.remove(sender);
+            //members on other nodes of a cluster get it with one forward per node
+            server.getSessions().sendToAll(recipients, message);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //register - only creates the user, private conversations are created when first opened (see openPrivate)
+    public void register(String username, String password, String legalName) throws IOException {
+        MessageStore store = server.getStore();
+        try {
+            if (store.user(username) != null) throw new IllegalArgumentException();
+
+            //Creating the user in the store
+            store.addUser(server.getIds().nextInt(IdAllocator.Kind.USER), username, password, legalName);
+            send(new Message(Protocol.TRUE));
+
+            //online users add the new user to their contact directory
+            server.getSessions().sendToEveryone(new Message(Protocol.REGISTER, new String[]{username}));
+        } catch (IOException e) {
+            e.printStackTrace();
+            send(new Message(Protocol.FALSE));
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            System.out.println("Username already exists!");
+            send(new Message(Protocol.FALSE));
+        }
+
+    }
+
+    //sendContacts - one page of the user directory: {after login, page size} gets {"true" if there is more} and the logins
+    public void sendContacts(String[] request) {
+        try {
+            String after = request.length > 0 ? request[0] : "";
+            int limit = request.length > 1 ? Math.min(Integer.parseInt(request[1]), CONTACTS_MAX_PAGE) : CONTACTS_MAX_PAGE;
+            //one more than asked for tells whether there is a next page
+            ArrayList<String> logins = new ArrayList<>(server.getStore().logins(after, limit + 1));
+            boolean more = logins.size() > limit;
+            if (more) logins.remove(limit);
+            send(new Message(Protocol.CONTACTS, new String[]{String.valueOf(more)}), logins);
+        } catch (NumberFormatException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //openPrivate - {other login}: creates the private conversation with the other user unless it exists,
+    //either way the asking user gets it with CREATE_GROUP. The lock only spares this server repeated work,
+    //the store decides which of two servers creating the conversation at once gets it
+    public void openPrivate(String[] request) {
+        if (currentUser == null) return;
+        String login = currentUser.getLogin();
+        String other = request[0];
+        if (other.equals(login)) return;
+        PrivateConversations privates = server.getPrivateConversations();
+        ReentrantLock lock = privates.lock(login, other);
+        lock.lock();
+        try {
+            Conversation conversation = new Conversation(PrivateConversations.NAME,
+                    new ArrayList<>(Arrays.asList(login, other)));
+            int id = privates.find(login, other);
+            if (id < 0) {
+                if (server.getStore().user(other) == null) return;
+                int nextGroupId = server.getIds().nextInt(IdAllocator.Kind.GROUP);
+                id = server.getStore().addPrivateGroup(nextGroupId, login, other);
+                privates.countOpened(id == nextGroupId);
+                if (id == nextGroupId) {
+                    groupCreated(id, conversation);
+                    return;
+                }
+                //created by another server, whose GROUP_CHANGED may not be here yet
+                server.getGroups().putGroup(id, PrivateConversations.NAME, conversation.getParticipants());
+            } else privates.countOpened(false);
+            send(new Message(Protocol.CREATE_GROUP), id, conversation);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void login(String username, String password) throws IOException {
+        try {
+            //checking user existence and password
+            User user = server.getStore().user(username);
+            if (user != null && user.getLogin().equals(username) && user.getPassword().equals(password)) {
+                // send to user conversations information, the contact list comes encoded from server.LoginSnapshots
+                FrameCodec codec = getCodec();
+                byte[] conversations = server.getLoginSnapshots().encoded(username, codec);
+                currentUser = user;
+                //the overlap tells the client how far below its newest cached id it has to ask again
+                Message accepted = new Message(Protocol.TRUE, new String[]{String.valueOf(IdAllocator.SYNC_OVERLAP)});
+                sendEncoded(new byte[][]{codec.encode(accepted), conversations}, false);
+
+                // online contacts to the user, the user to its contacts
+                server.getPresence().loggedIn(this);
+            } else {
+                send(new Message(Protocol.FALSE));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            send(new Message(Protocol.FALSE));
+        }
+    }
+
+    protected void logoff() throws IOException {
+        System.out.println("logoff");
+        server.getThreadPool().remove(this);
+        transfers.close();
+        if (currentUser == null) return;
+        //others are told when the user's last client is gone
+        server.getPresence().loggedOff(this);
+    }
+
+    public User getCurrentUser() {
+        return currentUser;
+    }
+
+    //sendHistory - sends one page of a conversation's history, see supplementary.Protocol.HISTORY_NEWEST
+    public void sendHistory(String[] request) {
+        try {
+            int groupId = Integer.parseInt(request[0]);
+            int limit = MessageHistory.pageSize(request.length > 1 ? Integer.parseInt(request[1]) : 0);
+            String direction = request.length > 3 ? request[2] : Protocol.HISTORY_NEWEST;
+            MessageHistory history = server.getHistory();
+            MessageHistory.Page page;
+            if (direction.equals(Protocol.HISTORY_BEFORE)) page = history.before(groupId, Long.parseLong(request[3]), limit);
+            else if (direction.equals(Protocol.HISTORY_AFTER)) page = history.after(groupId, Long.parseLong(request[3]), limit);
+            else {
+                direction = Protocol.HISTORY_NEWEST;
+                page = history.newest(groupId, limit);
+            }
+            Message answer = new Message(Protocol.HISTORY, new String[]{request[0], direction, String.valueOf(page.getOldestId()),
+                    String.valueOf(page.getNewestId()), String.valueOf(page.hasMore())});
+            if (request.length > 4 && request[4].equals(Protocol.HISTORY_IDS)) {
+                ArrayList<String> ids = new ArrayList<>(page.getIds().size());
+                for (long id : page.getIds()) ids.add(String.valueOf(id));
+                send(answer, page.getMessages(), ids);
+            } else send(answer, page.getMessages());
+        } catch (NumberFormatException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //search - one page of hits for a query in all conversations of the user, see supplementary.Protocol.SEARCH
+    public void search(String[] request) {
+        if (currentUser == null) return;
+        try {
+            String query = request[0];
+            long before = request.length > 1 && !request[1].isEmpty() ? Long.parseLong(request[1]) : Long.MAX_VALUE;
+            int limit = request.length > 2 ? Integer.parseInt(request[2]) : SearchIndex.MAX_PAGE;
+            limit = limit <= 0 ? SearchIndex.MAX_PAGE : Math.min(limit, SearchIndex.MAX_PAGE);
+            SearchIndex.Result result = server.getSearch().search(server.getGroups().groupsOf(currentUser.getLogin()),
+                    query, before, limit);
+            ArrayList<String> hits = new ArrayList<>();
+            for (SearchIndex.Hit hit : result.getHits()) {
+                hits.add(String.valueOf(hit.getGroupId()));
+                hits.add(String.valueOf(hit.getId()));
+                hits.add(hit.getSnippet());
+            }
+            String next = result.getHits().isEmpty() ? "" :
+                    String.valueOf(result.getHits().get(result.getHits().size() - 1).getId());
+            send(new Message(Protocol.SEARCH, new String[]{query, String.valueOf(result.hasMore()), next,
+                    String.valueOf(result.isComplete())}), hits);
+        } catch (NumberFormatException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //creating the group described by the conversation and notifying its online participants
+    protected void createGroup(Conversation conversation) {
+        try {
+            int nextGroupId = server.getIds().nextInt(IdAllocator.Kind.GROUP);
+            server.getStore().addGroup(nextGroupId, conversation.getName(), conversation.getParticipants());
+            groupCreated(nextGroupId, conversation);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //groupCreated - after the store: caches the group, tells the other servers and sends it to its members
+    private void groupCreated(int id, Conversation conversation) {
+        server.getGroups().putGroup(id, conversation.getName(), conversation.getParticipants());
+        groupChanged(id, conversation.getParticipants());
+        server.getPresence().joined(conversation.getParticipants());
+        server.getSessions().sendToAll(conversation.getParticipants(), new Message(Protocol.CREATE_GROUP), id, conversation);
+    }
+
+    public void leaveGroup(Message message) {
+        try {
+            String login = message.getContent()[0];
+            int id = Integer.valueOf(message.getContent()[1]);
+            server.getSessions().sendToAll(server.getGroups().members(id), message);
+            server.getStore().removeMember(id, login);
+            server.getGroups().removeMember(id, login);
+            ArrayList<String> changed = new ArrayList<>(server.getGroups().members(id));
+            changed.add(login);
+            groupChanged(id, changed);
+            System.out.println("leaveGroup");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //groupChanged - the other nodes of a cluster drop what they have cached about the group and its members
+    private void groupChanged(int id, Collection<String> members) {
+        ClusterNode cluster = server.getCluster();
+        if (cluster != null) cluster.groupChanged(id, members);
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.ClusterBus carries opaque payloads between the nodes of a cluster for server.ClusterNode. A payload sent
+ * to one node arrives there once and in the order it was sent, or not at all if the node is not reachable; the bus
+ * reports nodes coming and going so the routing can be corrected. server.LocalBus connects nodes inside one JVM,
+ * server.SocketBus connects them over TCP (on one machine through loopback).
+ * <p>
+ * version 18.10.2026
+ */
+public interface ClusterBus {
+
+    //Receiver gets everything arriving from the other nodes, called on the bus's own threads
+    interface Receiver {
+        void nodeUp(String node);
+
+        void nodeDown(String node);
+
+        void receive(String node, byte[] payload);
+    }
+
+    //nodeId - the name of this node, unique in the cluster
+    String nodeId();
+
+    //start - joins the cluster, the receiver is told about every node already there
+    void start(Receiver receiver) throws IOException;
+
+    //send - payload for one node, dropped if the node is not connected; never dropped silently while it is, a bus
+    //that cannot keep up takes the node down and up again so the receiver resyncs it
+    void send(String node, byte[] payload);
+
+    //broadcast - payload for every other node
+    void broadcast(byte[] payload);
+
+    //nodes - the other nodes currently connected
+    Set<String> nodes();
+
+    void close();
+
+    //report - counters for server.ServerStats
+    String report();
+}
@@ -0,0 +1,290 @@
+package server;
+
+import supplementary.BinaryCodec;
+import supplementary.FrameCodec;
+import supplementary.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.ClusterNode makes one server a node of a cluster behind a load balancer. Every node keeps its own sessions
+ * and tells the others (over a server.ClusterBus) which users it holds, so each node knows where every online user
+ * is. Objects for a user on another node are sent to that node only, one bus message per node however many of its
+ * users get them. Group changes are announced to every node so their caches drop what changed, and lines for a
+ * group's recent history go to the nodes which keep that group in server.RecentMessages.
+ * <p>
+ * version 18.10.2026
+ */
+public class ClusterNode implements ClusterBus.Receiver {
+    //bus message types, the first frame of every bus message is a supplementary.Message with one of them
+    private static final int DELIVER = 1;
+    private static final int DELIVER_ONLINE = 2;
+    private static final int ROUTE_ADD = 3;
+    private static final int ROUTE_REMOVE = 4;
+    private static final int ROUTES = 5;
+    private static final int GROUP_CHANGED = 6;
+    private static final int RECENT_ADD = 7;
+    private static final int RECENT_DROP = 8;
+    private static final int RECENT_GROUPS = 9;
+    private static final int RECENT_LINE = 10;
+
+    private ServerModel server;
+    private ClusterBus bus;
+    //bus messages are always in the binary codec, whatever the clients speak
+    private FrameCodec codec = new BinaryCodec();
+    //login to the other nodes it has sessions on
+    private ConcurrentHashMap<String, Set<String>> routes = new ConcurrentHashMap<>();
+    //node to the logins it holds, for cleaning up when it goes away
+    private ConcurrentHashMap<String, Set<String>> loginsByNode = new ConcurrentHashMap<>();
+    //group id to the other nodes keeping its recent history
+    private ConcurrentHashMap<Integer, Set<String>> recentByGroup = new ConcurrentHashMap<>();
+    //node to the groups whose recent history it keeps
+    private ConcurrentHashMap<String, Set<Integer>> recentByNode = new ConcurrentHashMap<>();
+
+    private AtomicLong forwarded = new AtomicLong();
+    private AtomicLong received = new AtomicLong();
+
+    public ClusterNode(ServerModel server, ClusterBus bus) {
+        this.server = server;
+        this.bus = bus;
+    }
+
+    public void start() throws IOException {
+        bus.start(this);
+        System.out.println("server.ClusterNode: node " + bus.nodeId() + " started");
+    }
+
+    public ClusterBus getBus() {
+        return bus;
+    }
+
+    //isOnlineElsewhere - true if the user has a session on another node
+    public boolean isOnlineElsewhere(String login) {
+        return routes.containsKey(login);
+    }
+
+    //forward - sends objects to the sessions of the users on other nodes, one bus message per node
+    public void forward(Collection<String> logins, Object... objects) {
+        Map<String, List<String>> byNode = new HashMap<>();
+        for (String login : logins) {
+            Set<String> nodes = routes.get(login);
+            if (nodes == null) continue;
+            for (String node : nodes) byNode.computeIfAbsent(node, key -> new ArrayList<>()).add(login);
+        }
+        if (byNode.isEmpty()) return;
+        byNode.forEach((node, list) -> send(node, DELIVER, list.toArray(new String[0]), objects));
+    }
+
+    //forwardToEveryone - sends objects to every user online on the other nodes
+    public void forwardToEveryone(Object... objects) {
+        broadcast(DELIVER_ONLINE, new String[0], objects);
+    }
+
+    //localUserAdded and localUserRemoved - a user's first session on this node has come, last one has gone
+    public void localUserAdded(String login) {
+        broadcast(ROUTE_ADD, new String[]{login});
+    }
+
+    public void localUserRemoved(String login) {
+        broadcast(ROUTE_REMOVE, new String[]{login});
+    }
+
+    //groupChanged - members or name of a group have been changed by this node
+    public void groupChanged(int groupId, Collection<String> members) {
+        String[] content = new String[members.size() + 1];
+        content[0] = String.valueOf(groupId);
+        int i = 1;
+        for (String member : members) content[i++] = member;
+        broadcast(GROUP_CHANGED, content);
+    }
+
+    //recentKept and recentDropped - this node has started or stopped keeping a group's recent history
+    public void recentKept(int groupId) {
+        broadcast(RECENT_ADD, new String[]{String.valueOf(groupId)});
+    }
+
+    public void recentDropped(int groupId) {
+        broadcast(RECENT_DROP, new String[]{String.valueOf(groupId)});
+    }
+
+    //delivered - a message of a group delivered by this node, for the nodes keeping the group's recent history
+    public void delivered(int groupId, long id, String line) {
+        Set<String> nodes = recentByGroup.get(groupId);
+        if (nodes == null) return;
+        for (String node : nodes) send(node, RECENT_LINE, new String[]{String.valueOf(groupId), String.valueOf(id), line});
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        return bus.report() + " remoteUsers=" + routes.size() + " forwarded=" + forwarded.get() + " received=" + received.get();
+    }
+
+    @Override
+    public void nodeUp(String node) {
+        //the new node learns who is here and which recent histories are kept here
+        Set<String> local = server.getSessions().localLogins();
+        send(node, ROUTES, local.toArray(new String[0]));
+        List<String> groups = new ArrayList<>();
+        for (int groupId : server.getHistory().getRecent().groups()) groups.add(String.valueOf(groupId));
+        send(node, RECENT_GROUPS, groups.toArray(new String[0]));
+    }
+
+    @Override
+    public void nodeDown(String node) {
+        Set<String> logins = loginsByNode.remove(node);
+        if (logins != null) {
+            for (String login : logins) {
+                if (removeRoute(login, node) && !server.getSessions().isOnline(login)) server.getPresence().goneWithNode(login);
+            }
+        }
+        Set<Integer> groups = recentByNode.remove(node);
+        if (groups != null) {
+            for (int groupId : groups) removeFrom(recentByGroup, groupId, node);
+        }
+    }
+
+    @Override
+    public void receive(String node, byte[] payload) {
+        received.incrementAndGet();
+        try {
+            Object[] frames = unpack(payload);
+            Message header = (Message) frames[0];
+            String[] content = header.getContent();
+            Object[] objects = Arrays.copyOfRange(frames, 1, frames.length);
+            switch (header.getCommand()) {
+                case DELIVER:
+                    for (String login : content) server.getSessions().sendToLocal(login, objects);
+                    break;
+                case DELIVER_ONLINE:
+                    for (String login : server.getSessions().localLogins()) server.getSessions().sendToLocal(login, objects);
+                    break;
+                case ROUTES:
+                    for (String login : content) addRoute(login, node);
+                    break;
+                case ROUTE_ADD:
+                    addRoute(content[0], node);
+                    break;
+                case ROUTE_REMOVE:
+                    removeRoute(content[0], node);
+                    removeFrom(loginsByNode, node, content[0]);
+                    break;
+                case GROUP_CHANGED:
+                    int groupId = Integer.parseInt(content[0]);
+                    server.getGroups().invalidate(groupId);
+                    server.getGroups().invalidateUsers(Arrays.asList(content).subList(1, content.length));
+                    break;
+                case RECENT_GROUPS:
+                    for (String id : content) addTo(recentByGroup, recentByNode, Integer.parseInt(id), node);
+                    break;
+                case RECENT_ADD:
+                    addTo(recentByGroup, recentByNode, Integer.parseInt(content[0]), node);
+                    break;
+                case RECENT_DROP:
+                    removeFrom(recentByGroup, Integer.parseInt(content[0]), node);
+                    removeFrom(recentByNode, node, Integer.parseInt(content[0]));
+                    break;
+                case RECENT_LINE:
+                    server.getHistory().getRecent().add(Integer.parseInt(content[0]), Long.parseLong(content[1]), content[2]);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void addRoute(String login, String node) {
+        routes.computeIfAbsent(login, key -> ConcurrentHashMap.newKeySet()).add(node);
+        loginsByNode.computeIfAbsent(node, key -> ConcurrentHashMap.newKeySet()).add(login);
+    }
+
+    //removeRoute - true if the user has no session on other nodes any more
+    private boolean removeRoute(String login, String node) {
+        boolean[] last = new boolean[1];
+        routes.computeIfPresent(login, (key, nodes) -> {
+            nodes.remove(node);
+            last[0] = nodes.isEmpty();
+            return last[0] ? null : nodes;
+        });
+        return last[0];
+    }
+
+    private static <K> void addTo(ConcurrentHashMap<K, Set<String>> byKey, ConcurrentHashMap<String, Set<K>> byNode, K key, String node) {
+        byKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(node);
+        byNode.computeIfAbsent(node, k -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private static <K, V> void removeFrom(ConcurrentHashMap<K, Set<V>> map, K key, V value) {
+        map.computeIfPresent(key, (k, set) -> {
+            set.remove(value);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void send(String node, int type, String[] content, Object... objects) {
+        try {
+            bus.send(node, pack(type, content, objects));
+            forwarded.incrementAndGet();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void broadcast(int type, String[] content, Object... objects) {
+        if (bus.nodes().isEmpty()) return;
+        try {
+            bus.broadcast(pack(type, content, objects));
+            forwarded.incrementAndGet();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //pack - the header and the objects as length prefixed frames in one payload
+    private byte[] pack(int type, String[] content, Object[] objects) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(objects.length + 1);
+        byte[] header = codec.encode(new Message(type, content));
+        out.writeInt(header.length);
+        out.write(header);
+        for (Object object : objects) {
+            byte[] frame = codec.encode(object);
+            out.writeInt(frame.length);
+            out.write(frame);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private Object[] unpack(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        Object[] frames = new Object[in.readInt()];
+        for (int i = 0; i < frames.length; i++) {
+            byte[] frame = new byte[FrameCodec.checkLength(in.readInt())];
+            in.readFully(frame);
+            try {
+                frames[i] = codec.decode(frame, 0, frame.length);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,137 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.ConnectionPool hands out at most chat.db.poolSize (default 8) database connections at a time.
+ * Connections are opened lazily, kept open between borrows together with their prepared statements
+ * (see server.PooledConnection), and thrown away when a query broke them. A session waiting longer than
+ * chat.db.borrowTimeoutMillis (default 5000) for a free connection gets an SQLException, like after any
+ * other database failure, instead of hanging.
+ * <p>
+ * version 18.10.2026
+ */
+public class ConnectionPool {
+    private static final int POOL_SIZE = Integer.getInteger("chat.db.poolSize", 8);
+    private static final long BORROW_TIMEOUT_MILLIS = Long.getLong("chat.db.borrowTimeoutMillis", 5000);
+
+    private String url;
+    private Properties props;
+    private int size;
+    //one permit per connection which may be borrowed
+    private Semaphore permits;
+    //open connections nobody is using, most recently used first
+    private ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+    private AtomicLong opened = new AtomicLong();
+    private AtomicLong discarded = new AtomicLong();
+    private AtomicLong borrows = new AtomicLong();
+    private AtomicLong waits = new AtomicLong();
+    private AtomicLong timeouts = new AtomicLong();
+    private AtomicLong waitNanos = new AtomicLong();
+
+    public ConnectionPool(String url, Properties props) {
+        this(url, props, POOL_SIZE);
+    }
+
+    public ConnectionPool(String url, Properties props, int size) {
+        this.url = url;
+        this.props = props;
+        this.size = Math.max(1, size);
+        this.permits = new Semaphore(this.size, true);
+    }
+
+    //borrow - a free connection, opened if none is idle; close the returned object to give it back
+    public PooledConnection borrow() throws SQLException {
+        borrows.incrementAndGet();
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    timeouts.incrementAndGet();
+                    throw new SQLException("No database connection free after " + BORROW_TIMEOUT_MILLIS + " ms");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a database connection", e);
+            } finally {
+                waitNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (connection.isUsable()) return connection;
+                discard(connection);
+            }
+            return open();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    //release - called by PooledConnection.close()
+    void release(PooledConnection connection) {
+        if (connection.isUsable()) idle.offerFirst(connection);
+        else discard(connection);
+        permits.release();
+    }
+
+    //warmUp - opens one connection straight away so a wrong database setup shows at start up
+    public void warmUp() throws SQLException {
+        borrow().close();
+    }
+
+    //close - closes the idle connections, borrowed ones are closed when they come back broken or not at all
+    public void close() {
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) connection.destroy();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        long w = waits.get();
+        return "size=" + size + " inUse=" + (size - permits.availablePermits()) + " idle=" + idle.size() +
+                " opened=" + opened.get() + " discarded=" + discarded.get() + " borrows=" + borrows.get() +
+                " waits=" + w + " timeouts=" + timeouts.get() +
+                " avgWaitMillis=" + (w == 0 ? "-" : String.format("%.2f", waitNanos.get() / 1e6 / w));
+    }
+
+    private PooledConnection open() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, props);
+        //the SQL prestatement the database wants, once per connection instead of before every query
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(Query.PRE_STATEMENT.getSql())) {
+            while (rs.next()) {
+                //only running it matters
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        opened.incrementAndGet();
+        return new PooledConnection(this, connection);
+    }
+
+    private void discard(PooledConnection connection) {
+        discarded.incrementAndGet();
+        connection.destroy();
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.EventLoop is one of the few selector threads of the non-blocking server. It owns the sockets given to it by
+ * server.ServerModel, reads their frames, hands decoded commands to the worker threads and writes queued replies.
+ * All loops share one read buffer size, so memory does not grow with the number of idle connections.
+ * <p>
+ * version 18.10.2026
+ */
+public class EventLoop extends Thread {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private ServerModel server;
+    private Selector selector;
+    //channels accepted by the server which still have to be registered with this loop's selector
+    private Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    //sessions which have frames waiting to be written
+    private Queue<NioSession> pendingFlushes = new ConcurrentLinkedQueue<>();
+    //sessions which other threads want disconnected
+    private Queue<NioSession> pendingCloses = new ConcurrentLinkedQueue<>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    public EventLoop(ServerModel server, int index) throws IOException {
+        super("server.EventLoop-" + index);
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    //register - hands a freshly accepted channel over to this loop, may be called from any thread
+    public void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    //requestFlush - asks the loop to write the session's queued frames, may be called from any thread
+    void requestFlush(NioSession session) {
+        pendingFlushes.add(session);
+        if (Thread.currentThread() != this) selector.wakeup();
+    }
+
+    //requestClose - asks the loop to close the session, may be called from any thread
+    void requestClose(NioSession session) {
+        pendingCloses.add(session);
+        if (Thread.currentThread() != this) selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!isInterrupted()) {
+                selector.select();
+                registerNewChannels();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) session.onReadable(readBuffer);
+                        if (key.isValid() && key.isWritable()) session.flush();
+                    } catch (RuntimeException e) {
+                        //whatever goes wrong with one client, the other clients of the loop carry on
+                        System.out.println("server.EventLoop: closing a session after an unexpected error");
+                        e.printStackTrace();
+                        session.close();
+                    }
+                }
+
+                NioSession session;
+                while ((session = pendingFlushes.poll()) != null) session.flush();
+                while ((session = pendingCloses.poll()) != null) session.close();
+            }
+        } catch (IOException e) {
+            System.out.println("server.EventLoop: selector failed");
+            e.printStackTrace();
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException io) {
+                System.err.println("Couldn't close selector" + io.getMessage());
+            }
+        }
+    }
+
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                NioSession session = new NioSession(server, channel, this);
+                session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+                server.getThreadPool().add(session);
+                server.countAccepted();
+            } catch (Exception e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException io) {
+                    System.err.println("Couldn't close client channel" + io.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package server;
+
+import supplementary.Message;
+import supplementary.Protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.FileTransfers runs the attachment uploads and downloads of one session (see supplementary.Protocol.UPLOAD).
+ * Files move in chunks of at most supplementary.Protocol.CHUNK_SIZE bytes, each acknowledged by the receiver, and
+ * no more than chat.transfer.window (default 48 KB) may be unacknowledged at any time, so chunks never pile up in
+ * front of chat messages on the same connection. An upload is written straight to a partial file named after the
+ * user and the client's upload id, which is what makes it resumable after a disconnect; downloads read each chunk
+ * from the stored file at its offset, so files of any size up to chat.transfer.maxBytes can be served.
+ * Commands with missing or malformed fields, offsets outside the file and chunks bigger than CHUNK_SIZE are answered
+ * with TRANSFER_FAILED. Only the session's reading thread calls these methods.
+ * <p>
+ * version 18.10.2026
+ */
+public class FileTransfers {
+    public static final int WINDOW = Integer.getInteger("chat.transfer.window", 48 * 1024);
+    public static final long MAX_SIZE = Long.getLong("chat.transfer.maxBytes", 1024L * 1024 * 1024);
+
+    //one upload in progress
+    private static class Upload {
+        private Path part;
+        private FileChannel channel;
+        private long size;
+        private long received;
+    }
+
+    //one download in progress, next is the first byte not sent yet
+    private static class Download {
+        private FileChannel file;
+        private long size;
+        private long next;
+        private long acknowledged;
+    }
+
+    private ClientSession session;
+    private AttachmentStore store;
+    private Map<String, Upload> uploads = new HashMap<>();
+    private Map<String, Download> downloads = new HashMap<>();
+
+    public FileTransfers(ClientSession session, AttachmentStore store) {
+        this.session = session;
+        this.store = store;
+    }
+
+    //startUpload - {upload id, size}: answers with the offset to continue from
+    public void startUpload(String[] content) throws IOException {
+        String id = field(content, 0);
+        long size = number(content, 1);
+        if (session.getCurrentUser() == null) {
+            fail(id, "Not logged in");
+            return;
+        }
+        if (size < 0) {
+            fail(id, "Bad size");
+            return;
+        }
+        if (size > MAX_SIZE) {
+            fail(id, "File too big");
+            return;
+        }
+        closeUpload(uploads.remove(id));
+        Upload upload = new Upload();
+        upload.part = store.partFile(session.getCurrentUser().getLogin(), id);
+        upload.channel = FileChannel.open(upload.part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        //what an earlier connection has received is kept
+        if (upload.channel.size() > size) upload.channel.truncate(size);
+        upload.size = size;
+        upload.received = upload.channel.size();
+        uploads.put(id, upload);
+        acknowledge(id, upload);
+    }
+
+    //uploadChunk - {upload id, offset} followed by the bytes; a chunk at the wrong offset is answered with the right one
+    public void uploadChunk(Message header, byte[] data) throws IOException {
+        String id = field(header.getContent(), 0);
+        long offset = number(header.getContent(), 1);
+        Upload upload = uploads.get(id);
+        if (upload == null) {
+            fail(id, "Unknown upload");
+            return;
+        }
+        if (offset < 0 || offset > upload.size || data.length > Protocol.CHUNK_SIZE) {
+            uploads.remove(id);
+            closeUpload(upload);
+            fail(id, "Bad chunk");
+            return;
+        }
+        if (offset == upload.received) {
+            if (upload.received + data.length > upload.size) {
+                uploads.remove(id);
+                closeUpload(upload);
+                fail(id, "More data than announced");
+                return;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) upload.channel.write(buffer, offset + buffer.position());
+            upload.received += data.length;
+        }
+        acknowledge(id, upload);
+    }
+
+    //startDownload - {attachment reference, offset}: sends the first window of chunks
+    public void startDownload(String[] content) throws IOException {
+        String reference = field(content, 0);
+        long offset = number(content, 1);
+        if (!store.contains(reference)) {
+            fail(reference, "Unknown attachment");
+            return;
+        }
+        if (offset < 0) {
+            fail(reference, "Bad offset");
+            return;
+        }
+        closeDownload(downloads.remove(reference));
+        Download download = new Download();
+        download.size = store.size(reference);
+        download.next = Math.min(offset, download.size);
+        download.acknowledged = download.next;
+        if (download.next == download.size) {
+            //nothing left to send, an empty last chunk tells the client it has everything
+            session.send(new Message(Protocol.DOWNLOAD_CHUNK, new String[]{reference, String.valueOf(download.size),
+                    String.valueOf(download.size)}), new byte[0]);
+            return;
+        }
+        download.file = store.open(reference);
+        downloads.put(reference, download);
+        pump(reference, download);
+    }
+
+    //downloadAck - {attachment reference, offset received}: makes room in the window for more chunks
+    public void downloadAck(String[] content) throws IOException {
+        String reference = field(content, 0);
+        Download download = downloads.get(reference);
+        if (download == null) return;
+        //nothing beyond what has been sent can have been received
+        download.acknowledged = Math.max(download.acknowledged, Math.min(number(content, 1), download.next));
+        if (download.acknowledged >= download.size) closeDownload(downloads.remove(reference));
+        else pump(reference, download);
+    }
+
+    //close - the session is gone, partial uploads stay on disk to be resumed
+    public void close() {
+        for (Upload upload : uploads.values()) closeUpload(upload);
+        uploads.clear();
+        for (Download download : downloads.values()) closeDownload(download);
+        downloads.clear();
+    }
+
+    private void acknowledge(String id, Upload upload) throws IOException {
+        if (upload.received < upload.size) {
+            session.send(new Message(Protocol.UPLOAD_ACK, new String[]{id, String.valueOf(upload.received), String.valueOf(WINDOW)}));
+            return;
+        }
+        uploads.remove(id);
+        upload.channel.close();
+        String reference = store.commitPart(upload.part);
+        session.send(new Message(Protocol.UPLOAD_DONE, new String[]{id, reference}));
+    }
+
+    private void pump(String reference, Download download) throws IOException {
+        while (download.next < download.size && download.next - download.acknowledged < WINDOW) {
+            int length = (int) Math.min(Protocol.CHUNK_SIZE, download.size - download.next);
+            byte[] chunk = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                if (download.file.read(buffer, download.next + buffer.position()) < 0)
+                    throw new IOException("Attachment " + reference + " is shorter than " + download.size + " bytes");
+            }
+            store.served(length);
+            session.send(new Message(Protocol.DOWNLOAD_CHUNK, new String[]{reference, String.valueOf(download.next),
+                    String.valueOf(download.size)}), chunk);
+            download.next += length;
+        }
+    }
+
+    private void fail(String id, String reason) throws IOException {
+        session.send(new Message(Protocol.TRANSFER_FAILED, new String[]{id, reason}));
+    }
+
+    //field - the command's field, "" if it is missing
+    private static String field(String[] content, int i) {
+        return content != null && content.length > i && content[i] != null ? content[i] : "";
+    }
+
+    //number - the command's field as a number, -1 if it is missing or not a number
+    private static long number(String[] content, int i) {
+        try {
+            return Long.parseLong(field(content, i));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void closeDownload(Download download) {
+        if (download == null || download.file == null) return;
+        try {
+            download.file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeUpload(Upload upload) {
+        if (upload == null) return;
+        try {
+            upload.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
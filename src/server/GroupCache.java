@@ -0,0 +1,258 @@
+package server;
+
+import supplementary.Conversation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.GroupCache keeps the groups of the server.MessageStore in memory: group id to name and members, and login to group ids.
+ * Entries are loaded lazily (or all at once with chat.groups.preload=true) and kept up to date by the sessions
+ * writing through after every change of the groups (createGroup, openPrivate, leaveGroup), so delivering a message
+ * does not read the store. A cached entry is never reloaded by a lookup: a background thread reloads entries older
+ * than chat.groups.maxAgeSeconds (default 600, 0 turns it off), which bounds how stale the cache can get if the
+ * groups are edited behind the server's back. Unknown group ids and users without groups are not cached.
+ * <p>
+ * version 18.10.2026
+ */
+public class GroupCache {
+    private static final long MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.groups.maxAgeSeconds", 600));
+
+    //one cached group
+    public static class Group {
+        private final int id;
+        private volatile String name;
+        private final Set<String> members = ConcurrentHashMap.newKeySet();
+        private final long loadedAt = System.currentTimeMillis();
+
+        Group(int id, Conversation conversation) {
+            this(id, conversation.getName());
+            members.addAll(conversation.getParticipants());
+        }
+
+        Group(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Set<String> getMembers() {
+            return Collections.unmodifiableSet(members);
+        }
+    }
+
+    private MessageStore store;
+    private ConcurrentHashMap<Integer, Group> groups = new ConcurrentHashMap<>();
+    //group ids by login, only for users whose groups have been loaded
+    private ConcurrentHashMap<String, Set<Integer>> groupsByUser = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Long> userLoadedAt = new ConcurrentHashMap<>();
+
+    //told which users' groups have changed, see onChange()
+    private volatile Consumer<Collection<String>> changeListener = logins -> {
+    };
+
+    //reloads old entries off the sessions' threads
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "server.GroupCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    //write-throughs and invalidations so far, a reload read before one of them is not used
+    private AtomicLong changes = new AtomicLong();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong refreshed = new AtomicLong();
+    private AtomicLong updates = new AtomicLong();
+
+    public GroupCache(MessageStore store) {
+        this.store = store;
+    }
+
+    //preload - reads all groups at once
+    public void preload() throws IOException {
+        for (Map.Entry<Integer, Conversation> entry : store.groups().entrySet())
+            groups.put(entry.getKey(), new Group(entry.getKey(), entry.getValue()));
+        System.out.println("server.GroupCache: preloaded " + groups.size() + " groups");
+    }
+
+    //start - reloads entries older than chat.groups.maxAgeSeconds every so often
+    public void start() {
+        if (MAX_AGE_MILLIS <= 0) return;
+        long period = Math.max(1000, MAX_AGE_MILLIS / 10);
+        refresher.scheduleWithFixedDelay(this::refresh, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    //group - cached group, loaded from the store on a miss; an unknown id gives a group without members, not cached
+    public Group group(int id) throws IOException {
+        Group group = groups.get(id);
+        if (group != null) {
+            hits.incrementAndGet();
+            return group;
+        }
+        misses.incrementAndGet();
+        long before = changes.get();
+        Group loaded = new Group(id, store.group(id));
+        if (loaded.name == null && loaded.members.isEmpty()) return loaded;
+        //a write-through which came in meanwhile is newer than what was read
+        if (changes.get() != before) return loaded;
+        Group raced = groups.putIfAbsent(id, loaded);
+        return raced != null ? raced : loaded;
+    }
+
+    //members - logins of the group's members
+    public Set<String> members(int id) throws IOException {
+        return group(id).getMembers();
+    }
+
+    //groupsOf - ids of the groups the user is in
+    public Set<Integer> groupsOf(String login) throws IOException {
+        Set<Integer> ids = groupsByUser.get(login);
+        if (ids != null) {
+            hits.incrementAndGet();
+            return Collections.unmodifiableSet(ids);
+        }
+        misses.incrementAndGet();
+        long before = changes.get();
+        Set<Integer> loaded = ConcurrentHashMap.newKeySet();
+        loaded.addAll(store.groupIdsOf(login));
+        if (loaded.isEmpty() || changes.get() != before) return Collections.unmodifiableSet(loaded);
+        Set<Integer> raced = groupsByUser.putIfAbsent(login, loaded);
+        if (raced == null) userLoadedAt.put(login, System.currentTimeMillis());
+        return Collections.unmodifiableSet(raced != null ? raced : loaded);
+    }
+
+    //onChange - registers who to tell about the users whose groups or group members changed
+    public void onChange(Consumer<Collection<String>> listener) {
+        this.changeListener = listener;
+    }
+
+    //putGroup - write-through after a group has been added to the store
+    public void putGroup(int id, String name, Collection<String> members) {
+        changes.incrementAndGet();
+        Group group = new Group(id, name);
+        group.members.addAll(members);
+        groups.put(id, group);
+        for (String member : members) {
+            Set<Integer> ids = groupsByUser.get(member);
+            if (ids != null) ids.add(id);
+        }
+        updates.incrementAndGet();
+        changeListener.accept(members);
+    }
+
+    //removeMember - write-through after a member has been taken out of a group in the store
+    public void removeMember(int id, String login) {
+        changes.incrementAndGet();
+        Group group = groups.get(id);
+        ArrayList<String> changed = new ArrayList<>();
+        changed.add(login);
+        if (group != null) {
+            group.members.remove(login);
+            changed.addAll(group.members);
+        }
+        Set<Integer> ids = groupsByUser.get(login);
+        if (ids != null) ids.remove(id);
+        updates.incrementAndGet();
+        changeListener.accept(changed);
+    }
+
+    //invalidateUsers - forgets which groups the users are in, next access reloads it
+    public void invalidateUsers(Collection<String> logins) {
+        changes.incrementAndGet();
+        for (String login : logins) {
+            groupsByUser.remove(login);
+            userLoadedAt.remove(login);
+        }
+        changeListener.accept(logins);
+    }
+
+    //invalidate - forgets a group, next access reloads it
+    public void invalidate(int id) {
+        changes.incrementAndGet();
+        Group group = groups.remove(id);
+        if (group != null) {
+            for (String member : group.members) {
+                groupsByUser.remove(member);
+                userLoadedAt.remove(member);
+            }
+            changeListener.accept(group.members);
+        }
+    }
+
+    //refresh - reloads the entries older than chat.groups.maxAgeSeconds, on the refresher thread
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        try {
+            for (Group group : new ArrayList<>(groups.values())) {
+                if (now - group.loadedAt <= MAX_AGE_MILLIS) continue;
+                long before = changes.get();
+                Group loaded = new Group(group.id, store.group(group.id));
+                if (changes.get() != before) continue;
+                boolean gone = loaded.name == null && loaded.members.isEmpty();
+                if (!(gone ? groups.remove(group.id, group) : groups.replace(group.id, group, loaded))) continue;
+                refreshed.incrementAndGet();
+                if (!group.members.equals(loaded.members)) {
+                    //members changed behind the server's back, their group lists are read again
+                    ArrayList<String> changed = new ArrayList<>(group.members);
+                    changed.addAll(loaded.members);
+                    for (String login : changed) {
+                        groupsByUser.remove(login);
+                        userLoadedAt.remove(login);
+                    }
+                    changeListener.accept(changed);
+                }
+            }
+            for (Map.Entry<String, Long> user : new ArrayList<>(userLoadedAt.entrySet())) {
+                if (now - user.getValue() <= MAX_AGE_MILLIS) continue;
+                long before = changes.get();
+                Set<Integer> loaded = ConcurrentHashMap.newKeySet();
+                loaded.addAll(store.groupIdsOf(user.getKey()));
+                if (changes.get() != before) continue;
+                if (loaded.isEmpty()) {
+                    groupsByUser.remove(user.getKey());
+                    userLoadedAt.remove(user.getKey());
+                } else {
+                    groupsByUser.put(user.getKey(), loaded);
+                    userLoadedAt.put(user.getKey(), System.currentTimeMillis());
+                }
+                refreshed.incrementAndGet();
+            }
+        } catch (IOException | RuntimeException e) {
+            //tried again next time, the cached entries stay in use meanwhile
+            e.printStackTrace();
+        }
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        for (Group group : new ArrayList<>(groups.values())) oldest = Math.max(oldest, now - group.loadedAt);
+        long h = hits.get();
+        long m = misses.get();
+        return "groups=" + groups.size() + " users=" + groupsByUser.size() + " hits=" + h + " misses=" + m +
+                " refreshed=" + refreshed.get() + " writeThroughs=" + updates.get() +
+                " hitRate=" + (h + m == 0 ? "-" : String.format("%.3f", (double) h / (h + m))) +
+                " oldestEntrySeconds=" + TimeUnit.MILLISECONDS.toSeconds(oldest);
+    }
+}
@@ -0,0 +1,127 @@
+package server;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.IdAllocator hands out the keys of new messages, users and groups without asking the store for each one.
+ * Users and groups are counted out of blocks (hi/lo): the store only gives out block numbers (server.PostgresStore
+ * from one sequence per table), block n covers ids n * chat.ids.blockSize (default 1000) up to the next block.
+ * <p>
+ * Message ids order the history, in a cluster as well, so they are made of the time instead: milliseconds since
+ * 2020 in the high bits, then the node (the low bits of a block number taken from the store at the first message,
+ * which differs between nodes running at the same time) and a counter for messages of the same millisecond.
+ * A node's ids always grow, even if its clock goes back, and ids of different nodes are ordered by the time they
+ * were given out, as far as the nodes' clocks agree. A message may still be stored after messages with bigger ids
+ * (the other node's clock is behind, or its writer is slower), so whoever reads messages after an id it has seen
+ * starts again chat.ids.syncWindowMillis (default 10 s) of ids below it, see syncFrom(). Clocks of the nodes are
+ * expected to be kept well within that by NTP.
+ * <p>
+ * server.PostgresStore creates the sequences on the first start, past the largest id already in the table; message
+ * ids given out in blocks before are all smaller than the time-based ones.
+ * <p>
+ * version 18.10.2026
+ */
+public class IdAllocator {
+    public static final long BLOCK_SIZE = Long.getLong("chat.ids.blockSize", 1000);
+    //how late a message may be stored after messages with bigger ids
+    public static final long SYNC_WINDOW_MILLIS = Long.getLong("chat.ids.syncWindowMillis", 10000);
+
+    //message id: 41 bits of milliseconds since EPOCH, 10 bits of node, 12 bits of counter
+    private static final long EPOCH = 1577836800000L;
+    private static final int NODE_BITS = 10;
+    private static final int COUNTER_BITS = 12;
+    private static final int TIME_SHIFT = NODE_BITS + COUNTER_BITS;
+    //SYNC_WINDOW_MILLIS in ids
+    public static final long SYNC_OVERLAP = SYNC_WINDOW_MILLIS << TIME_SHIFT;
+
+    public enum Kind {MESSAGE, USER, GROUP}
+
+    //ids of one kind, next is handed out next, limit is the first id of the following block
+    private static class Range {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long next;
+        private long limit;
+        private long blocks;
+    }
+
+    private MessageStore store;
+    private EnumMap<Kind, Range> ranges = new EnumMap<>(Kind.class);
+    //message ids, guarded by the MESSAGE range's lock; node is -1 until the first message
+    private long node = -1;
+    private long millis;
+    private long counter;
+
+    public IdAllocator(MessageStore store) {
+        this.store = store;
+        for (Kind kind : Kind.values()) ranges.put(kind, new Range());
+    }
+
+    //next - a new unique id, asks the store only once per block (once at all for messages)
+    public long next(Kind kind) throws IOException {
+        Range range = ranges.get(kind);
+        range.lock.lock();
+        try {
+            if (kind == Kind.MESSAGE) return nextMessage(range);
+            if (range.next >= range.limit) {
+                long block = store.nextIdBlock(kind);
+                range.next = block * BLOCK_SIZE;
+                range.limit = range.next + BLOCK_SIZE;
+                range.blocks++;
+            }
+            return range.next++;
+        } finally {
+            range.lock.unlock();
+        }
+    }
+
+    //nextMessage - the next time-based id, the range's lock is held
+    private long nextMessage(Range range) throws IOException {
+        if (node < 0) {
+            node = store.nextIdBlock(Kind.MESSAGE) & ((1 << NODE_BITS) - 1);
+            range.blocks++;
+        }
+        long now = System.currentTimeMillis() - EPOCH;
+        if (now > millis) {
+            millis = now;
+            counter = 0;
+        } else if (++counter == 1 << COUNTER_BITS) {
+            //more ids in this millisecond than the counter holds (or the clock went back): borrowing the next one
+            millis++;
+            counter = 0;
+        }
+        range.next = (millis << TIME_SHIFT) | (node << COUNTER_BITS) | counter;
+        return range.next;
+    }
+
+    //nextInt - a new id for the tables whose keys are still int on the wire (users, groups)
+    public int nextInt(Kind kind) throws IOException {
+        return Math.toIntExact(next(kind));
+    }
+
+    //syncFrom - where to read the messages after a seen id from, so none stored late are missed
+    public static long syncFrom(long id) {
+        return Math.max(-1, id - SYNC_OVERLAP);
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        StringBuilder sb = new StringBuilder("blockSize=" + BLOCK_SIZE);
+        for (Kind kind : Kind.values()) {
+            Range range = ranges.get(kind);
+            range.lock.lock();
+            try {
+                sb.append(' ').append(kind.name().toLowerCase()).append("Blocks=").append(range.blocks)
+                        .append(' ').append(kind.name().toLowerCase()).append("Next=").append(range.next);
+                if (kind == Kind.MESSAGE) sb.append(" node=").append(node)
+                        .append(" messageLagMillis=").append(Math.max(0, millis - (System.currentTimeMillis() - EPOCH)));
+            } finally {
+                range.lock.unlock();
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,836 @@
+package server;
+
+import supplementary.Conversation;
+import supplementary.FrameCodec;
+import supplementary.User;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.LogStore keeps everything in append-only files under chat.store.dir (default "store"), no database needed.
+ * <p>
+ * Messages: every group has a directory of segment files, each named after the id of its first message and
+ * closed once it reaches chat.store.segmentBytes (default 64 MB). Next to each segment a sparse index file
+ * holds the id and position of one message per chat.store.indexBytes (default 4 KB) of segment, so a page is
+ * found by a binary search in the index and a scan of a few KB. Reads go through memory mappings of the segments
+ * (at most chat.store.mappedSegments, default 1024, are kept mapped), writes are appended and forced to disk
+ * once per batch (chat.store.fsync=false leaves that to the OS). Messages of a group must be appended in id
+ * order, which server.MessageWriter guarantees within one server; several servers cannot share a LogStore.
+ * <p>
+ * Users and groups are kept in memory and every change is appended to users.log and groups.log, which are read
+ * back at start up. Every record of every file carries its length and a CRC32, and a record torn by a crash is
+ * cut off when the file is opened again.
+ * <p>
+ * version 18.10.2026
+ */
+public class LogStore implements MessageStore {
+    private static final long SEGMENT_BYTES = Long.getLong("chat.store.segmentBytes", 64L * 1024 * 1024);
+    private static final int INDEX_BYTES = Integer.getInteger("chat.store.indexBytes", 4096);
+    private static final int MAPPED_SEGMENTS = Integer.getInteger("chat.store.mappedSegments", 1024);
+    private static final int OPEN_SEGMENTS = Integer.getInteger("chat.store.openSegments", 128);
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("chat.store.fsync", "true"));
+    //length and CRC32 in front of every record
+    private static final int RECORD_HEADER = 8;
+    //id and position of one index entry
+    private static final int INDEX_ENTRY = 16;
+    private static final byte ADD_MEMBER = 1;
+    private static final byte REMOVE_MEMBER = 2;
+
+    //one file of a group's messages with its sparse index; size and index only change under the group's write lock
+    private static class Segment {
+        private final long baseId;
+        private final Path file;
+        private final Path indexFile;
+        private long size;
+        private long lastId = -1;
+        private long[] indexIds = new long[16];
+        private long[] indexPositions = new long[16];
+        private int indexCount;
+        //mapping of the first mappedSize bytes, replaced when the segment has grown
+        private MappedByteBuffer mapped;
+        private long mappedSize;
+
+        Segment(Path dir, long baseId) {
+            this.baseId = baseId;
+            this.file = dir.resolve(String.format("%020d.log", baseId));
+            this.indexFile = dir.resolve(String.format("%020d.idx", baseId));
+        }
+
+        void addIndex(long id, long position) {
+            if (indexCount == indexIds.length) {
+                indexIds = Arrays.copyOf(indexIds, indexCount * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+            }
+            indexIds[indexCount] = id;
+            indexPositions[indexCount] = position;
+            indexCount++;
+        }
+
+        //needsIndex - true if a record at the position starts a new index block
+        boolean needsIndex(long position) {
+            return indexCount == 0 || position - indexPositions[indexCount - 1] >= INDEX_BYTES;
+        }
+
+        //block - number of the index block holding the last message with an id below the given one, -1 if none
+        int blockBefore(long id) {
+            int low = 0;
+            int high = indexCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexIds[mid] < id) {
+                    found = mid;
+                    low = mid + 1;
+                } else high = mid - 1;
+            }
+            return found;
+        }
+
+        long blockEnd(int block) {
+            return block + 1 < indexCount ? indexPositions[block + 1] : size;
+        }
+    }
+
+    //files a segment is appended through
+    private static class Writer {
+        private final FileChannel log;
+        private final FileChannel index;
+
+        Writer(Segment segment) throws IOException {
+            log = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            index = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        }
+
+        void close() {
+            try {
+                log.close();
+                index.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //the segments of one group, oldest first
+    private static class GroupLog {
+        private final Path dir;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final ArrayList<Segment> segments = new ArrayList<>();
+
+        GroupLog(Path dir) {
+            this.dir = dir;
+        }
+    }
+
+    //one message read for a page
+    private static class Line {
+        private final long id;
+        private final String text;
+
+        Line(long id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+    }
+
+    //a group's name and members in memory
+    private static class Group {
+        private String name;
+        private final Set<String> members = new LinkedHashSet<>();
+    }
+
+    private Path root;
+    private Path messages;
+    private ConcurrentHashMap<Integer, GroupLog> logs = new ConcurrentHashMap<>();
+    //only the appending thread opens and closes writers
+    private ReentrantLock appendLock = new ReentrantLock();
+    private LinkedHashMap<Segment, Writer> writers = new LinkedHashMap<>(16, 0.75f, true);
+    private ReentrantLock mappedLock = new ReentrantLock();
+    private LinkedHashMap<Segment, Boolean> mappedSegments = new LinkedHashMap<>(16, 0.75f, true);
+
+    //users and groups, changed under metaLock after their log record has been written
+    private ReentrantLock metaLock = new ReentrantLock();
+    private FileChannel usersLog;
+    private FileChannel groupsLog;
+    private ConcurrentSkipListMap<String, User> users = new ConcurrentSkipListMap<>();
+    private ConcurrentHashMap<Integer, Group> groups = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, Set<Integer>> groupsByUser = new ConcurrentHashMap<>();
+    //next block number per kind of id, kept in the file "ids"
+    private long[] nextBlocks = new long[IdAllocator.Kind.values().length];
+
+    private AtomicLong appended = new AtomicLong();
+    private AtomicLong appendedBytes = new AtomicLong();
+    private AtomicLong syncs = new AtomicLong();
+    private AtomicLong rolled = new AtomicLong();
+    private AtomicLong pages = new AtomicLong();
+    private AtomicLong scannedBytes = new AtomicLong();
+
+    public LogStore() {
+        this(Paths.get(System.getProperty("chat.store.dir", "store")));
+    }
+
+    public LogStore(Path root) {
+        this.root = root;
+        this.messages = root.resolve("messages");
+    }
+
+    @Override
+    public void init() throws IOException {
+        Files.createDirectories(messages);
+        usersLog = openMetaLog(root.resolve("users.log"), in -> {
+            //the id is kept for a later export, logins are the key here
+            in.readInt();
+            User user = new User(in.readUTF(), in.readUTF(), in.readUTF());
+            users.put(user.getLogin(), user);
+        });
+        groupsLog = openMetaLog(root.resolve("groups.log"), in -> {
+            byte op = in.readByte();
+            int id = in.readInt();
+            String name = in.readUTF();
+            String login = in.readUTF();
+            if (op == ADD_MEMBER) addMemberInMemory(id, name, login);
+            else removeMemberInMemory(id, login);
+        });
+        Path ids = root.resolve("ids");
+        Arrays.fill(nextBlocks, 1);
+        if (Files.exists(ids)) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(ids));
+            for (int i = 0; i < nextBlocks.length && buffer.remaining() >= 8; i++) nextBlocks[i] = buffer.getLong();
+        }
+        System.out.println("server.LogStore: " + users.size() + " users and " + groups.size() + " groups in " + root);
+    }
+
+    @Override
+    public long nextIdBlock(IdAllocator.Kind kind) throws IOException {
+        metaLock.lock();
+        try {
+            long block = nextBlocks[kind.ordinal()]++;
+            //written before the block is used, so a restart never hands it out again
+            ByteBuffer buffer = ByteBuffer.allocate(8 * nextBlocks.length);
+            for (long next : nextBlocks) buffer.putLong(next);
+            Path temp = root.resolve("ids.tmp");
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                buffer.flip();
+                while (buffer.hasRemaining()) out.write(buffer);
+                out.force(true);
+            }
+            Files.move(temp, root.resolve("ids"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return block;
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    @Override
+    public User user(String login) {
+        return users.get(login);
+    }
+
+    @Override
+    public void addUser(int id, String login, String password, String name) throws IOException {
+        metaLock.lock();
+        try {
+            if (users.containsKey(login)) throw new IOException("Login " + login + " is taken");
+            appendMeta(usersLog, out -> {
+                out.writeInt(id);
+                out.writeUTF(login);
+                out.writeUTF(password);
+                out.writeUTF(name);
+            });
+            users.put(login, new User(login, password, name));
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> logins(String after, int limit) {
+        ArrayList<String> logins = new ArrayList<>();
+        for (String login : users.tailMap(after, false).keySet()) {
+            if (logins.size() == limit) break;
+            logins.add(login);
+        }
+        return logins;
+    }
+
+    @Override
+    public Map<Integer, Conversation> groups() {
+        HashMap<Integer, Conversation> conversations = new HashMap<>();
+        for (Map.Entry<Integer, Group> entry : groups.entrySet()) conversations.put(entry.getKey(), conversation(entry.getValue()));
+        return conversations;
+    }
+
+    @Override
+    public Conversation group(int id) {
+        Group group = groups.get(id);
+        return group == null ? new Conversation(null, new ArrayList<>()) : conversation(group);
+    }
+
+    @Override
+    public Set<Integer> groupIdsOf(String login) {
+        Set<Integer> ids = groupsByUser.get(login);
+        if (ids == null) return new HashSet<>();
+        metaLock.lock();
+        try {
+            return new HashSet<>(ids);
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    @Override
+    public Map<Integer, Conversation> conversationsOf(String login) {
+        HashMap<Integer, Conversation> conversations = new HashMap<>();
+        for (int id : groupIdsOf(login)) {
+            Group group = groups.get(id);
+            if (group != null) conversations.put(id, conversation(group));
+        }
+        return conversations;
+    }
+
+    @Override
+    public void addGroup(int id, String name, Collection<String> members) throws IOException {
+        metaLock.lock();
+        try {
+            for (String member : members) {
+                appendMeta(groupsLog, out -> {
+                    out.writeByte(ADD_MEMBER);
+                    out.writeInt(id);
+                    out.writeUTF(name);
+                    out.writeUTF(member);
+                });
+                addMemberInMemory(id, name, member);
+            }
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    //addPrivateGroup - a single node, so looking for the pair and adding it under metaLock is enough
+    @Override
+    public int addPrivateGroup(int id, String login, String other) throws IOException {
+        metaLock.lock();
+        try {
+            for (int existing : groupsByUser.getOrDefault(login, Collections.emptySet())) {
+                Group group = groups.get(existing);
+                if (group != null && PrivateConversations.NAME.equals(group.name) && group.members.size() == 2
+                        && group.members.contains(other))
+                    return existing;
+            }
+            addGroup(id, PrivateConversations.NAME, Arrays.asList(login, other));
+            return id;
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    @Override
+    public void removeMember(int id, String login) throws IOException {
+        metaLock.lock();
+        try {
+            appendMeta(groupsLog, out -> {
+                out.writeByte(REMOVE_MEMBER);
+                out.writeInt(id);
+                out.writeUTF("");
+                out.writeUTF(login);
+            });
+            removeMemberInMemory(id, login);
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    //append - writes every group's records to the end of its newest segment, then forces each file once
+    @Override
+    public void append(List<Record> records) throws IOException {
+        //records of one group stay in their order
+        LinkedHashMap<Integer, List<Record>> byGroup = new LinkedHashMap<>();
+        for (Record record : records) byGroup.computeIfAbsent(record.getGroupId(), key -> new ArrayList<>()).add(record);
+        appendLock.lock();
+        try {
+            Set<Writer> touched = new LinkedHashSet<>();
+            for (Map.Entry<Integer, List<Record>> entry : byGroup.entrySet()) {
+                GroupLog log = log(entry.getKey());
+                log.lock.writeLock().lock();
+                try {
+                    for (Record record : entry.getValue()) {
+                        //written already by a try of the batch which failed later on
+                        if (!log.segments.isEmpty() && log.segments.get(log.segments.size() - 1).lastId >= record.getId()) continue;
+                        touched.add(append(log, record));
+                    }
+                } finally {
+                    log.lock.writeLock().unlock();
+                }
+            }
+            if (FSYNC) {
+                for (Writer writer : touched) {
+                    //writers closed on the way have been forced then
+                    if (!writer.log.isOpen()) continue;
+                    writer.log.force(false);
+                    writer.index.force(false);
+                    syncs.incrementAndGet();
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    @Override
+    public MessageHistory.Page newest(int groupId, int limit) throws IOException {
+        return before(groupId, Long.MAX_VALUE, limit);
+    }
+
+    //before - walks the index blocks backwards from the one holding the id until the page is full
+    @Override
+    public MessageHistory.Page before(int groupId, long id, int limit) throws IOException {
+        pages.incrementAndGet();
+        GroupLog log = existingLog(groupId);
+        MessageHistory.Page page = new MessageHistory.Page();
+        if (log == null) return page;
+        //blocks read newest first, each in id order
+        ArrayList<List<Line>> blocks = new ArrayList<>();
+        int found = 0;
+        log.lock.readLock().lock();
+        try {
+            for (int s = log.segments.size() - 1; s >= 0 && found <= limit; s--) {
+                Segment segment = log.segments.get(s);
+                if (segment.baseId >= id) continue;
+                ByteBuffer buffer = map(segment);
+                for (int block = segment.blockBefore(id); block >= 0 && found <= limit; block--) {
+                    List<Line> lines = scan(buffer, segment.indexPositions[block], segment.blockEnd(block), Long.MIN_VALUE, id);
+                    blocks.add(lines);
+                    found += lines.size();
+                }
+            }
+        } finally {
+            log.lock.readLock().unlock();
+        }
+        ArrayList<Line> lines = new ArrayList<>(found);
+        for (int i = blocks.size() - 1; i >= 0; i--) lines.addAll(blocks.get(i));
+        int start = Math.max(0, lines.size() - limit);
+        for (int i = start; i < lines.size(); i++) page.add(lines.get(i).id, lines.get(i).text);
+        page.setMore(start > 0);
+        return page;
+    }
+
+    //after - scans forward from the index block holding the id
+    @Override
+    public MessageHistory.Page after(int groupId, long id, int limit) throws IOException {
+        pages.incrementAndGet();
+        GroupLog log = existingLog(groupId);
+        MessageHistory.Page page = new MessageHistory.Page();
+        if (log == null) return page;
+        ArrayList<Line> lines = new ArrayList<>();
+        log.lock.readLock().lock();
+        try {
+            for (Segment segment : log.segments) {
+                if (lines.size() > limit) break;
+                if (segment.lastId <= id) continue;
+                ByteBuffer buffer = map(segment);
+                int block = Math.max(0, segment.blockBefore(id + 1));
+                for (; block < segment.indexCount && lines.size() <= limit; block++) {
+                    lines.addAll(scan(buffer, segment.indexPositions[block], segment.blockEnd(block), id, Long.MAX_VALUE));
+                }
+            }
+        } finally {
+            log.lock.readLock().unlock();
+        }
+        for (int i = 0; i < Math.min(limit, lines.size()); i++) page.add(lines.get(i).id, lines.get(i).text);
+        page.setMore(lines.size() > limit);
+        return page;
+    }
+
+    @Override
+    public void close() {
+        appendLock.lock();
+        try {
+            for (Writer writer : writers.values()) writer.close();
+            writers.clear();
+        } finally {
+            appendLock.unlock();
+        }
+        try {
+            usersLog.close();
+            groupsLog.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public String report() {
+        int mapped;
+        mappedLock.lock();
+        try {
+            mapped = mappedSegments.size();
+        } finally {
+            mappedLock.unlock();
+        }
+        return "dir=" + root + " groups=" + logs.size() + " appended=" + appended.get() + " appendedBytes=" + appendedBytes.get() +
+                " syncs=" + syncs.get() + " rolled=" + rolled.get() + " pages=" + pages.get() +
+                " scannedBytes=" + scannedBytes.get() + " mapped=" + mapped;
+    }
+
+    //append - one record at the end of the group's newest segment, a new segment is started when it is full
+    private Writer append(GroupLog log, Record record) throws IOException {
+        byte[] sender = record.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] content = record.getContent().getBytes(StandardCharsets.UTF_8);
+        byte[] attachment = record.getAttachment();
+        int length = 8 + 8 + 4 + sender.length + 4 + content.length + 4 + (attachment == null ? 0 : attachment.length);
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER + length);
+        buffer.putInt(length);
+        buffer.putInt(0);
+        buffer.putLong(record.getId());
+        buffer.putLong(record.getTimestamp());
+        buffer.putInt(sender.length).put(sender);
+        buffer.putInt(content.length).put(content);
+        buffer.putInt(attachment == null ? -1 : attachment.length);
+        if (attachment != null) buffer.put(attachment);
+        buffer.putInt(4, crc(buffer.array(), RECORD_HEADER, length));
+        buffer.flip();
+
+        Segment segment = log.segments.isEmpty() ? null : log.segments.get(log.segments.size() - 1);
+        if (segment == null || segment.size > 0 && segment.size + buffer.remaining() > SEGMENT_BYTES) {
+            if (segment != null) closeWriter(segment);
+            segment = new Segment(log.dir, record.getId());
+            Files.createDirectories(log.dir);
+            log.segments.add(segment);
+            rolled.incrementAndGet();
+        }
+        Writer writer = writer(segment);
+        long position = segment.size;
+        while (buffer.hasRemaining()) writer.log.write(buffer, position + buffer.position());
+        if (segment.needsIndex(position)) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(record.getId()).putLong(position).flip();
+            long indexPosition = (long) segment.indexCount * INDEX_ENTRY;
+            while (entry.hasRemaining()) writer.index.write(entry, indexPosition + entry.position());
+            segment.addIndex(record.getId(), position);
+        }
+        segment.size += RECORD_HEADER + length;
+        segment.lastId = record.getId();
+        appended.incrementAndGet();
+        appendedBytes.addAndGet(RECORD_HEADER + length);
+        return writer;
+    }
+
+    //scan - the messages with ids between after and before (both excluded) in a part of a segment
+    private List<Line> scan(ByteBuffer buffer, long from, long to, long after, long before) {
+        ArrayList<Line> lines = new ArrayList<>();
+        int position = (int) from;
+        while (position < to) {
+            int length = buffer.getInt(position);
+            int p = position + RECORD_HEADER;
+            long id = buffer.getLong(p);
+            if (id > after && id < before) {
+                p += 16;
+                String sender = string(buffer, p);
+                p += 4 + buffer.getInt(p);
+                String content = string(buffer, p);
+                lines.add(new Line(id, sender + ": " + content));
+            }
+            position += RECORD_HEADER + length;
+        }
+        scannedBytes.addAndGet(to - from);
+        return lines;
+    }
+
+    private static String string(ByteBuffer buffer, int position) {
+        byte[] bytes = new byte[buffer.getInt(position)];
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(position + 4);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //map - a read only mapping covering the segment as far as it is written
+    private ByteBuffer map(Segment segment) throws IOException {
+        ByteBuffer buffer;
+        boolean added;
+        mappedLock.lock();
+        try {
+            if (segment.mapped == null || segment.mappedSize < segment.size) {
+                try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+                    segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+                    segment.mappedSize = segment.size;
+                }
+            }
+            buffer = segment.mapped.duplicate();
+            added = mappedSegments.put(segment, Boolean.TRUE) == null;
+            if (added && mappedSegments.size() > MAPPED_SEGMENTS) {
+                //the least recently read mapping is let go, the garbage collector unmaps it
+                Iterator<Segment> eldest = mappedSegments.keySet().iterator();
+                Segment dropped = eldest.next();
+                eldest.remove();
+                dropped.mapped = null;
+                dropped.mappedSize = 0;
+            }
+        } finally {
+            mappedLock.unlock();
+        }
+        return buffer;
+    }
+
+    private Writer writer(Segment segment) throws IOException {
+        Writer writer = writers.get(segment);
+        if (writer != null) return writer;
+        writer = new Writer(segment);
+        writers.put(segment, writer);
+        if (writers.size() > OPEN_SEGMENTS) {
+            Iterator<Map.Entry<Segment, Writer>> eldest = writers.entrySet().iterator();
+            Map.Entry<Segment, Writer> entry = eldest.next();
+            if (FSYNC) {
+                //its last batch may not have been forced yet
+                entry.getValue().log.force(false);
+                entry.getValue().index.force(false);
+            }
+            entry.getValue().close();
+            eldest.remove();
+        }
+        return writer;
+    }
+
+    private void closeWriter(Segment segment) throws IOException {
+        Writer writer = writers.remove(segment);
+        if (writer == null) return;
+        if (FSYNC) {
+            writer.log.force(false);
+            writer.index.force(false);
+        }
+        writer.close();
+    }
+
+    private GroupLog log(int groupId) throws IOException {
+        try {
+            return logs.computeIfAbsent(groupId, key -> {
+                try {
+                    return load(messages.resolve(String.valueOf(key)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    //existingLog - the group's log, null if nothing has ever been written to it
+    private GroupLog existingLog(int groupId) throws IOException {
+        GroupLog log = logs.get(groupId);
+        if (log != null) return log;
+        if (!Files.isDirectory(messages.resolve(String.valueOf(groupId)))) return null;
+        return log(groupId);
+    }
+
+    //load - reads a group's segment list and indexes, checks the records after the last index entry of every
+    //segment and cuts off a torn one at the end
+    private GroupLog load(Path dir) throws IOException {
+        GroupLog log = new GroupLog(dir);
+        if (!Files.isDirectory(dir)) return log;
+        ArrayList<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+            }
+        }
+        Collections.sort(bases);
+        for (long base : bases) {
+            Segment segment = new Segment(dir, base);
+            long fileSize = Files.size(segment.file);
+            if (Files.exists(segment.indexFile)) {
+                ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(segment.indexFile));
+                while (index.remaining() >= INDEX_ENTRY) {
+                    long id = index.getLong();
+                    long position = index.getLong();
+                    if (position >= fileSize) break;
+                    segment.addIndex(id, position);
+                }
+            }
+            recover(segment, fileSize);
+            if (segment.size == 0) {
+                Files.deleteIfExists(segment.file);
+                Files.deleteIfExists(segment.indexFile);
+                continue;
+            }
+            log.segments.add(segment);
+        }
+        return log;
+    }
+
+    //recover - finds the end of the valid records and the last id, indexing records the index file missed
+    private void recover(Segment segment, long fileSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+            while (true) {
+                long start = segment.indexCount == 0 ? 0 : segment.indexPositions[segment.indexCount - 1];
+                long position = start;
+                while (position + RECORD_HEADER <= fileSize) {
+                    header.clear();
+                    readFully(channel, header, position);
+                    int length = header.getInt(0);
+                    if (length < 16 || position + RECORD_HEADER + length > fileSize) break;
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, position + RECORD_HEADER);
+                    if (crc(payload.array(), 0, length) != header.getInt(4)) break;
+                    long id = payload.getLong(0);
+                    if (segment.needsIndex(position)) segment.addIndex(id, position);
+                    segment.lastId = id;
+                    position += RECORD_HEADER + length;
+                }
+                //the index reached disk but its record did not, the entry before it is tried
+                if (position == start && segment.indexCount > 0) {
+                    segment.indexCount--;
+                    continue;
+                }
+                segment.size = position;
+                if (position < fileSize) {
+                    System.err.println("server.LogStore: cutting " + (fileSize - position) + " torn bytes off " + segment.file);
+                    channel.truncate(position);
+                }
+                break;
+            }
+        }
+        //the index file gets exactly the entries kept
+        ByteBuffer index = ByteBuffer.allocate(segment.indexCount * INDEX_ENTRY);
+        for (int i = 0; i < segment.indexCount; i++) index.putLong(segment.indexIds[i]).putLong(segment.indexPositions[i]);
+        index.flip();
+        try (FileChannel channel = FileChannel.open(segment.indexFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining()) channel.write(index);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+        }
+    }
+
+    //a reader of one record's payload in users.log or groups.log
+    private interface MetaReader {
+        void read(DataInputStream in) throws IOException;
+    }
+
+    //a writer of one record's payload
+    private interface MetaWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    //openMetaLog - replays the records of a users or groups log and opens it for appending after the last good one
+    private FileChannel openMetaLog(Path file, MetaReader reader) throws IOException {
+        long good = 0;
+        if (Files.exists(file)) {
+            try (InputStream stream = new BufferedInputStream(Files.newInputStream(file))) {
+                DataInputStream in = new DataInputStream(stream);
+                while (true) {
+                    int length;
+                    int crc;
+                    byte[] payload;
+                    try {
+                        length = in.readInt();
+                        crc = in.readInt();
+                        if (length < 0 || length > FrameCodec.MAX_FRAME_SIZE) break;
+                        payload = new byte[length];
+                        in.readFully(payload);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (crc(payload, 0, length) != crc) break;
+                    reader.read(new DataInputStream(new ByteArrayInputStream(payload)));
+                    good += RECORD_HEADER + length;
+                }
+            }
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > good) {
+            System.err.println("server.LogStore: cutting " + (channel.size() - good) + " torn bytes off " + file);
+            channel.truncate(good);
+        }
+        channel.position(good);
+        return channel;
+    }
+
+    //appendMeta - one record at the end of a users or groups log, forced to disk before anything is changed in memory
+    private void appendMeta(FileChannel log, MetaWriter writer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(bytes));
+        byte[] payload = bytes.toByteArray();
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        record.putInt(payload.length).putInt(crc(payload, 0, payload.length)).put(payload).flip();
+        while (record.hasRemaining()) log.write(record);
+        if (FSYNC) log.force(false);
+    }
+
+    private void addMemberInMemory(int id, String name, String login) {
+        Group group = groups.computeIfAbsent(id, key -> new Group());
+        group.name = name;
+        group.members.add(login);
+        groupsByUser.computeIfAbsent(login, key -> ConcurrentHashMap.newKeySet()).add(id);
+    }
+
+    private void removeMemberInMemory(int id, String login) {
+        Group group = groups.get(id);
+        if (group != null) {
+            group.members.remove(login);
+            if (group.members.isEmpty()) groups.remove(id);
+        }
+        Set<Integer> ids = groupsByUser.get(login);
+        if (ids != null) ids.remove(id);
+    }
+
+    private Conversation conversation(Group group) {
+        metaLock.lock();
+        try {
+            return new Conversation(group.name, new ArrayList<>(group.members));
+        } finally {
+            metaLock.unlock();
+        }
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,134 @@
+package server;
+
+import supplementary.Conversation;
+import supplementary.FrameCodec;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.LoginSnapshots holds the contact list sent at login (group id to conversation with its participants)
+ * already encoded, per user and codec. A user logging in again gets the same bytes without a query or an encoding;
+ * otherwise the list is read from the server.MessageStore in one go (one query for all groups and members with Postgres). A snapshot is dropped as soon as
+ * server.GroupCache reports a change of one of the user's groups, and is rebuilt after chat.groups.maxAgeSeconds
+ * like the cache itself. At most chat.login.snapshots (default 10000) users are kept, least recently logged in go first.
+ * <p>
+ * version 18.10.2026
+ */
+public class LoginSnapshots {
+    private static final int MAX_USERS = Integer.getInteger("chat.login.snapshots", 10000);
+    private static final long MAX_AGE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.groups.maxAgeSeconds", 600));
+
+    //one user's contact list, encoded once per codec format
+    private static class Snapshot {
+        private final Map<Integer, byte[]> encoded = new ConcurrentHashMap<>();
+        private final HashMap<Integer, Conversation> conversations;
+        private final long createdAt = System.currentTimeMillis();
+
+        Snapshot(HashMap<Integer, Conversation> conversations) {
+            this.conversations = conversations;
+        }
+    }
+
+    private MessageStore store;
+    private ReentrantLock lock = new ReentrantLock();
+    private LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            return size() > MAX_USERS;
+        }
+    };
+    //change counter value at the last change of each user's groups, a snapshot read before it is not kept
+    private ConcurrentHashMap<String, Long> changedAt = new ConcurrentHashMap<>();
+    private AtomicLong changes = new AtomicLong();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong invalidations = new AtomicLong();
+
+    public LoginSnapshots(MessageStore store) {
+        this.store = store;
+    }
+
+    //encoded - the user's contact list as a payload of the given codec
+    public byte[] encoded(String login, FrameCodec codec) throws IOException {
+        Snapshot snapshot;
+        lock.lock();
+        try {
+            snapshot = snapshots.get(login);
+        } finally {
+            lock.unlock();
+        }
+        if (snapshot == null || System.currentTimeMillis() - snapshot.createdAt > MAX_AGE_MILLIS) {
+            misses.incrementAndGet();
+            long before = changes.get();
+            snapshot = new Snapshot(read(login));
+            //a change while reading may or may not be in what was read, so it is only used this once
+            Long changed = changedAt.get(login);
+            if (changed == null || changed <= before) {
+                lock.lock();
+                try {
+                    snapshots.put(login, snapshot);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } else hits.incrementAndGet();
+        byte[] payload = snapshot.encoded.get(codec.format());
+        if (payload == null) {
+            payload = codec.encode(snapshot.conversations);
+            snapshot.encoded.put(codec.format(), payload);
+        }
+        return payload;
+    }
+
+    //invalidate - forgets the snapshots of users whose groups have changed
+    public void invalidate(Collection<String> logins) {
+        long change = changes.incrementAndGet();
+        lock.lock();
+        try {
+            for (String login : logins) {
+                changedAt.put(login, change);
+                if (snapshots.remove(login) != null) invalidations.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        int users;
+        long bytes = 0;
+        lock.lock();
+        try {
+            users = snapshots.size();
+            for (Snapshot snapshot : snapshots.values()) {
+                for (byte[] payload : snapshot.encoded.values()) bytes += payload.length;
+            }
+        } finally {
+            lock.unlock();
+        }
+        long h = hits.get();
+        long m = misses.get();
+        return "users=" + users + " encodedBytes=" + bytes + " hits=" + h + " misses=" + m +
+                " hitRate=" + (h + m == 0 ? "-" : String.format("%.3f", (double) h / (h + m))) +
+                " invalidations=" + invalidations.get();
+    }
+
+    //read - every group of the user with all its members
+    private HashMap<Integer, Conversation> read(String login) throws IOException {
+        return new HashMap<>(store.conversationsOf(login));
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.MessageHistory reads a conversation's history one page at a time. Pages are cut by message id, which grows
+ * with time (see server.IdAllocator), so the server.MessageStore finds a page by id however long the history is
+ * (through the (group_id, id) index with Postgres, the sparse segment index with server.LogStore): the newest page
+ * first, then older pages before the oldest id the client has, or newer ones after the newest.
+ * Only id, sender and text are read, attachments stay in the store. The newest lines of recently read groups
+ * are answered from memory (see server.RecentMessages).
+ * Pages hold chat.history.pageSize (default 50) messages unless the client asks for fewer, at most chat.history.maxPageSize (500).
+ * <p>
+ * version 18.10.2026
+ */
+public class MessageHistory {
+    public static final int PAGE_SIZE = Integer.getInteger("chat.history.pageSize", 50);
+    public static final int MAX_PAGE_SIZE = Integer.getInteger("chat.history.maxPageSize", 500);
+
+    //one page of history, messages oldest first
+    public static class Page {
+        private final ArrayList<Long> ids = new ArrayList<>();
+        private final ArrayList<String> messages = new ArrayList<>();
+        private boolean more;
+
+        //add - appends a message, pages are built oldest first
+        void add(long id, String message) {
+            ids.add(id);
+            messages.add(message);
+        }
+
+        void setMore(boolean more) {
+            this.more = more;
+        }
+
+        public ArrayList<Long> getIds() {
+            return ids;
+        }
+
+        public ArrayList<String> getMessages() {
+            return messages;
+        }
+
+        //oldestId - cursor for the page before this one, -1 if the page is empty
+        public long getOldestId() {
+            return ids.isEmpty() ? -1 : ids.get(0);
+        }
+
+        //newestId - cursor for the page after this one, -1 if the page is empty
+        public long getNewestId() {
+            return ids.isEmpty() ? -1 : ids.get(ids.size() - 1);
+        }
+
+        //hasMore - true if there are messages beyond this page in the direction it was read
+        public boolean hasMore() {
+            return more;
+        }
+
+        //tail - the newest messages of this page
+        Page tail(int limit) {
+            if (ids.size() <= limit) return this;
+            Page page = new Page();
+            page.ids.addAll(ids.subList(ids.size() - limit, ids.size()));
+            page.messages.addAll(messages.subList(messages.size() - limit, messages.size()));
+            page.more = true;
+            return page;
+        }
+    }
+
+    private MessageStore store;
+    //the newest lines of recently read groups
+    private RecentMessages recent = new RecentMessages();
+
+    public MessageHistory(MessageStore store) {
+        this.store = store;
+    }
+
+    public RecentMessages getRecent() {
+        return recent;
+    }
+
+    //delivered - keeps a message just delivered to its group for the next newest page
+    public void delivered(int groupId, long id, String sender, String content) {
+        recent.add(groupId, id, sender + ": " + content);
+    }
+
+    //newest - the last messages of the group, from memory if the group has been read lately
+    public Page newest(int groupId, int limit) throws IOException {
+        Page page = recent.newest(groupId, limit);
+        if (page != null) return page;
+        //reading a whole buffer's worth so the following requests find it in memory
+        page = store.newest(groupId, Math.max(limit, RecentMessages.PER_GROUP));
+        recent.fill(groupId, page);
+        return page.tail(limit);
+    }
+
+    //before - the messages just before the given id
+    public Page before(int groupId, long id, int limit) throws IOException {
+        Page page = recent.before(groupId, id, limit);
+        return page != null ? page : store.before(groupId, id, limit);
+    }
+
+    //after - the messages just after the given id
+    public Page after(int groupId, long id, int limit) throws IOException {
+        Page page = recent.after(groupId, id, limit);
+        return page != null ? page : store.after(groupId, id, limit);
+    }
+
+    //pageSize - the size to use for a requested one, 0 or less asks for the default
+    public static int pageSize(int requested) {
+        return requested <= 0 ? PAGE_SIZE : Math.min(requested, MAX_PAGE_SIZE);
+    }
+}
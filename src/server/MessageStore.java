@@ -0,0 +1,119 @@
+package server;
+
+import supplementary.Conversation;
+import supplementary.User;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.MessageStore is everything the server keeps on disk: users, groups (id, name and members) and messages.
+ * chat.store picks the implementation: "postgres" (default, server.PostgresStore) or "log" (server.LogStore,
+ * files under chat.store.dir, no database needed). The caches in front of it (server.GroupCache,
+ * server.RecentMessages, server.LoginSnapshots) and the batching of writes (server.MessageWriter) are the same
+ * for both.
+ * <p>
+ * version 18.10.2026
+ */
+public interface MessageStore {
+
+    //one message as stored, the attachment is only the reference bytes (see server.AttachmentStore)
+    class Record {
+        private final long id;
+        private final int groupId;
+        private final String sender;
+        private final String content;
+        private final long timestamp;
+        private final byte[] attachment;
+
+        public Record(long id, int groupId, String sender, String content, long timestamp, byte[] attachment) {
+            this.id = id;
+            this.groupId = groupId;
+            this.sender = sender;
+            this.content = content;
+            this.timestamp = timestamp;
+            this.attachment = attachment;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getGroupId() {
+            return groupId;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getContent() {
+            return content;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public byte[] getAttachment() {
+            return attachment;
+        }
+    }
+
+    //init - prepares the storage, run once at start up
+    void init() throws IOException;
+
+    //nextIdBlock - a block number never handed out before, see server.IdAllocator
+    long nextIdBlock(IdAllocator.Kind kind) throws IOException;
+
+    //user - the user with the login, null if there is none
+    User user(String login) throws IOException;
+
+    //addUser - stores a new user, the login must not be taken
+    void addUser(int id, String login, String password, String name) throws IOException;
+
+    //logins - up to limit logins after the given one, in order
+    List<String> logins(String after, int limit) throws IOException;
+
+    //groups - every group with its members, for server.GroupCache.preload
+    Map<Integer, Conversation> groups() throws IOException;
+
+    //group - name and members of the group, no name and no members if there is no such group
+    Conversation group(int id) throws IOException;
+
+    //groupIdsOf - ids of the groups the user is in
+    Set<Integer> groupIdsOf(String login) throws IOException;
+
+    //conversationsOf - every group of the user with all its members
+    Map<Integer, Conversation> conversationsOf(String login) throws IOException;
+
+    //addGroup - stores a new group with its members
+    void addGroup(int id, String name, Collection<String> members) throws IOException;
+
+    //addPrivateGroup - stores the private conversation of the two users under the given id unless they have one
+    //already, even one just stored by another server; the id of their conversation either way
+    int addPrivateGroup(int id, String login, String other) throws IOException;
+
+    //removeMember - takes the user out of the group
+    void removeMember(int id, String login) throws IOException;
+
+    //append - stores messages in the given order, they are as durable as the store makes them once it returns
+    void append(List<Record> records) throws IOException;
+
+    //newest, before, after - a page of a group's history, oldest first (see server.MessageHistory)
+    MessageHistory.Page newest(int groupId, int limit) throws IOException;
+
+    MessageHistory.Page before(int groupId, long id, int limit) throws IOException;
+
+    MessageHistory.Page after(int groupId, long id, int limit) throws IOException;
+
+    void close();
+
+    //report - counters for server.ServerStats
+    String report();
+}
@@ -0,0 +1,215 @@
+package server;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.MessageWriter persists chat messages behind the sessions' backs. Sessions put messages into a bounded
+ * queue (chat.persist.queueSize, default 10000; a full queue blocks the session until there is room again) and
+ * this thread appends them to the server.MessageStore in batches of up to chat.persist.batchSize (default 256)
+ * messages, waiting at most chat.persist.lingerMillis (default 5) for a batch to fill, one transaction (or one
+ * forced write per file) per batch. Ids come from server.IdAllocator as messages are queued, so the queue and
+ * every batch are in id order, which the append-only server.LogStore needs.
+ * <p>
+ * chat.persist.durability decides when a message counts as sent: ENQUEUE (default) delivers it to the group as
+ * soon as it is queued, COMMIT delivers it only after its batch has been committed, so nobody sees a message
+ * which could still be lost.
+ * <p>
+ * A batch the store refuses is tried again chat.persist.retries (default 3) times, waiting chat.persist.retryMillis
+ * (default 500) longer before each try, while the messages behind it wait. If it still fails, the messages are
+ * logged and their Pending.getCommitted() fails, so their senders are told.
+ * <p>
+ * version 18.10.2026
+ */
+public class MessageWriter extends Thread {
+    public enum Durability {ENQUEUE, COMMIT}
+
+    private static final int QUEUE_SIZE = Integer.getInteger("chat.persist.queueSize", 10000);
+    private static final int BATCH_SIZE = Integer.getInteger("chat.persist.batchSize", 256);
+    private static final long LINGER_MILLIS = Long.getLong("chat.persist.lingerMillis", 5);
+    private static final int RETRIES = Integer.getInteger("chat.persist.retries", 3);
+    private static final long RETRY_MILLIS = Long.getLong("chat.persist.retryMillis", 500);
+
+    //one message waiting to be written
+    public static class Pending {
+        private final MessageStore.Record record;
+        private final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Pending(MessageStore.Record record) {
+            this.record = record;
+        }
+
+        public long getId() {
+            return record.getId();
+        }
+
+        //committed - completes once the message's batch is in the store, exceptionally if it could not be stored
+        public CompletableFuture<Void> getCommitted() {
+            return committed;
+        }
+    }
+
+    private MessageStore store;
+    private IdAllocator ids;
+    //taking an id and queueing go together, so the queue is in id order
+    private ReentrantLock enqueueLock = new ReentrantLock();
+    private Durability durability;
+    private BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private volatile boolean stopping;
+    //told about every batch written, see onWritten()
+    private volatile Consumer<List<MessageStore.Record>> writtenListener = records -> {
+    };
+
+    private AtomicLong written = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private AtomicLong retries = new AtomicLong();
+    private AtomicLong batches = new AtomicLong();
+    private AtomicLong commitNanos = new AtomicLong();
+    private volatile int maxBatch;
+    private volatile long maxCommitNanos;
+
+    public MessageWriter(MessageStore store, IdAllocator ids) {
+        this(store, ids, Durability.valueOf(System.getProperty("chat.persist.durability", "enqueue").toUpperCase()));
+    }
+
+    public MessageWriter(MessageStore store, IdAllocator ids, Durability durability) {
+        super("server.MessageWriter");
+        this.store = store;
+        this.ids = ids;
+        this.durability = durability;
+        setDaemon(true);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    //onWritten - registers who to tell about the messages of every batch once it is in the store, on this thread
+    public void onWritten(Consumer<List<MessageStore.Record>> listener) {
+        this.writtenListener = listener;
+    }
+
+    //write - queues a message for writing under a new id from server.IdAllocator.
+    //The attachment only gets the attachment reference (see server.AttachmentStore), never file content.
+    public Pending write(int groupId, String sender, String content, Timestamp timestamp, byte[] attachment)
+            throws IOException, InterruptedException {
+        enqueueLock.lockInterruptibly();
+        try {
+            Pending pending = new Pending(new MessageStore.Record(ids.next(IdAllocator.Kind.MESSAGE), groupId, sender, content,
+                    timestamp.getTime(), attachment));
+            queue.put(pending);
+            return pending;
+        } finally {
+            enqueueLock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (!stopping || !queue.isEmpty()) {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                //waiting a little for more messages so that busy groups share one round trip
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+                while (batch.size() < BATCH_SIZE) {
+                    queue.drainTo(batch, BATCH_SIZE - batch.size());
+                    long left = deadline - System.nanoTime();
+                    if (batch.size() >= BATCH_SIZE || left <= 0) break;
+                    Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                insert(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            //asked to stop right away, whatever is still queued is lost
+        }
+    }
+
+    //shutdown - writes what is still queued and stops the thread, waits at most the given time
+    public void shutdown(long timeoutMillis) {
+        stopping = true;
+        try {
+            join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) System.err.println("server.MessageWriter: " + queue.size() + " messages not written");
+    }
+
+    private void insert(List<Pending> batch) {
+        long start = System.nanoTime();
+        List<MessageStore.Record> records = new ArrayList<>(batch.size());
+        for (Pending pending : batch) records.add(pending.record);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                store.append(records);
+                break;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("server.MessageWriter: batch of " + batch.size() + " messages failed, try " + (attempt + 1));
+                e.printStackTrace();
+                if (attempt < RETRIES && pause(RETRY_MILLIS * (attempt + 1))) {
+                    retries.incrementAndGet();
+                    continue;
+                }
+                failed.addAndGet(batch.size());
+                for (Pending pending : batch) {
+                    MessageStore.Record record = pending.record;
+                    System.err.println("server.MessageWriter: not stored " + record.getId() + " in " + record.getGroupId() +
+                            " from " + record.getSender() + ": " + record.getContent());
+                    pending.committed.completeExceptionally(e);
+                }
+                return;
+            }
+        }
+        long took = System.nanoTime() - start;
+        written.addAndGet(batch.size());
+        batches.incrementAndGet();
+        commitNanos.addAndGet(took);
+        maxBatch = Math.max(maxBatch, batch.size());
+        maxCommitNanos = Math.max(maxCommitNanos, took);
+        for (Pending pending : batch) pending.committed.complete(null);
+        try {
+            writtenListener.accept(records);
+        } catch (RuntimeException e) {
+            //the writer has to keep running
+            e.printStackTrace();
+        }
+    }
+
+    //pause - waits before the next try, false if the thread is asked to stop meanwhile
+    private static boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        long b = batches.get();
+        return "durability=" + durability.name().toLowerCase() + " queued=" + queue.size() + " written=" + written.get() +
+                " failed=" + failed.get() + " retries=" + retries.get() + " batches=" + b +
+                " avgBatch=" + (b == 0 ? "-" : String.format("%.1f", (double) written.get() / b)) + " maxBatch=" + maxBatch +
+                " avgCommitMillis=" + (b == 0 ? "-" : String.format("%.2f", commitNanos.get() / 1e6 / b)) +
+                " maxCommitMillis=" + String.format("%.2f", maxCommitNanos / 1e6);
+    }
+}
@@ -5,64 +5,71 @@ import supplementary.*;
 import java.io.*;
 
 import java.net.Socket;
-import java.sql.*;
-import java.util.*;
-
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Roman, Ali, Maurice, Nabeel, Ioana
  * <p>
- * server.NewServerThread class handles operations with one particular client using supplementary.Protocol class
+ * server.NewServerThread class handles operations with one particular client using supplementary.Protocol class.
+ * It is the thread-per-client session: blocking streams are read in run() on a platform or virtual thread of its own
+ * (see server.SessionExecutors), and a second task of the same executor writes the session's server.OutboundQueue.
+ * Locks are used instead of synchronized blocks so a virtual thread blocked in a socket write does not pin its carrier.
  * <p>
- * version 19.04.2018
+ * version 18.10.2026
  */
-public class NewServerThread extends Thread {
-    private ServerModel server;
+public class NewServerThread extends ClientSession implements Runnable {
     public Socket client;
-    private Connection connection;
-    private Statement statement;
-    private User currentUser;
-    private ObjectInputStream ois;
-    private ObjectOutputStream oos;
+    private FrameInputStream ois;
+    private FrameOutputStream oos;
+    //released when the writer has finished
+    private CountDownLatch writerDone = new CountDownLatch(1);
 
 
-    //constructor with database connection and client's socket
-    public NewServerThread(ServerModel server, Socket client, Connection connection) throws IOException, SQLException {
-        super("server.NewServerThread");
-        this.server = server;
+    //constructor with client's socket, database connections are borrowed from the server's pool per request
+    public NewServerThread(ServerModel server, Socket client) throws IOException {
+        super(server);
         this.client = client;
-        this.connection = connection;
-        this.statement = connection.createStatement();
-        oos = new ObjectOutputStream(client.getOutputStream());
-        ois = new ObjectInputStream(client.getInputStream());
+        oos = new FrameOutputStream(client.getOutputStream());
+        ois = new FrameInputStream(client.getInputStream());
     }
 
     //communication of the thread with one particular client
     public void run() {
         System.out.println("new thread");
         try {
-            //creating protocol for communication
-            Protocol protocol = new Protocol(this);
             //communication with the client using the protocol
-            Message userMessage;
+            Message userMessage = negotiate();
+            server.getSessionExecutor().execute(this::writeLoop);
 
-            while ((userMessage = (Message) ois.readObject()) != null) {
+            while (userMessage != null) {
                 if (userMessage.getCommand() == Protocol.EXIT) {
                     System.out.println("server got exit");
-                    oos.writeObject(new Message(Protocol.EXIT));
+                    send(new Message(Protocol.EXIT));
                     logoff();
                     break;
                 }
                 protocol.processInput(userMessage);
+                userMessage = (Message) ois.readObject();
             }
         } catch (Exception e) {
             System.out.println("server.NewServerThread: Exception in reading client's requests");
             e.printStackTrace();
         } finally {
+            //letting the writer send what is queued (the EXIT answer) before the socket goes away
+            outbound.close();
+            try {
+                writerDone.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                if (currentUser != null && server.getThreadPool().contains(this)) logoff();
+                else server.getThreadPool().remove(this);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
             try {
                 ois.close();
                 oos.close();
@@ -78,290 +85,79 @@ public class NewServerThread extends Thread {
         }
     }
 
-    //Sending message as an object and storing it in the database
-    public void sendMessage(Message message) {
-        try {
-            String from = message.getContent()[0];
-            int to = Integer.valueOf(message.getContent()[1]);
-            String content = message.getContent()[2];
-
-            //Sending message to everyone in corresponding group
-            executePreStatement();
-            ResultSet rs = statement.executeQuery("SELECT username FROM groups where group_id=" + to);
-            while (rs.next()) {
-                String userToSend = rs.getString(1);
-                if (!userToSend.equals(currentUser.getLogin())) {
-                    Set<NewServerThread> pool = server.getThreadPool();
-                    pool.forEach(x -> {
-                        String otherUser = x.getCurrentUser().getLogin();
-                        //   if(otherUser!=null&&!otherUser.getLogin().equals(currentUser.getLogin())) x.out.println(supplementary.Protocol.MESSAGE +" "+currentUser.getLogin()+" "+ msg);
-                        if (otherUser.equals(userToSend)) {
-                            try {
-                                x.getOut().writeObject(message);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    });
-                }
-            }
-
-            //Inserting to the database
-            executePreStatement();
-            ResultSet rs1 = statement.executeQuery("SELECT MAX(id) FROM messages");
-            rs1.next();
-            int nextId = rs1.getInt(1) + 1;
-            PreparedStatement ps = connection.prepareStatement("INSERT INTO messages VALUES (?, ?, ?, ?, ?, ?)");
-            ps.setInt(1, nextId);
-            ps.setInt(2, to);
-            ps.setString(3, from);
-            ps.setString(4, content);
-            ps.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
-            File file = message.getFile();
-            if (file != null) {
-                ps.setBytes(6, ObjectConverter.getByteArrayObject(file));
-            } else ps.setBytes(6, null);
-            ps.executeUpdate();
-            ps.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    //negotiate - answers the client's codec offer and returns the first command.
+    //A client which starts with a command right away keeps serialization.
+    private Message negotiate() throws IOException, ClassNotFoundException {
+        byte[] first = ois.readFrame();
+        int[] offer = Handshake.parseOffer(first);
+        if (offer == null) return (Message) ois.getCodec().decode(first, 0, first.length);
+        int features = Handshake.chooseFeatures(Handshake.parseOfferFeatures(first));
+        FrameCodec codec = CompressedCodec.wrap(FrameCodec.forVersion(Handshake.choose(offer)), features);
+        oos.writeFrame(Handshake.accept(codec.version(), features));
+        oos.setCodec(codec);
+        ois.setCodec(codec);
+        return (Message) ois.readObject();
     }
 
-    public void register(String username, String password, String legalName) throws IOException {
-        // Creating the hashset
+    //writeLoop - the session's writer: takes everything queued and writes it with one flush
+    private void writeLoop() {
         try {
-            //Creating private conversation group with every user in the database
-            executePreStatement();
-            ResultSet rscheck = statement.executeQuery("SELECT * FROM users WHERE username='" + username + "'");
-            if (rscheck.next()) throw new IllegalArgumentException();
-            oos.writeObject(new Message(Protocol.TRUE));
-            ResultSet rsOuter = statement.executeQuery("SELECT * FROM users");
-            while (rsOuter.next()) {
-                Statement statement2 = connection.createStatement();
-                ResultSet rsInner = statement2.executeQuery("SELECT MAX(group_id) FROM groups");
-                rsInner.next();
-                int nextGroupId = rsInner.getInt(1) + 1;
-                String otherUser = rsOuter.getString(2);
-                statement2.executeUpdate("INSERT INTO groups VALUES (" + nextGroupId + ",'private','" + otherUser + "')");
-                statement2.executeUpdate("INSERT INTO groups VALUES (" + nextGroupId + ",'private','" + username + "')");
-
-                //send all online users info about new user
-                Set<NewServerThread> pool = server.getThreadPool();
-                pool.forEach(x -> {
-                            if (x.getCurrentUser() != null && x.getCurrentUser().getLogin().equals(otherUser)) {
-                                try {
-                                    x.getOut().writeObject(new Message(Protocol.REGISTER, new String[]{String.valueOf(nextGroupId), username}));
-                                    x.getOut().writeObject(new Conversation("private", new ArrayList<String>(Arrays.asList(username, otherUser))));
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                );
+            List<byte[]> batch;
+            while (!(batch = outbound.take()).isEmpty()) {
+                oos.writeFrames(batch);
+                outbound.written(OutboundQueue.sizeOf(batch));
             }
-
-            //Creating user in users table
-            ResultSet rs = statement.executeQuery("SELECT MAX(id) FROM users");
-            rs.next();
-            int nextId = rs.getInt(1) + 1;
-            statement.executeUpdate("INSERT INTO users VALUES (" + nextId + ",'" + username + "','" + password + "','" + legalName + "')");
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            oos.writeObject(new Message(Protocol.FALSE));
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
-            System.out.println("Username already exists!");
-            oos.writeObject(new Message(Protocol.FALSE));
-        }
-
-    }
-
-    public void login(String username, String password) throws IOException {
-        try {
-            //checking user existence and password
-            executePreStatement();
-            ResultSet rs = statement.executeQuery("SELECT username, password,name FROM users WHERE username = '" + username + "'");
-            if (rs.next() && rs.getString(1).equals(username) && rs.getString(2).equals(password)) {
-                currentUser = new User(rs.getString(1), rs.getString(2), rs.getString(3));
-                oos.writeObject(new Message(Protocol.TRUE));
-
-                // send to user conversations information
-                //creating a MAP where we will store conversation info and send it to client to show as contact list
-                HashMap<Integer, Conversation> conversations = new HashMap<>();
-                ResultSet ids = statement.executeQuery("SELECT group_id FROM groups WHERE username='" + username + "'");
-                while (ids.next()) {
-                    Statement statement2 = connection.createStatement();
-                    ResultSet rs2 = statement2.executeQuery("SELECT * FROM groups WHERE group_id=" + ids.getInt(1));
-                    while (rs2.next()) {
-                        int id = rs2.getInt(1);
-                        String user = rs2.getString(3);
-                        String groupName = rs2.getString(2);
-
-                        if (!conversations.containsKey(id))
-                            conversations.put(id, new Conversation(groupName, user));
-                        else conversations.get(id).getParticipants().add(user);
-                    }
-                }
-                oos.writeObject(conversations);
-
-                // send current user all other online logins
-                Set<NewServerThread> pool = server.getThreadPool();
-                pool.forEach(x -> {
-                    User threadUser = x.getCurrentUser();
-                    if (threadUser != null && !threadUser.getLogin().equals(getCurrentUser().getLogin())) {
-                        try {
-                            oos.writeObject(new Message(Protocol.ONLINE, new String[]{threadUser.getLogin()}));
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                    }
-                });
-
-                // Send other online users current user's status
-                String login = getCurrentUser().getLogin();
-                pool.forEach(x -> {
-                            if (x.getCurrentUser() != null && !login.equals(x.getCurrentUser().getLogin())) {
-                                try {
-                                    x.getOut().writeObject(new Message(Protocol.ONLINE, new String[]{login}));
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                );
-            } else {
-                oos.writeObject(new Message(Protocol.FALSE));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
-            oos.writeObject(new Message(Protocol.FALSE));
+        } catch (InterruptedException | IOException e) {
+            System.out.println("server.NewServerThread: Exception in writing to the client");
+            disconnect();
+        } finally {
+            writerDone.countDown();
         }
     }
 
-    private void logoff() throws IOException {
-        System.out.println("logoff");
-        server.getThreadPool().remove(this);
-        Set<NewServerThread> pool = server.getThreadPool();
-        pool.forEach(x -> {
-                    User threadUser = x.getCurrentUser();
-                    if (threadUser != null) {
-                        try {
-                            x.getOut().writeObject(new Message(Protocol.OFFLINE, new String[]{currentUser.getLogin()}));
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-        );
+    @Override
+    protected FrameCodec getCodec() {
+        return oos.getCodec();
     }
 
-
-    public ObjectOutputStream getOut() {
-        return oos;
-    }
-
-    public User getCurrentUser() {
-        return currentUser;
+    @Override
+    protected void outboundReady() {
+        //the writer is woken up by the queue itself
     }
 
-    //executePreStatement - method for SQL prestatement because of database wild desires
-    public void executePreStatement() throws SQLException {
-        statement.executeQuery("SELECT\n" +
-                "    table_schema || '.' || table_name\n" +
-                "FROM\n" +
-                "    information_schema.tables\n" +
-                "WHERE\n" +
-                "    table_type = 'BASE TABLE'\n" +
-                "AND\n" +
-                "    table_schema NOT IN ('pg_catalog', 'information_schema');");
-    }
-
-    public void sendHistory(String s) {
+    @Override
+    public void disconnect() {
+        outbound.clear();
         try {
-            executePreStatement();
-            ResultSet rs = statement.executeQuery("SELECT * FROM messages WHERE group_id = " + s + " ORDER BY timestamp ASC");
-            ArrayList<String> messages = new ArrayList<>();
-            while (rs.next()) {
-                messages.add(rs.getString(3) + ": " + rs.getString(4));
-            }
-            oos.writeObject(new Message(Protocol.HISTORY, new String[]{s}));
-            oos.writeObject(messages);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            client.close();
+        } catch (IOException io) {
+            System.err.println("Couldn't close client socket" + io.getMessage());
         }
     }
 
+    @Override
     public void createGroup() {
         try {
-            Conversation conversation = (Conversation) ois.readObject();
-            String name = conversation.getName();
-            executePreStatement();
-            ResultSet rs = statement.executeQuery("SELECT MAX(group_id) FROM groups");
-            rs.next();
-            int nextGroupId = rs.getInt(1) + 1;
-            conversation.getParticipants().forEach(x ->
-                    {
-                        try {
-                            statement.executeUpdate("INSERT INTO groups VALUES (" + nextGroupId + ",'" + name + "','" + x + "')");
-                        } catch (SQLException e) {
-                            e.printStackTrace();
-                        }
-                    }
-            );
-
-            server.getThreadPool().forEach(x -> {
-                        if (x.getCurrentUser() != null && conversation.getParticipants().contains(x.getCurrentUser().getLogin())) {
-                            try {
-                                x.getOut().writeObject(new Message(Protocol.CREATE_GROUP));
-                                x.getOut().writeObject(nextGroupId);
-                                x.getOut().writeObject(conversation);
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    }
-            );
-
+            createGroup((Conversation) ois.readObject());
         } catch (IOException e) {
             e.printStackTrace();
         } catch (ClassNotFoundException e) {
             e.printStackTrace();
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
     }
 
-    public void leaveGroup(Message message) {
+    public void uploadChunk(Message header) {
         try {
-            String login = message.getContent()[0];
-            int id = Integer.valueOf(message.getContent()[1]);
-            executePreStatement();
-            ResultSet rs = statement.executeQuery("SELECT username FROM groups where group_id=" + id);
-            while (rs.next()) {
-                String userToSend = rs.getString(1);
-                Set<NewServerThread> pool = server.getThreadPool();
-                pool.forEach(x -> {
-                    String otherUser = x.getCurrentUser().getLogin();
-                    //   if(otherUser!=null&&!otherUser.getLogin().equals(currentUser.getLogin())) x.out.println(supplementary.Protocol.MESSAGE +" "+currentUser.getLogin()+" "+ msg);
-                    if (otherUser.equals(userToSend)) {
-                        try {
-                            x.getOut().writeObject(message);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-            }
-            statement.executeUpdate("DELETE FROM groups WHERE group_id=" + id + " AND username='" + login + "'");
-            System.out.println("leaveGroup");
-        } catch (SQLException e) {
+            transfers.uploadChunk(header, (byte[]) ois.readObject());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClassNotFoundException e) {
             e.printStackTrace();
         }
     }
 
+    public FrameOutputStream getOut() {
+        return oos;
+    }
+
 }
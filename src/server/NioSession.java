@@ -0,0 +1,395 @@
+package server;
+
+import supplementary.*;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.NioSession is a client session owned by one server.EventLoop. It never blocks on the socket:
+ * incoming bytes are cut into frames as they arrive and outgoing frames wait in the server.OutboundQueue
+ * until the loop, which is the session's writer, can write them.
+ * An idle session keeps no buffers at all, partial frames are only allocated while they are being received and
+ * grow with the bytes that have actually come. A client's frame may be at most chat.nio.maxFrameBytes (default
+ * 256 KB), and all sessions together hold at most chat.nio.maxBufferedBytes (default 64 MB) of partial frames;
+ * a session which would go over either is closed.
+ * Decoded commands are run by the server's worker threads (ServerModel.getCommandExecutor()), one after another in
+ * the order they came, since logins, history and search may wait for the store. The loop stops reading from a
+ * client which has MAX_PENDING commands waiting until the workers have caught up.
+ * <p>
+ * version 18.10.2026
+ */
+public class NioSession extends ClientSession {
+    //commands waiting for a worker at which the loop stops reading from the client
+    private static final int MAX_PENDING = 64;
+    //biggest frame a client may send, its commands and upload chunks are far smaller
+    private static final int MAX_FRAME = Integer.getInteger("chat.nio.maxFrameBytes", 256 * 1024);
+    private static final long MAX_BUFFERED = Long.getLong("chat.nio.maxBufferedBytes", 64L * 1024 * 1024);
+    //a partial frame's buffer starts this big and doubles as its bytes come
+    private static final int FIRST_BUFFER = 8 * 1024;
+
+    //queued after the last command of a closed session, the session is torn down there, never during a command
+    private static final Object TEARDOWN = new Object();
+
+    //bytes of partial frames held by all sessions
+    private static final AtomicLong buffered = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private EventLoop loop;
+
+    //frames taken from the outbound queue which are not completely written yet (loop thread only)
+    private ArrayDeque<ByteBuffer> writing;
+    private AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    //partially received frame (loop thread only)
+    private ByteBuffer header;
+    private ByteBuffer body;
+    //length of the frame being received into body, which may still be smaller
+    private int bodyLength;
+    //bytes of body counted in buffered
+    private long reserved;
+
+    //codec agreed with the client, serialization until the handshake says otherwise
+    private volatile FrameCodec codec = new SerialCodec();
+    private boolean negotiated;
+    //decoded frames waiting for a worker, in the order they came
+    private final ArrayDeque<Object> commands = new ArrayDeque<>();
+    private final ReentrantLock commandsLock = new ReentrantLock();
+    //true while a worker runs this session's commands
+    private boolean running;
+    //true while the loop does not read because too many commands are waiting
+    private volatile boolean paused;
+    //true when CREATE_GROUP has been received and its conversation is expected in the next frame (worker only)
+    private boolean awaitingGroup;
+    //UPLOAD_CHUNK command whose bytes are expected in the next frame (worker only)
+    private Message awaitingChunk;
+    private volatile boolean closing;
+    private volatile boolean closed;
+
+    public NioSession(ServerModel server, SocketChannel channel, EventLoop loop) {
+        super(server);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    protected FrameCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    protected void outboundReady() {
+        if (flushScheduled.compareAndSet(false, true)) loop.requestFlush(this);
+    }
+
+    @Override
+    public void disconnect() {
+        loop.requestClose(this);
+    }
+
+    @Override
+    public void createGroup() {
+        awaitingGroup = true;
+    }
+
+    @Override
+    public void uploadChunk(Message header) {
+        awaitingChunk = header;
+    }
+
+    //reading whatever is available and dispatching every completed frame
+    void onReadable(ByteBuffer buffer) {
+        try {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining() && !closed) {
+                if (body == null) {
+                    if (header == null && buffer.remaining() >= FrameCodec.HEADER_SIZE) {
+                        int length = FrameCodec.checkLength(buffer.getInt());
+                        if (buffer.remaining() >= length) {
+                            //whole frame is already in the loop buffer, decoding it in place
+                            int start = buffer.arrayOffset() + buffer.position();
+                            buffer.position(buffer.position() + length);
+                            onFrame(buffer.array(), start, length);
+                            continue;
+                        }
+                        startBody(length);
+                    } else {
+                        if (header == null) header = ByteBuffer.allocate(FrameCodec.HEADER_SIZE);
+                        transfer(buffer, header);
+                        if (header.hasRemaining()) break;
+                        header.flip();
+                        startBody(FrameCodec.checkLength(header.getInt()));
+                        header = null;
+                    }
+                }
+                if (!body.hasRemaining()) grow();
+                transfer(buffer, body);
+                if (body.position() == bodyLength) {
+                    byte[] payload = body.array();
+                    body = null;
+                    release();
+                    onFrame(payload, 0, payload.length);
+                }
+            }
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            //a frame which cannot be decoded ends this session only, never the loop
+            System.out.println("server.NioSession: Exception in reading client's requests");
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    //startBody - a buffer for the frame of the given length, the part of it which may come at once
+    private void startBody(int length) throws IOException {
+        if (length > MAX_FRAME) {
+            rejected.incrementAndGet();
+            throw new StreamCorruptedException("Client frame of " + length + " bytes");
+        }
+        bodyLength = length;
+        reserve(Math.min(length, FIRST_BUFFER));
+        body = ByteBuffer.allocate(Math.min(length, FIRST_BUFFER));
+    }
+
+    //grow - a bigger body buffer once the current one is full, never beyond the frame
+    private void grow() throws IOException {
+        int capacity = Math.min(bodyLength, body.capacity() * 2);
+        reserve(capacity - body.capacity());
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        body.flip();
+        bigger.put(body);
+        body = bigger;
+    }
+
+    //reserve - counts bytes of partial frames against chat.nio.maxBufferedBytes
+    private void reserve(long bytes) throws IOException {
+        if (buffered.addAndGet(bytes) > MAX_BUFFERED) {
+            buffered.addAndGet(-bytes);
+            rejected.incrementAndGet();
+            throw new IOException("Partial frames of all clients over " + MAX_BUFFERED + " bytes");
+        }
+        reserved += bytes;
+    }
+
+    private void release() {
+        buffered.addAndGet(-reserved);
+        reserved = 0;
+    }
+
+    //report - partial frames of all sessions for server.ServerStats
+    static String report() {
+        return "bufferedBytes=" + buffered.get() + " rejectedFrames=" + rejected.get();
+    }
+
+    //decoding one complete frame, the very first one may be the client's codec offer (see supplementary.Handshake)
+    private void onFrame(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        if (!negotiated) {
+            negotiated = true;
+            byte[] first = Arrays.copyOfRange(payload, offset, offset + length);
+            int[] offer = Handshake.parseOffer(first);
+            if (offer != null) {
+                int features = Handshake.chooseFeatures(Handshake.parseOfferFeatures(first));
+                FrameCodec chosen = CompressedCodec.wrap(FrameCodec.forVersion(Handshake.choose(offer)), features);
+                outbound.offer(new byte[][]{Handshake.accept(chosen.version(), features)}, false);
+                outboundReady();
+                codec = chosen;
+                return;
+            }
+        }
+        enqueue(codec.decode(payload, offset, length));
+    }
+
+    //enqueue - hands a decoded frame over to the workers, called by the loop only
+    private void enqueue(Object object) {
+        boolean start;
+        commandsLock.lock();
+        try {
+            commands.add(object);
+            start = !running;
+            running = true;
+            if (commands.size() >= MAX_PENDING && !paused) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } finally {
+            commandsLock.unlock();
+        }
+        if (start) server.getCommandExecutor().execute(this::runCommands);
+    }
+
+    //runCommands - runs the waiting commands on a worker, giving the thread up after MAX_PENDING of them
+    private void runCommands() {
+        for (int done = 0; ; done++) {
+            Object object;
+            boolean resume = false;
+            commandsLock.lock();
+            try {
+                if (done == MAX_PENDING && !commands.isEmpty()) {
+                    //other sessions' commands get their turn, this session keeps its place as the running one
+                    server.getCommandExecutor().execute(this::runCommands);
+                    return;
+                }
+                object = commands.poll();
+                if (object == null) {
+                    running = false;
+                    return;
+                }
+                if (paused && commands.size() < MAX_PENDING / 2) {
+                    paused = false;
+                    resume = true;
+                }
+            } finally {
+                commandsLock.unlock();
+            }
+            //the loop sets the interest in reading again when it flushes
+            if (resume) outboundReady();
+            if (object == TEARDOWN) {
+                teardown();
+                continue;
+            }
+            if (closed) continue;
+            try {
+                dispatch(object);
+            } catch (IOException | RuntimeException e) {
+                //a broken frame ends this session only, the worker goes on with the next command
+                System.out.println("server.NioSession: Exception in processing client's requests");
+                e.printStackTrace();
+                disconnect();
+            }
+        }
+    }
+
+    //handing one decoded object to the protocol, on a worker
+    private void dispatch(Object object) throws IOException {
+        if (awaitingGroup) {
+            awaitingGroup = false;
+            createGroup((Conversation) object);
+            return;
+        }
+        if (awaitingChunk != null) {
+            Message header = awaitingChunk;
+            awaitingChunk = null;
+            transfers.uploadChunk(header, (byte[]) object);
+            return;
+        }
+        Message userMessage = (Message) object;
+        if (userMessage.getCommand() == Protocol.EXIT) {
+            System.out.println("server got exit");
+            logoff();
+            //the loop closes the channel once the answer is written
+            closing = true;
+            send(new Message(Protocol.EXIT));
+            return;
+        }
+        protocol.processInput(userMessage);
+    }
+
+    //writing queued frames with as few system calls as possible, called by the loop only
+    void flush() {
+        flushScheduled.set(false);
+        if (closed) return;
+        try {
+            if (writing == null) writing = new ArrayDeque<>();
+            for (byte[] payload : outbound.drain()) {
+                ByteBuffer frame = ByteBuffer.allocate(FrameCodec.HEADER_SIZE + payload.length);
+                frame.putInt(payload.length).put(payload).flip();
+                writing.add(frame);
+            }
+            if (!writing.isEmpty()) {
+                //one gathering write for everything queued, anything left means the socket buffer is full
+                channel.write(writing.toArray(new ByteBuffer[0]));
+                long written = 0;
+                while (!writing.isEmpty() && !writing.peek().hasRemaining()) written += writing.poll().capacity();
+                if (written > 0) outbound.written(written);
+            }
+            int read = paused ? 0 : SelectionKey.OP_READ;
+            if (writing.isEmpty()) {
+                writing = null;
+                key.interestOps(read);
+                if (closing && outbound.bytes() == 0) close();
+            } else {
+                //socket buffer is full, continuing when the selector reports the channel writable
+                key.interestOps(read | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            System.out.println("server.NioSession: Exception in writing to the client");
+            close();
+        }
+    }
+
+    //closing the channel, called by the loop only; the session is torn down by a worker after the command it runs
+    void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            if (key != null) key.cancel();
+            channel.close();
+        } catch (IOException io) {
+            System.err.println("Couldn't close client channel" + io.getMessage());
+        }
+        header = null;
+        body = null;
+        release();
+        writing = null;
+        outbound.clear();
+        boolean start;
+        commandsLock.lock();
+        try {
+            commands.clear();
+            commands.add(TEARDOWN);
+            start = !running;
+            running = true;
+        } finally {
+            commandsLock.unlock();
+        }
+        if (!start) return;
+        try {
+            server.getCommandExecutor().execute(this::runCommands);
+        } catch (RejectedExecutionException e) {
+            //the server is going down
+            teardown();
+        }
+    }
+
+    //teardown - tells everyone the user is gone if it was not an orderly exit, on a worker after the last command
+    private void teardown() {
+        try {
+            if (currentUser != null && server.getThreadPool().contains(this)) logoff();
+            else server.getThreadPool().remove(this);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        transfers.close();
+        outbound.clear();
+    }
+
+    //copying as much as fits from one buffer to another
+    private static void transfer(ByteBuffer from, ByteBuffer to) {
+        int n = Math.min(from.remaining(), to.remaining());
+        ByteBuffer slice = from.duplicate();
+        slice.limit(slice.position() + n);
+        to.put(slice);
+        from.position(from.position() + n);
+    }
+}
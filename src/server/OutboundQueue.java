@@ -0,0 +1,203 @@
+package server;
+
+import supplementary.FrameCodec;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.OutboundQueue holds the encoded frames waiting to be written to one client.
+ * Senders only queue, the session's own writer drains everything queued at once and writes it with one flush,
+ * so one client on a bad link never blocks the sessions that are talking to it.
+ * <p>
+ * Slow-consumer policy (system properties):
+ * chat.outbound.maxBytes - frames not yet written to the client, beyond this the client is disconnected (1 MB);
+ * chat.outbound.presenceBytes - beyond this presence updates are dropped instead of queued (64 KB);
+ * chat.outbound.maxLagSeconds - a client whose oldest unwritten frame is older is disconnected (30 s), so a client
+ * which keeps reading but never catches up goes as well.
+ * <p>
+ * version 18.10.2026
+ */
+public class OutboundQueue {
+    public static final long MAX_BYTES = Long.getLong("chat.outbound.maxBytes", 1024 * 1024);
+    public static final long PRESENCE_BYTES = Long.getLong("chat.outbound.presenceBytes", 64 * 1024);
+    public static final long MAX_LAG_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.outbound.maxLagSeconds", 30));
+
+    public enum Result {QUEUED, DROPPED, OVERFLOW, CLOSED}
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition notEmpty = lock.newCondition();
+    private ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    //bytes queued plus bytes handed to the writer but not reported as written yet
+    private long queuedBytes;
+    private long inFlightBytes;
+    //{bytes not written yet, time queued} of every offer still unwritten, oldest first
+    private ArrayDeque<long[]> marks = new ArrayDeque<>();
+    private int dropped;
+    private boolean closed;
+
+    //offer - queues the payloads of one send() together, droppable ones are given up first when the client is behind
+    public Result offer(byte[][] payloads, boolean droppable) {
+        long size = 0;
+        for (byte[] payload : payloads) size += FrameCodec.HEADER_SIZE + payload.length;
+        long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            if (closed) return Result.CLOSED;
+            long pending = queuedBytes + inFlightBytes;
+            if (droppable && pending + size > PRESENCE_BYTES) {
+                dropped++;
+                return Result.DROPPED;
+            }
+            if (pending + size > MAX_BYTES || isLagging(now)) return Result.OVERFLOW;
+            for (byte[] payload : payloads) frames.add(payload);
+            queuedBytes += size;
+            marks.add(new long[]{size, now});
+            notEmpty.signal();
+            return Result.QUEUED;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //drain - everything queued so far, without waiting (may be empty)
+    public List<byte[]> drain() {
+        lock.lock();
+        try {
+            return takeAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //take - waits for frames and returns everything queued; empty list once the queue is closed and empty
+    public List<byte[]> take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) notEmpty.await();
+            return takeAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //written - the writer reports frames of the given size as written to the socket
+    public void written(long bytes) {
+        lock.lock();
+        try {
+            inFlightBytes = Math.max(0, inFlightBytes - bytes);
+            //the lag clock only moves on to the next offer once the oldest one is written completely
+            for (long left = bytes; left > 0 && !marks.isEmpty(); ) {
+                long[] oldest = marks.peek();
+                long done = Math.min(left, oldest[0]);
+                oldest[0] -= done;
+                left -= done;
+                if (oldest[0] == 0) marks.poll();
+            }
+            if (queuedBytes + inFlightBytes == 0) marks.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //close - refuses new frames, the writer still gets what is queued
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //clear - forgets all frames, used when the connection is gone
+    public void clear() {
+        lock.lock();
+        try {
+            closed = true;
+            frames.clear();
+            queuedBytes = 0;
+            inFlightBytes = 0;
+            marks.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //depth - frames waiting in the queue
+    public int depth() {
+        lock.lock();
+        try {
+            return frames.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //bytes - bytes queued or being written
+    public long bytes() {
+        lock.lock();
+        try {
+            return queuedBytes + inFlightBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //dropped - presence frames dropped because the client was behind
+    public int dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //age - milliseconds the oldest frame not written yet has waited, 0 if the client is up to date
+    public long age() {
+        lock.lock();
+        try {
+            return marks.isEmpty() ? 0 : System.currentTimeMillis() - marks.peek()[1];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //lagging - true when the client has been behind for longer than the policy allows
+    public boolean isLagging() {
+        lock.lock();
+        try {
+            return isLagging(System.currentTimeMillis());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //sizeOf - bytes the given payloads take on the wire
+    public static long sizeOf(List<byte[]> payloads) {
+        long size = 0;
+        for (byte[] payload : payloads) size += FrameCodec.HEADER_SIZE + payload.length;
+        return size;
+    }
+
+    private boolean isLagging(long now) {
+        return !marks.isEmpty() && now - marks.peek()[1] > MAX_LAG_MILLIS;
+    }
+
+    private List<byte[]> takeAll() {
+        List<byte[]> batch = new ArrayList<>(frames);
+        frames.clear();
+        inFlightBytes += queuedBytes;
+        queuedBytes = 0;
+        return batch;
+    }
+}
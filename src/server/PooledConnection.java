@@ -0,0 +1,93 @@
+package server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.EnumMap;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.PooledConnection is a database connection borrowed from server.ConnectionPool together with its
+ * prepared statements, one per server.Query. Closing it gives it back to the pool, it is meant for try-with-resources:
+ * <pre>
+ * try (PooledConnection db = database.borrow()) {
+ *     PreparedStatement ps = db.statement(Query.USER_BY_NAME);
+ *     ...
+ * }
+ * </pre>
+ * <p>
+ * version 18.10.2026
+ */
+public class PooledConnection implements AutoCloseable {
+    private ConnectionPool pool;
+    private Connection connection;
+    private EnumMap<Query, PreparedStatement> statements = new EnumMap<>(Query.class);
+    //set when a statement failed in a way that may have broken the connection
+    private boolean broken;
+
+    PooledConnection(ConnectionPool pool, Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    //statement - the prepared statement for the query, prepared on first use and reused afterwards
+    public PreparedStatement statement(Query query) throws SQLException {
+        return statement(query, query.getSql());
+    }
+
+    //statement - the same for a query whose SQL the caller completed, which must always be the same for the query
+    public PreparedStatement statement(Query query, String sql) throws SQLException {
+        PreparedStatement statement = statements.get(query);
+        if (statement == null) {
+            try {
+                statement = connection.prepareStatement(sql);
+            } catch (SQLException e) {
+                broken = true;
+                throw e;
+            }
+            statements.put(query, statement);
+        }
+        return statement;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    //markBroken - tells the pool to throw the connection away instead of reusing it
+    public void markBroken() {
+        broken = true;
+    }
+
+    boolean isUsable() {
+        try {
+            return !broken && !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    //closing the statements and the physical connection, used by the pool only
+    void destroy() {
+        for (PreparedStatement statement : statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                //connection is going away anyway
+            }
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.println("Couldn't close database connection" + e.getMessage());
+        }
+    }
+
+    //close - returns the connection to the pool
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+}
@@ -0,0 +1,417 @@
+package server;
+
+import supplementary.Conversation;
+import supplementary.User;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.PostgresStore keeps users, groups and messages in the chat database, using connections borrowed from
+ * server.ConnectionPool and the statements of server.Query. Database errors come out as IOExceptions with the
+ * SQLException as their cause.
+ * <p>
+ * version 18.10.2026
+ */
+public class PostgresStore implements MessageStore {
+    //block sequence and the query placing it past the ids already used, per kind of id
+    private static final EnumMap<IdAllocator.Kind, String> SEQUENCES = new EnumMap<>(IdAllocator.Kind.class);
+    private static final EnumMap<IdAllocator.Kind, Query> NEXT_BLOCK = new EnumMap<>(IdAllocator.Kind.class);
+    private static final EnumMap<IdAllocator.Kind, Query> MAX_ID = new EnumMap<>(IdAllocator.Kind.class);
+
+    static {
+        SEQUENCES.put(IdAllocator.Kind.MESSAGE, "chat_message_id_block");
+        SEQUENCES.put(IdAllocator.Kind.USER, "chat_user_id_block");
+        SEQUENCES.put(IdAllocator.Kind.GROUP, "chat_group_id_block");
+        NEXT_BLOCK.put(IdAllocator.Kind.MESSAGE, Query.MESSAGE_ID_BLOCK);
+        NEXT_BLOCK.put(IdAllocator.Kind.USER, Query.USER_ID_BLOCK);
+        NEXT_BLOCK.put(IdAllocator.Kind.GROUP, Query.GROUP_ID_BLOCK);
+        MAX_ID.put(IdAllocator.Kind.MESSAGE, Query.MAX_MESSAGE_ID);
+        MAX_ID.put(IdAllocator.Kind.USER, Query.MAX_USER_ID);
+        MAX_ID.put(IdAllocator.Kind.GROUP, Query.MAX_GROUP_ID);
+    }
+
+    private ConnectionPool database;
+    //history page queries with the real column names, completed once by init()
+    private final EnumMap<Query, String> pageSql = new EnumMap<>(Query.class);
+
+    public PostgresStore(ConnectionPool database) {
+        this.database = database;
+    }
+
+    public ConnectionPool getDatabase() {
+        return database;
+    }
+
+    //init - looks up the names of the sender and text columns, known only by position, widens an int id column,
+    //creates the page index, the private pairs table, filled from the private groups there are, and the id block
+    //sequences, placed past the ids already used
+    @Override
+    public void init() throws IOException {
+        try (PooledConnection db = database.borrow();
+             Statement statement = db.getConnection().createStatement()) {
+            boolean widen;
+            try (ResultSet rs = statement.executeQuery(Query.MESSAGE_COLUMNS.getSql())) {
+                ResultSetMetaData meta = rs.getMetaData();
+                for (Query query : new Query[]{Query.HISTORY_NEWEST, Query.HISTORY_BEFORE, Query.HISTORY_AFTER}) {
+                    pageSql.put(query, query.getSql().replace("{sender}", meta.getColumnName(3))
+                            .replace("{content}", meta.getColumnName(4)));
+                }
+                widen = meta.getColumnType(1) != Types.BIGINT;
+            }
+            //only once, the table is locked and rewritten
+            if (widen) {
+                statement.executeUpdate(Query.WIDEN_MESSAGE_ID.getSql());
+                System.out.println("server.PostgresStore: messages.id widened to bigint");
+            }
+            statement.executeUpdate(Query.HISTORY_INDEX.getSql());
+            boolean pairs;
+            try (ResultSet rs = statement.executeQuery(Query.PRIVATE_PAIRS_EXIST.getSql())) {
+                rs.next();
+                pairs = rs.getBoolean(1);
+            }
+            if (!pairs) {
+                String name;
+                try (ResultSet rs = statement.executeQuery(Query.GROUP_COLUMNS.getSql())) {
+                    name = rs.getMetaData().getColumnName(2);
+                }
+                statement.executeUpdate(Query.PRIVATE_PAIRS_TABLE.getSql());
+                int filled = statement.executeUpdate(Query.PRIVATE_PAIRS_FILL.getSql().replace("{name}", name));
+                System.out.println("server.PostgresStore: chat_private_pairs created with " + filled + " pairs");
+            }
+            for (IdAllocator.Kind kind : IdAllocator.Kind.values()) {
+                String sequence = SEQUENCES.get(kind);
+                statement.executeUpdate("CREATE SEQUENCE IF NOT EXISTS " + sequence);
+                try (ResultSet rs = statement.executeQuery("SELECT setval('" + sequence + "', GREATEST(nextval('" +
+                        sequence + "'), (" + MAX_ID.get(kind).getSql() + ") / " + IdAllocator.BLOCK_SIZE + " + 1))")) {
+                    rs.next();
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public long nextIdBlock(IdAllocator.Kind kind) throws IOException {
+        try (PooledConnection db = database.borrow();
+             ResultSet rs = db.statement(NEXT_BLOCK.get(kind)).executeQuery()) {
+            rs.next();
+            return rs.getLong(1);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public User user(String login) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.USER_BY_NAME);
+            ps.setString(1, login);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new User(rs.getString(1), rs.getString(2), rs.getString(3)) : null;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void addUser(int id, String login, String password, String name) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement insertUser = db.statement(Query.INSERT_USER);
+            insertUser.setInt(1, id);
+            insertUser.setString(2, login);
+            insertUser.setString(3, password);
+            insertUser.setString(4, name);
+            insertUser.executeUpdate();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public List<String> logins(String after, int limit) throws IOException {
+        ArrayList<String> logins = new ArrayList<>();
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.CONTACTS_PAGE);
+            ps.setString(1, after);
+            ps.setInt(2, limit);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) logins.add(rs.getString(1));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return logins;
+    }
+
+    @Override
+    public Map<Integer, Conversation> groups() throws IOException {
+        try (PooledConnection db = database.borrow();
+             ResultSet rs = db.statement(Query.ALL_GROUPS).executeQuery()) {
+            return conversations(rs);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Conversation group(int id) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.GROUP_BY_ID);
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                Conversation group = conversations(rs).get(id);
+                return group != null ? group : new Conversation(null, new ArrayList<>());
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Set<Integer> groupIdsOf(String login) throws IOException {
+        Set<Integer> ids = new HashSet<>();
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.GROUP_IDS_OF_USER);
+            ps.setString(1, login);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) ids.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return ids;
+    }
+
+    @Override
+    public Map<Integer, Conversation> conversationsOf(String login) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.CONVERSATIONS_OF_USER);
+            ps.setString(1, login);
+            try (ResultSet rs = ps.executeQuery()) {
+                return conversations(rs);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void addGroup(int id, String name, Collection<String> members) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement insertMember = db.statement(Query.INSERT_GROUP_MEMBER);
+            for (String member : members) {
+                insertMember.setInt(1, id);
+                insertMember.setString(2, name);
+                insertMember.setString(3, member);
+                insertMember.addBatch();
+            }
+            transaction(db, insertMember);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    //addPrivateGroup - claims the pair in chat_private_pairs and adds the members in the same transaction, so of two
+    //servers creating it at once the second claims nothing, waits for the first to commit and reads its id
+    @Override
+    public int addPrivateGroup(int id, String login, String other) throws IOException {
+        String first = login.compareTo(other) < 0 ? login : other;
+        String second = first.equals(login) ? other : login;
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement claim = db.statement(Query.CLAIM_PRIVATE_PAIR);
+            claim.setString(1, first);
+            claim.setString(2, second);
+            claim.setInt(3, id);
+            PreparedStatement insertMember = db.statement(Query.INSERT_GROUP_MEMBER);
+            for (String member : new String[]{first, second}) {
+                insertMember.setInt(1, id);
+                insertMember.setString(2, PrivateConversations.NAME);
+                insertMember.setString(3, member);
+                insertMember.addBatch();
+            }
+            boolean claimed = transaction(db, () -> {
+                if (claim.executeUpdate() == 0) {
+                    insertMember.clearBatch();
+                    return false;
+                }
+                insertMember.executeBatch();
+                return true;
+            });
+            if (claimed) return id;
+
+            PreparedStatement ps = db.statement(Query.PRIVATE_PAIR);
+            ps.setString(1, first);
+            ps.setString(2, second);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) throw new IOException("private pair " + first + " " + second + " not found");
+                return rs.getInt(1);
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    //removeMember - a private conversation left by one of the two is theirs no more, the next open creates another
+    @Override
+    public void removeMember(int id, String login) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.DELETE_GROUP_MEMBER);
+            ps.setInt(1, id);
+            ps.setString(2, login);
+            PreparedStatement release = db.statement(Query.RELEASE_PRIVATE_PAIR);
+            release.setInt(1, id);
+            transaction(db, () -> ps.executeUpdate() + release.executeUpdate());
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    //append - one JDBC batch in one transaction
+    @Override
+    public void append(List<Record> records) throws IOException {
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(Query.INSERT_MESSAGE);
+            for (Record record : records) {
+                ps.setLong(1, record.getId());
+                ps.setInt(2, record.getGroupId());
+                ps.setString(3, record.getSender());
+                ps.setString(4, record.getContent());
+                ps.setTimestamp(5, new Timestamp(record.getTimestamp()));
+                ps.setBytes(6, record.getAttachment());
+                ps.addBatch();
+            }
+            transaction(db, ps);
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public MessageHistory.Page newest(int groupId, int limit) throws IOException {
+        return page(groupId, Query.HISTORY_NEWEST, 0, limit, true);
+    }
+
+    @Override
+    public MessageHistory.Page before(int groupId, long id, int limit) throws IOException {
+        return page(groupId, Query.HISTORY_BEFORE, id, limit, true);
+    }
+
+    @Override
+    public MessageHistory.Page after(int groupId, long id, int limit) throws IOException {
+        return page(groupId, Query.HISTORY_AFTER, id, limit, false);
+    }
+
+    @Override
+    public void close() {
+        database.close();
+    }
+
+    @Override
+    public String report() {
+        return database.report();
+    }
+
+    //Work - statements run by transaction()
+    private interface Work<T> {
+        T run() throws SQLException;
+    }
+
+    //transaction - runs the statement's batch in a transaction of its own
+    private static void transaction(PooledConnection db, PreparedStatement batch) throws SQLException {
+        transaction(db, batch::executeBatch);
+    }
+
+    //transaction - runs the work in a transaction of its own, what it returns once committed
+    private static <T> T transaction(PooledConnection db, Work<T> work) throws SQLException {
+        Connection connection = db.getConnection();
+        connection.setAutoCommit(false);
+        try {
+            T result = work.run();
+            connection.commit();
+            return result;
+        } catch (SQLException e) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollback) {
+                db.markBroken();
+            }
+            throw e;
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                db.markBroken();
+            }
+        }
+    }
+
+    //conversations - rows of the groups table by group id, the name is in the second column and the member in the third
+    private static Map<Integer, Conversation> conversations(ResultSet rs) throws SQLException {
+        HashMap<Integer, Conversation> conversations = new HashMap<>();
+        while (rs.next()) {
+            int id = rs.getInt(1);
+            String groupName = rs.getString(2);
+            String member = rs.getString(3);
+
+            if (!conversations.containsKey(id))
+                conversations.put(id, new Conversation(groupName, member));
+            else conversations.get(id).getParticipants().add(member);
+        }
+        return conversations;
+    }
+
+    private MessageHistory.Page page(int groupId, Query query, long id, int limit, boolean descending) throws IOException {
+        MessageHistory.Page page = new MessageHistory.Page();
+        ArrayList<Long> ids = new ArrayList<>();
+        ArrayList<String> messages = new ArrayList<>();
+        String sql = pageSql.get(query);
+        if (sql == null) throw new IOException("server.PostgresStore: history read before init()");
+        try (PooledConnection db = database.borrow()) {
+            PreparedStatement ps = db.statement(query, sql);
+            int i = 1;
+            ps.setInt(i++, groupId);
+            if (query != Query.HISTORY_NEWEST) ps.setLong(i++, id);
+            //one row more than asked tells whether there is another page
+            ps.setInt(i, limit + 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (messages.size() == limit) {
+                        page.setMore(true);
+                        break;
+                    }
+                    ids.add(rs.getLong(1));
+                    messages.add(rs.getString(2) + ": " + rs.getString(3));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        if (descending) {
+            Collections.reverse(ids);
+            Collections.reverse(messages);
+        }
+        for (int i = 0; i < ids.size(); i++) page.add(ids.get(i), messages.get(i));
+        return page;
+    }
+}
@@ -0,0 +1,179 @@
+package server;
+
+import supplementary.Message;
+import supplementary.Protocol;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.PresenceService tells users when someone they share a conversation with comes online or goes offline.
+ * Changes are collected and sent every chat.presence.flushMillis (default 250) as one PRESENCE frame per
+ * recipient, however many users changed. Going offline is only announced once the user has stayed away for
+ * chat.presence.debounceMillis (default 2000), so a quick reconnect is never seen by anybody. A user logging in
+ * gets the online users among its contacts as a single PRESENCE frame.
+ * <p>
+ * version 18.10.2026
+ */
+public class PresenceService {
+    private static final long FLUSH_MILLIS = Long.getLong("chat.presence.flushMillis", 250);
+    private static final long DEBOUNCE_MILLIS = Long.getLong("chat.presence.debounceMillis", 2000);
+
+    //latest change of a user not announced yet
+    private static class Change {
+        private final boolean online;
+        private final long at;
+        //announced even if this node has not announced the user online, e.g. for users of a node which is gone
+        private final boolean always;
+
+        Change(boolean online, long at, boolean always) {
+            this.online = online;
+            this.at = at;
+            this.always = always;
+        }
+    }
+
+    private SessionRegistry sessions;
+    private GroupCache groups;
+    private ConcurrentHashMap<String, Change> pending = new ConcurrentHashMap<>();
+    //users whose coming online has been announced and their going offline has not; only the flushing thread changes it
+    private Set<String> announcedOnline = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "server.PresenceService");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private AtomicLong changes = new AtomicLong();
+    private AtomicLong suppressed = new AtomicLong();
+    private AtomicLong frames = new AtomicLong();
+    private AtomicLong updates = new AtomicLong();
+
+    public PresenceService(SessionRegistry sessions, GroupCache groups) {
+        this.sessions = sessions;
+        this.groups = groups;
+    }
+
+    public void start() {
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    //loggedIn - registers the session, announces the user if it was not online and sends it the online contacts
+    public void loggedIn(ClientSession session) {
+        String login = session.getCurrentUser().getLogin();
+        if (sessions.add(login, session)) changed(login, true);
+        ArrayList<String> online = new ArrayList<>();
+        for (String contact : contacts(login)) {
+            //a contact who is away but not announced yet counts as online, its going offline will reach this user
+            if (sessions.isOnline(contact) || announcedOnline.contains(contact)) online.add(Protocol.PRESENCE_ONLINE + contact);
+        }
+        if (online.isEmpty()) return;
+        try {
+            //unlike the updates this one is never dropped for a client which is behind, there would be no next one
+            Message initial = new Message(Protocol.PRESENCE, online.toArray(new String[0]));
+            session.sendEncoded(new byte[][]{session.getCodec().encode(initial)}, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //loggedOff - forgets the session, the user goes offline with its last one
+    public void loggedOff(ClientSession session) {
+        String login = session.getCurrentUser().getLogin();
+        if (sessions.remove(login, session)) changed(login, false);
+    }
+
+    //goneWithNode - the user was only online on a cluster node which has left the cluster
+    public void goneWithNode(String login) {
+        changes.incrementAndGet();
+        pending.put(login, new Change(false, System.currentTimeMillis(), true));
+    }
+
+    //joined - members of a new conversation who are online learn about each other
+    public void joined(Collection<String> members) {
+        for (String member : members) {
+            if (!sessions.isOnline(member)) continue;
+            ArrayList<String> online = new ArrayList<>();
+            for (String other : members) {
+                if (!other.equals(member) && sessions.isOnline(other)) online.add(Protocol.PRESENCE_ONLINE + other);
+            }
+            if (!online.isEmpty()) sessions.sendTo(member, new Message(Protocol.PRESENCE, online.toArray(new String[0])));
+        }
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        return "changes=" + changes.get() + " pending=" + pending.size() + " suppressed=" + suppressed.get() +
+                " frames=" + frames.get() + " updates=" + updates.get();
+    }
+
+    private void changed(String login, boolean online) {
+        changes.incrementAndGet();
+        pending.put(login, new Change(online, System.currentTimeMillis(), false));
+    }
+
+    //flush - announces the changes which are due, one frame per recipient
+    private void flush() {
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, ArrayList<String>> byRecipient = new HashMap<>();
+            Iterator<Map.Entry<String, Change>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Change> entry = it.next();
+                String login = entry.getKey();
+                Change change = entry.getValue();
+                if (!change.online && now - change.at < DEBOUNCE_MILLIS) continue;
+                //only removed if no newer change has come in meanwhile
+                if (!pending.remove(login, change)) continue;
+                //the state is what everybody has already been told, e.g. a quick reconnect, or the user is still
+                //online on another node of the cluster
+                boolean stillOnline = !change.online && sessions.isOnline(login);
+                if (stillOnline) announcedOnline.remove(login);
+                if (stillOnline || !change.always && change.online == announcedOnline.contains(login)) {
+                    suppressed.incrementAndGet();
+                    continue;
+                }
+                if (change.online) announcedOnline.add(login);
+                else announcedOnline.remove(login);
+                String update = (change.online ? Protocol.PRESENCE_ONLINE : Protocol.PRESENCE_OFFLINE) + login;
+                for (String contact : contacts(login)) {
+                    if (sessions.isOnline(contact))
+                        byRecipient.computeIfAbsent(contact, key -> new ArrayList<>()).add(update);
+                }
+            }
+            byRecipient.forEach((recipient, list) -> {
+                sessions.sendTo(recipient, new Message(Protocol.PRESENCE, list.toArray(new String[0])));
+                frames.incrementAndGet();
+                updates.addAndGet(list.size());
+            });
+        } catch (RuntimeException e) {
+            //the flusher has to keep running
+            e.printStackTrace();
+        }
+    }
+
+    //contacts - everyone sharing a conversation with the user
+    private Set<String> contacts(String login) {
+        Set<String> contacts = new HashSet<>();
+        try {
+            for (int id : groups.groupsOf(login)) contacts.addAll(groups.members(id));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        contacts.remove(login);
+        return contacts;
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.PrivateConversations finds the private conversation of two users. Such a conversation is a group named
+ * "private" with exactly these two members, and it is only created the first time one of them opens it
+ * (supplementary.Protocol.OPEN_PRIVATE), so registering a user costs the same however many users there are.
+ * Opening is serialized per pair of users by a fixed set of locks, which keeps two clients of this server opening
+ * the same conversation at the same time from creating it twice. Across servers the store has the last word:
+ * server.MessageStore.addPrivateGroup hands out the conversation another server has just created instead of a second
+ * one.
+ * <p>
+ * version 18.10.2026
+ */
+public class PrivateConversations {
+    public static final String NAME = "private";
+    private static final int LOCKS = 64;
+
+    private GroupCache groups;
+    private ReentrantLock[] locks = new ReentrantLock[LOCKS];
+
+    private AtomicLong opened = new AtomicLong();
+    private AtomicLong created = new AtomicLong();
+
+    public PrivateConversations(GroupCache groups) {
+        this.groups = groups;
+        for (int i = 0; i < LOCKS; i++) locks[i] = new ReentrantLock();
+    }
+
+    //find - id of the private conversation of the two users, -1 if there is none yet
+    public int find(String login, String other) throws IOException {
+        for (int id : groups.groupsOf(login)) {
+            GroupCache.Group group = groups.group(id);
+            if (NAME.equals(group.getName()) && group.getMembers().size() == 2 && group.getMembers().contains(other))
+                return id;
+        }
+        return -1;
+    }
+
+    //lock - the lock to hold while finding and creating the conversation of the two users
+    public ReentrantLock lock(String login, String other) {
+        //the same lock whichever of the two asks
+        int hash = login.compareTo(other) < 0 ? (login + "\n" + other).hashCode() : (other + "\n" + login).hashCode();
+        return locks[Math.floorMod(hash, LOCKS)];
+    }
+
+    public void countOpened(boolean create) {
+        opened.incrementAndGet();
+        if (create) created.incrementAndGet();
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        return "opened=" + opened.get() + " created=" + created.get();
+    }
+}
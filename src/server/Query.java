@@ -0,0 +1,68 @@
+package server;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.Query is the catalog of every SQL statement the server runs. Each pooled connection prepares a statement
+ * once, the first time it is needed, and reuses it afterwards (see server.PooledConnection), so the database
+ * parses every query once per connection instead of once per request.
+ * <p>
+ * version 18.10.2026
+ */
+public enum Query {
+    //method for SQL prestatement because of database wild desires, now run once when a connection is opened
+    PRE_STATEMENT("SELECT table_schema || '.' || table_name FROM information_schema.tables " +
+            "WHERE table_type = 'BASE TABLE' AND table_schema NOT IN ('pg_catalog', 'information_schema')"),
+
+    USER_BY_NAME("SELECT username, password, name FROM users WHERE username = ?"),
+    CONTACTS_PAGE("SELECT username FROM users WHERE username > ? ORDER BY username LIMIT ?"),
+    MAX_USER_ID("SELECT COALESCE(MAX(id), 0) FROM users"),
+    INSERT_USER("INSERT INTO users VALUES (?, ?, ?, ?)"),
+
+    ALL_GROUPS("SELECT * FROM groups"),
+    GROUP_BY_ID("SELECT * FROM groups WHERE group_id = ?"),
+    //every member of every group of the user, for the contact list sent at login
+    CONVERSATIONS_OF_USER("SELECT * FROM groups WHERE group_id IN (SELECT group_id FROM groups WHERE username = ?)"),
+    GROUP_IDS_OF_USER("SELECT group_id FROM groups WHERE username = ?"),
+    MAX_GROUP_ID("SELECT COALESCE(MAX(group_id), 0) FROM groups"),
+    INSERT_GROUP_MEMBER("INSERT INTO groups VALUES (?, ?, ?)"),
+    DELETE_GROUP_MEMBER("DELETE FROM groups WHERE group_id = ? AND username = ?"),
+    //one row per private conversation, keyed by its two logins in order, so only one server can create it;
+    //filled from the groups table when created, {name} is the group name column found by server.PostgresStore
+    GROUP_COLUMNS("SELECT * FROM groups WHERE false"),
+    PRIVATE_PAIRS_EXIST("SELECT to_regclass('chat_private_pairs') IS NOT NULL"),
+    PRIVATE_PAIRS_TABLE("CREATE TABLE IF NOT EXISTS chat_private_pairs (first_login varchar NOT NULL, " +
+            "second_login varchar NOT NULL, group_id int NOT NULL, PRIMARY KEY (first_login, second_login))"),
+    PRIVATE_PAIRS_FILL("INSERT INTO chat_private_pairs SELECT MIN(username), MAX(username), group_id FROM groups " +
+            "WHERE {name} = 'private' GROUP BY group_id HAVING COUNT(*) = 2 ON CONFLICT DO NOTHING"),
+    CLAIM_PRIVATE_PAIR("INSERT INTO chat_private_pairs VALUES (?, ?, ?) ON CONFLICT DO NOTHING"),
+    PRIVATE_PAIR("SELECT group_id FROM chat_private_pairs WHERE first_login = ? AND second_login = ?"),
+    RELEASE_PRIVATE_PAIR("DELETE FROM chat_private_pairs WHERE group_id = ?"),
+
+    MAX_MESSAGE_ID("SELECT COALESCE(MAX(id), 0) FROM messages"),
+    INSERT_MESSAGE("INSERT INTO messages VALUES (?, ?, ?, ?, ?, ?)"),
+    //history pages, {sender} and {content} are replaced by the column names server.PostgresStore finds in init();
+    //the attachment column is never read
+    MESSAGE_COLUMNS("SELECT * FROM messages WHERE false"),
+    //message ids have 64 bits (server.IdAllocator), older databases made the column an int
+    WIDEN_MESSAGE_ID("ALTER TABLE messages ALTER COLUMN id TYPE bigint"),
+    HISTORY_INDEX("CREATE INDEX IF NOT EXISTS messages_group_id_id ON messages (group_id, id)"),
+    HISTORY_NEWEST("SELECT id, {sender}, {content} FROM messages WHERE group_id = ? ORDER BY id DESC LIMIT ?"),
+    HISTORY_BEFORE("SELECT id, {sender}, {content} FROM messages WHERE group_id = ? AND id < ? ORDER BY id DESC LIMIT ?"),
+    HISTORY_AFTER("SELECT id, {sender}, {content} FROM messages WHERE group_id = ? AND id > ? ORDER BY id ASC LIMIT ?"),
+
+    //blocks of ids, see server.IdAllocator; the MAX queries above only place the sequences on the first start
+    MESSAGE_ID_BLOCK("SELECT nextval('chat_message_id_block')"),
+    USER_ID_BLOCK("SELECT nextval('chat_user_id_block')"),
+    GROUP_ID_BLOCK("SELECT nextval('chat_group_id_block')");
+
+    private final String sql;
+
+    Query(String sql) {
+        this.sql = sql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+}
@@ -0,0 +1,334 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.RecentMessages keeps the latest chat.recent.perGroup (default 200) history lines of recently read groups
+ * in memory, so the usual HISTORY request for the end of a conversation does not go to the database.
+ * A group gets a buffer the first time its newest page is read from the database, unless it has no messages at all;
+ * from then on messages are added as they are delivered. Groups nobody has read for the longest time are dropped
+ * once all buffers together take more than chat.recent.maxBytes (default 32 MB, estimated from the string lengths
+ * and the buffers' own arrays, which an empty buffer takes as well).
+ * <p>
+ * version 18.10.2026
+ */
+public class RecentMessages {
+    public static final int PER_GROUP = Integer.getInteger("chat.recent.perGroup", 200);
+    public static final long MAX_BYTES = Long.getLong("chat.recent.maxBytes", 32L * 1024 * 1024);
+    //rough size of one line besides its characters: entry, string and array headers
+    private static final int LINE_OVERHEAD = 64;
+    //rough size of an empty buffer: its id and line arrays, the object, its lock and its map entry
+    private static final long RING_OVERHEAD = 16L * PER_GROUP + 160;
+
+    //ring buffer of one group's newest lines, ids ascending from head
+    static class Ring {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long[] ids = new long[PER_GROUP];
+        private final String[] lines = new String[PER_GROUP];
+        private int head;
+        private int size;
+        private long bytes = RING_OVERHEAD;
+        //false until the newest page has been read from the database, lines added before that are merged in then
+        private volatile boolean filled;
+        //true if the database has lines older than the oldest kept here
+        private boolean olderInDatabase;
+        //set when the ring has been evicted, late additions to it are ignored
+        private boolean dropped;
+
+        //add - puts a line in id order, normally at the end; the oldest line goes if the ring is full
+        private long add(long id, String line) {
+            if (dropped) return 0;
+            int i = size;
+            while (i > 0 && ids[index(i - 1)] > id) i--;
+            if (i > 0 && ids[index(i - 1)] == id) return 0;
+            long change = cost(line);
+            if (size == PER_GROUP) {
+                if (i == 0) {
+                    olderInDatabase = true;
+                    return 0;
+                }
+                change -= cost(lines[head]);
+                lines[head] = null;
+                head = index(1);
+                size--;
+                i--;
+                olderInDatabase = true;
+            }
+            for (int j = size; j > i; j--) {
+                ids[index(j)] = ids[index(j - 1)];
+                lines[index(j)] = lines[index(j - 1)];
+            }
+            ids[index(i)] = id;
+            lines[index(i)] = line;
+            size++;
+            bytes += change;
+            return change;
+        }
+
+        private int index(int i) {
+            return (head + i) % PER_GROUP;
+        }
+    }
+
+    private ReentrantLock lock = new ReentrantLock();
+    //groups in least recently read order
+    private LinkedHashMap<Integer, Ring> rings = new LinkedHashMap<>(16, 0.75f, true);
+    private AtomicLong bytes = new AtomicLong();
+
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong fills = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    //told which groups get a buffer and which lose it, see onChange()
+    private volatile IntConsumer kept = groupId -> {
+    };
+    private volatile IntConsumer dropped = groupId -> {
+    };
+
+    //onChange - registers who to tell when a group's buffer is created and when it is dropped
+    public void onChange(IntConsumer kept, IntConsumer dropped) {
+        this.kept = kept;
+        this.dropped = dropped;
+    }
+
+    //groups - ids of the groups which have a buffer now
+    public Set<Integer> groups() {
+        lock.lock();
+        try {
+            return new HashSet<>(rings.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //add - a delivered message, kept only if its group has a buffer
+    public void add(int groupId, long id, String line) {
+        Ring ring;
+        lock.lock();
+        try {
+            ring = rings.get(groupId);
+        } finally {
+            lock.unlock();
+        }
+        if (ring == null) return;
+        ring.lock.lock();
+        try {
+            bytes.addAndGet(ring.add(id, line));
+        } finally {
+            ring.lock.unlock();
+        }
+        evict(ring);
+    }
+
+    //newest - the newest lines of the group, null if they are not all in memory
+    public MessageHistory.Page newest(int groupId, int limit) {
+        //a new buffer collects delivered lines right away, so none get lost while the database is read for fill()
+        Ring ring = ring(groupId);
+        if (!ring.filled) return miss();
+        ring.lock.lock();
+        try {
+            if (ring.size < limit && ring.olderInDatabase) return miss();
+            return page(ring, Math.max(0, ring.size - limit), ring.size, ring.size > limit || ring.olderInDatabase);
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    //before - the lines just before the given id, null if they are not all in memory
+    public MessageHistory.Page before(int groupId, long id, int limit) {
+        Ring ring = filledRing(groupId);
+        if (ring == null) return miss();
+        ring.lock.lock();
+        try {
+            int end = 0;
+            while (end < ring.size && ring.ids[ring.index(end)] < id) end++;
+            if (end < limit && ring.olderInDatabase) return miss();
+            return page(ring, Math.max(0, end - limit), end, end > limit || ring.olderInDatabase);
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    //after - the lines just after the given id, null if they are not all in memory
+    public MessageHistory.Page after(int groupId, long id, int limit) {
+        Ring ring = filledRing(groupId);
+        if (ring == null) return miss();
+        ring.lock.lock();
+        try {
+            //everything after the cursor is here only if the cursor is not older than the buffer
+            if (ring.olderInDatabase && (ring.size == 0 || id < ring.ids[ring.head])) return miss();
+            int start = 0;
+            while (start < ring.size && ring.ids[ring.index(start)] <= id) start++;
+            int end = Math.min(ring.size, start + limit);
+            return page(ring, start, end, end < ring.size);
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    //fill - starts a buffer with the newest page read from the database, lines added meanwhile are kept
+    public void fill(int groupId, MessageHistory.Page newest) {
+        Ring ring = ring(groupId);
+        boolean empty;
+        ring.lock.lock();
+        try {
+            if (ring.filled || ring.dropped) return;
+            long change = 0;
+            for (int i = 0; i < newest.getIds().size(); i++) change += ring.add(newest.getIds().get(i), newest.getMessages().get(i));
+            ring.olderInDatabase |= newest.hasMore();
+            ring.filled = true;
+            bytes.addAndGet(change);
+            empty = ring.size == 0 && !ring.olderInDatabase;
+        } finally {
+            ring.lock.unlock();
+        }
+        if (empty) {
+            //nothing to keep for a group without messages, or for an id which is no group at all
+            drop(groupId, ring);
+            return;
+        }
+        fills.incrementAndGet();
+        evict(ring);
+    }
+
+    //forget - drops the group's buffer, e.g. when its history has been changed behind the server's back
+    public void forget(int groupId) {
+        Ring ring;
+        lock.lock();
+        try {
+            ring = rings.get(groupId);
+        } finally {
+            lock.unlock();
+        }
+        if (ring != null) drop(groupId, ring);
+    }
+
+    //drop - removes the buffer unless it has been replaced meanwhile
+    private void drop(int groupId, Ring ring) {
+        boolean removed;
+        lock.lock();
+        try {
+            removed = rings.remove(groupId, ring);
+        } finally {
+            lock.unlock();
+        }
+        if (!removed) return;
+        release(ring);
+        dropped.accept(groupId);
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        int groups;
+        lock.lock();
+        try {
+            groups = rings.size();
+        } finally {
+            lock.unlock();
+        }
+        long h = hits.get();
+        long m = misses.get();
+        return "groups=" + groups + " bytes=" + bytes.get() + " maxBytes=" + MAX_BYTES + " hits=" + h + " misses=" + m +
+                " hitRate=" + (h + m == 0 ? "-" : String.format("%.3f", (double) h / (h + m))) +
+                " fills=" + fills.get() + " evictions=" + evictions.get();
+    }
+
+    //ring - the group's buffer, created if there is none
+    private Ring ring(int groupId) {
+        Ring ring;
+        boolean created = false;
+        lock.lock();
+        try {
+            ring = rings.get(groupId);
+            if (ring == null) {
+                ring = new Ring();
+                rings.put(groupId, ring);
+                bytes.addAndGet(ring.bytes);
+                created = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (created) {
+            kept.accept(groupId);
+            evict(ring);
+        }
+        return ring;
+    }
+
+    private Ring filledRing(int groupId) {
+        Ring ring;
+        lock.lock();
+        try {
+            ring = rings.get(groupId);
+        } finally {
+            lock.unlock();
+        }
+        return ring != null && ring.filled ? ring : null;
+    }
+
+    private MessageHistory.Page page(Ring ring, int start, int end, boolean more) {
+        hits.incrementAndGet();
+        MessageHistory.Page page = new MessageHistory.Page();
+        for (int i = start; i < end; i++) page.add(ring.ids[ring.index(i)], ring.lines[ring.index(i)]);
+        page.setMore(more);
+        return page;
+    }
+
+    private MessageHistory.Page miss() {
+        misses.incrementAndGet();
+        return null;
+    }
+
+    //evict - drops the least recently read groups until the budget is kept, never the one just used
+    private void evict(Ring keep) {
+        if (bytes.get() <= MAX_BYTES) return;
+        ArrayList<Ring> evicted = new ArrayList<>();
+        ArrayList<Integer> evictedIds = new ArrayList<>();
+        lock.lock();
+        try {
+            long left = bytes.get();
+            Iterator<Map.Entry<Integer, Ring>> it = rings.entrySet().iterator();
+            while (left > MAX_BYTES && it.hasNext()) {
+                Map.Entry<Integer, Ring> entry = it.next();
+                Ring ring = entry.getValue();
+                if (ring == keep) continue;
+                it.remove();
+                evicted.add(ring);
+                evictedIds.add(entry.getKey());
+                left -= ring.bytes;
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Ring ring : evicted) release(ring);
+        for (int groupId : evictedIds) dropped.accept(groupId);
+        evictions.addAndGet(evicted.size());
+    }
+
+    private void release(Ring ring) {
+        ring.lock.lock();
+        try {
+            bytes.addAndGet(-ring.bytes);
+            ring.bytes = 0;
+            ring.dropped = true;
+        } finally {
+            ring.lock.unlock();
+        }
+    }
+
+    private static long cost(String line) {
+        return LINE_OVERHEAD + 2L * line.length();
+    }
+}
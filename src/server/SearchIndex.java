@@ -0,0 +1,469 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.SearchIndex is an inverted index over the history lines ("sender: text") of the groups, so a user can
+ * search all of their conversations at once without downloading any history (supplementary.Protocol.SEARCH).
+ * Every group has its own index: word to the ids of the messages containing it, kept sorted, plus the lines for
+ * the snippets. A group is read from the server.MessageStore the first time it is searched and from then on
+ * server.MessageWriter adds every message it has written. Searching intersects the posting lists of the query's
+ * words from the newest id down, in every group of the user, and merges the groups' hits by id.
+ * <p>
+ * Groups are read by chat.search.loaders (default 2) threads of the index, never by the one searching: a search
+ * waits at most chat.search.waitMillis (default 200) for the groups it needs and tells the user that the result is
+ * not complete if some are still being read. The index is bounded by its estimated size, chat.search.maxBytes
+ * (default 128 MB), and by chat.search.groups (default 10000) groups; the least recently used groups are dropped
+ * first and read again when searched again, a group bigger than the whole index is not indexed at all. In a
+ * cluster other nodes write to the same store, so a group is brought up to date from it in the background at most
+ * every chat.search.refreshMillis (default 5000) when searched.
+ * <p>
+ * version 18.10.2026
+ */
+public class SearchIndex {
+    public static final int MAX_PAGE = 100;
+    private static final int MAX_GROUPS = Integer.getInteger("chat.search.groups", 10000);
+    private static final long MAX_BYTES = Long.getLong("chat.search.maxBytes", 128L * 1024 * 1024);
+    private static final long REFRESH_MILLIS = Long.getLong("chat.search.refreshMillis", 5000);
+    private static final int LOADERS = Integer.getInteger("chat.search.loaders", 2);
+    private static final long WAIT_MILLIS = Long.getLong("chat.search.waitMillis", 200);
+    private static final int SNIPPET_CHARS = Integer.getInteger("chat.search.snippetChars", 120);
+    //longer words are cut, nobody searches for them whole
+    private static final int MAX_WORD = 64;
+    //estimated bytes of a line besides its chars: the String, its slot in lines and its id
+    private static final int LINE_BYTES = 56;
+    //of an id in a posting list, which grows by doubling
+    private static final int POSTING_BYTES = 12;
+    //of a word seen for the first time in a group besides its chars: the String, the map entry and a posting list
+    private static final int WORD_BYTES = 144;
+
+    //one hit of a search
+    public static class Hit {
+        private final int groupId;
+        private final long id;
+        private final String snippet;
+
+        Hit(int groupId, long id, String snippet) {
+            this.groupId = groupId;
+            this.id = id;
+            this.snippet = snippet;
+        }
+
+        public int getGroupId() {
+            return groupId;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getSnippet() {
+            return snippet;
+        }
+    }
+
+    //hits of a search, newest first
+    public static class Result {
+        private final List<Hit> hits;
+        private final boolean more;
+        private final boolean complete;
+
+        Result(List<Hit> hits, boolean more, boolean complete) {
+            this.hits = hits;
+            this.more = more;
+            this.complete = complete;
+        }
+
+        public List<Hit> getHits() {
+            return hits;
+        }
+
+        //hasMore - true if there are older hits, asked for with the id of the last hit
+        public boolean hasMore() {
+            return more;
+        }
+
+        //isComplete - false if some groups were still being read and were not searched
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    //sorted message ids
+    private static class Postings {
+        private long[] ids = new long[4];
+        private int size;
+
+        //add - inserts an id, false if it is there already; messages come almost in order, so the search starts at the end
+        boolean add(long id) {
+            int at = size;
+            while (at > 0 && ids[at - 1] > id) at--;
+            if (at > 0 && ids[at - 1] == id) return false;
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            System.arraycopy(ids, at, ids, at + 1, size - at);
+            ids[at] = id;
+            size++;
+            return true;
+        }
+
+        boolean contains(long id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+
+        //below - position of the last id smaller than the given one, -1 if there is none
+        int below(long id) {
+            int at = Arrays.binarySearch(ids, 0, size, id);
+            return (at >= 0 ? at : -at - 1) - 1;
+        }
+    }
+
+    //the index of one group
+    private static class GroupIndex {
+        private final int groupId;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private HashMap<String, Postings> postings = new HashMap<>();
+        //every message id with its line at the same position
+        private Postings ids = new Postings();
+        private String[] lines = new String[4];
+        private volatile boolean loaded;
+        //bigger than the whole index, not read again until it has been dropped
+        private volatile boolean tooBig;
+        //the read from the store in progress, null if there is none; guarded by the index's lock
+        private CompletableFuture<Void> loading;
+        //dropped from the index, its bytes are no longer counted
+        private volatile boolean evicted;
+        private volatile long refreshedAt;
+        //the newest id read from the store
+        private long newestRead = -1;
+        //estimated size of the index of the group
+        private long bytes;
+
+        GroupIndex(int groupId) {
+            this.groupId = groupId;
+        }
+
+        //add - indexes a line unless it is indexed already, the estimated bytes it has taken
+        long add(long id, String line) {
+            int before = ids.size;
+            if (!ids.add(id)) return 0;
+            if (lines.length < ids.ids.length) lines = Arrays.copyOf(lines, ids.ids.length);
+            int at = ids.below(id) + 1;
+            System.arraycopy(lines, at, lines, at + 1, before - at);
+            lines[at] = line;
+            long added = LINE_BYTES + 2L * line.length();
+            for (String word : words(line)) {
+                Postings list = postings.get(word);
+                if (list == null) {
+                    list = new Postings();
+                    postings.put(word, list);
+                    added += WORD_BYTES + 2L * word.length();
+                }
+                list.add(id);
+                added += POSTING_BYTES;
+            }
+            bytes += added;
+            return added;
+        }
+
+        //clear - forgets everything read, the bytes it had
+        long clear() {
+            long freed = bytes;
+            postings = new HashMap<>();
+            ids = new Postings();
+            lines = new String[4];
+            newestRead = -1;
+            bytes = 0;
+            loaded = false;
+            return freed;
+        }
+
+        String line(long id) {
+            return lines[Arrays.binarySearch(ids.ids, 0, ids.size, id)];
+        }
+    }
+
+    private MessageStore store;
+    private boolean clustered;
+    private ReentrantLock lock = new ReentrantLock();
+    //least recently used first
+    private LinkedHashMap<Integer, GroupIndex> groups = new LinkedHashMap<>(16, 0.75f, true);
+    private ExecutorService loader = Executors.newFixedThreadPool(LOADERS, r -> {
+        Thread thread = new Thread(r, "server.SearchIndex");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private AtomicLong bytes = new AtomicLong();
+    private AtomicLong searches = new AtomicLong();
+    private AtomicLong searchNanos = new AtomicLong();
+    private AtomicLong loads = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+    private AtomicLong incomplete = new AtomicLong();
+    private AtomicLong tooBigGroups = new AtomicLong();
+
+    public SearchIndex(MessageStore store, boolean clustered) {
+        this.store = store;
+        this.clustered = clustered;
+    }
+
+    //written - indexes messages just written by server.MessageWriter, of the groups which are indexed
+    public void written(List<MessageStore.Record> records) {
+        for (MessageStore.Record record : records) {
+            GroupIndex group;
+            lock.lock();
+            try {
+                group = groups.get(record.getGroupId());
+            } finally {
+                lock.unlock();
+            }
+            if (group == null) continue;
+            group.lock.writeLock().lock();
+            try {
+                long added = group.add(record.getId(), record.getSender() + ": " + record.getContent());
+                if (!group.evicted) bytes.addAndGet(added);
+            } finally {
+                group.lock.writeLock().unlock();
+            }
+        }
+        trim();
+    }
+
+    //search - hits for all words of the query in the given groups, newest first, only ids below the given one;
+    //groups not read yet are waited for chat.search.waitMillis in all, those still being read are left out
+    public Result search(Collection<Integer> groupIds, String query, long before, int limit) {
+        long start = System.nanoTime();
+        List<String> words = words(query);
+        ArrayList<Hit> hits = new ArrayList<>();
+        boolean complete = true;
+        if (!words.isEmpty()) {
+            List<GroupIndex> ready = new ArrayList<>();
+            List<GroupIndex> waiting = new ArrayList<>();
+            List<CompletableFuture<Void>> loads = new ArrayList<>();
+            lock.lock();
+            try {
+                for (int groupId : groupIds) {
+                    GroupIndex group = group(groupId);
+                    if (group.loaded) {
+                        ready.add(group);
+                    } else {
+                        waiting.add(group);
+                        loads.add(group.loading != null ? group.loading : CompletableFuture.completedFuture(null));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            //read ones are searched even while they are refreshed
+            for (GroupIndex group : ready) search(group, words, before, limit + 1, hits);
+            long deadline = System.nanoTime() + WAIT_MILLIS * 1000000;
+            for (int i = 0; i < waiting.size(); i++) {
+                GroupIndex group = waiting.get(i);
+                try {
+                    loads.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException | ExecutionException e) {
+                    //still being read, or the read has failed and is reported by the loader
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    deadline = 0;
+                }
+                if (group.loaded) search(group, words, before, limit + 1, hits);
+                else complete = false;
+            }
+        }
+        hits.sort((a, b) -> Long.compare(b.id, a.id));
+        boolean more = hits.size() > limit;
+        List<Hit> page = more ? new ArrayList<>(hits.subList(0, limit)) : hits;
+        searches.incrementAndGet();
+        if (!complete) incomplete.incrementAndGet();
+        searchNanos.addAndGet(System.nanoTime() - start);
+        return new Result(page, more, complete);
+    }
+
+    //report - counters for server.ServerStats
+    public String report() {
+        int size;
+        lock.lock();
+        try {
+            size = groups.size();
+        } finally {
+            lock.unlock();
+        }
+        long s = searches.get();
+        return "groups=" + size + " bytes=" + bytes.get() + " searches=" + s +
+                " avgSearchMillis=" + (s == 0 ? "-" : String.format("%.2f", searchNanos.get() / 1e6 / s)) +
+                " incomplete=" + incomplete.get() + " loads=" + loads.get() + " evictions=" + evictions.get() +
+                " tooBig=" + tooBigGroups.get();
+    }
+
+    //words - the lower case words of a text, letters and digits only
+    public static List<String> words(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        int i = 0;
+        while (i < text.length()) {
+            while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i))) i++;
+            int start = i;
+            while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) i++;
+            if (i > start) {
+                String word = text.substring(start, Math.min(i, start + MAX_WORD)).toLowerCase(Locale.ROOT);
+                if (!words.contains(word)) words.add(word);
+            }
+        }
+        return words;
+    }
+
+    //search - up to limit hits of one group added to the list
+    private void search(GroupIndex group, List<String> words, long before, int limit, List<Hit> hits) {
+        group.lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[words.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = group.postings.get(words.get(i));
+                if (lists[i] == null) return;
+            }
+            //walking the shortest list, the others are only looked up
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            int found = 0;
+            for (int at = lists[0].below(before); at >= 0 && found < limit; at--) {
+                long id = lists[0].ids[at];
+                boolean all = true;
+                for (int i = 1; i < lists.length && all; i++) all = lists[i].contains(id);
+                if (!all) continue;
+                hits.add(new Hit(group.groupId, id, snippet(group.line(id), words)));
+                found++;
+            }
+        } finally {
+            group.lock.readLock().unlock();
+        }
+    }
+
+    //group - the group's index, its read from the store started if it is not read or is out of date; under the lock
+    private GroupIndex group(int groupId) {
+        GroupIndex group = groups.get(groupId);
+        if (group == null) {
+            //in the map before it is read, so nothing written meanwhile is missed
+            group = new GroupIndex(groupId);
+            groups.put(groupId, group);
+        }
+        boolean stale = !group.loaded || clustered && System.currentTimeMillis() - group.refreshedAt > REFRESH_MILLIS;
+        if (stale && group.loading == null && !group.tooBig) {
+            GroupIndex read = group;
+            group.loading = CompletableFuture.runAsync(() -> load(read), loader);
+        }
+        return group;
+    }
+
+    //load - reads the group from the store, or what has been stored since it was last read, on a loader thread
+    private void load(GroupIndex group) {
+        try {
+            if (!group.loaded) loads.incrementAndGet();
+            //other nodes may still store messages a little older than the newest one read
+            long after = group.loaded ? IdAllocator.syncFrom(group.newestRead) : -1;
+            MessageHistory.Page page;
+            do {
+                page = store.after(group.groupId, after, MessageHistory.MAX_PAGE_SIZE);
+                group.lock.writeLock().lock();
+                try {
+                    long added = 0;
+                    for (int i = 0; i < page.getIds().size(); i++) {
+                        added += group.add(page.getIds().get(i), page.getMessages().get(i));
+                    }
+                    group.newestRead = Math.max(group.newestRead, page.getNewestId());
+                    if (!group.evicted) bytes.addAndGet(added);
+                    if (group.bytes > MAX_BYTES) {
+                        //it would push every other group out and still not fit
+                        long freed = group.clear();
+                        if (!group.evicted) bytes.addAndGet(-freed);
+                        tooBigGroups.incrementAndGet();
+                        System.out.println("server.SearchIndex: group " + group.groupId + " is too big to index");
+                        group.tooBig = true;
+                        return;
+                    }
+                } finally {
+                    group.lock.writeLock().unlock();
+                }
+                after = page.getNewestId();
+                trim();
+            } while (page.hasMore() && !group.evicted);
+            //a group dropped halfway is read again when searched again
+            if (group.evicted) return;
+            group.loaded = true;
+            group.refreshedAt = System.currentTimeMillis();
+        } catch (IOException | RuntimeException e) {
+            //searching it again tries again
+            e.printStackTrace();
+        } finally {
+            lock.lock();
+            try {
+                group.loading = null;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    //trim - drops the least recently used groups while there are too many groups or bytes
+    private void trim() {
+        lock.lock();
+        try {
+            Iterator<GroupIndex> eldest = groups.values().iterator();
+            while ((groups.size() > MAX_GROUPS || bytes.get() > MAX_BYTES) && groups.size() > 1 && eldest.hasNext()) {
+                GroupIndex group = eldest.next();
+                eldest.remove();
+                group.lock.writeLock().lock();
+                try {
+                    group.evicted = true;
+                    bytes.addAndGet(-group.bytes);
+                } finally {
+                    group.lock.writeLock().unlock();
+                }
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //snippet - the part of the line around the first of the words, cut to chat.search.snippetChars
+    private static String snippet(String line, List<String> words) {
+        if (line.length() <= SNIPPET_CHARS) return line;
+        String lower = line.toLowerCase(Locale.ROOT);
+        int match = -1;
+        //lower casing may change the length, then the snippet simply starts at the beginning
+        if (lower.length() == line.length()) {
+            for (String word : words) {
+                int at = wordAt(lower, word);
+                if (at >= 0 && (match < 0 || at < match)) match = at;
+            }
+        }
+        int start = Math.max(0, Math.min(match - SNIPPET_CHARS / 3, line.length() - SNIPPET_CHARS));
+        int end = Math.min(line.length(), start + SNIPPET_CHARS);
+        return (start > 0 ? "..." : "") + line.substring(start, end) + (end < line.length() ? "..." : "");
+    }
+
+    //wordAt - position of the word where it starts a word of the text, -1 if it does not
+    private static int wordAt(String text, String word) {
+        for (int at = text.indexOf(word); at >= 0; at = text.indexOf(word, at + 1)) {
+            if (at == 0 || !Character.isLetterOrDigit(text.charAt(at - 1))) return at;
+        }
+        return -1;
+    }
+}
@@ -1,38 +1,264 @@
 package server;
 
+import supplementary.CompressedCodec;
+
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.*;
-import java.util.HashSet;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * @author Nabeel, Roman & Maurice
  * <p>
- * server.ServerModel class operates client reception, creating new thread for each client and storing them in a pool.
+ * server.ServerModel class operates client reception and stores all client sessions in a pool,
+ * logged in ones are also indexed by login in server.SessionRegistry.
+ * In THREADS mode every client runs on a thread of its own, in VIRTUAL mode on a virtual thread of its own,
+ * in NIO mode accepted sockets are spread over a small fixed set of server.EventLoop selector threads, and the
+ * sessions' commands run on chat.nio.workers (default 16) worker threads so a slow store does not stall a loop.
+ * With a server.ClusterBus (chat.cluster.bus=socket or local) the server is one node of a cluster, see server.ClusterNode.
+ * Users, groups and messages go to the server.MessageStore chosen by chat.store: "postgres" (default) or "log"
+ * (server.LogStore, which is local to one server and so cannot be used in a cluster).
  *
- * version 18.04.2018
+ * version 18.10.2026
  */
 public class ServerModel extends Thread {
-    private Set<NewServerThread> threadPool = new HashSet<>();
+    public static final int PORT = Integer.getInteger("chat.port", 6000);
+    //threads running the commands of NIO sessions, which may wait for the store
+    private static final int NIO_WORKERS = Integer.getInteger("chat.nio.workers", 16);
+
+    public enum Mode {THREADS, VIRTUAL, NIO}
+
+    //every connected session, logged in or not
+    private Set<ClientSession> threadPool = ConcurrentHashMap.newKeySet();
+    //logged in sessions by login
+    private SessionRegistry sessions = new SessionRegistry();
+    //users, groups and messages
+    private MessageStore store;
+    //attachment files by content hash
+    private AttachmentStore attachments;
+    //pages of conversation history
+    private MessageHistory history;
+    //keys of new messages, users and groups
+    private IdAllocator ids;
+    //stores messages in batches behind the sessions' backs
+    private MessageWriter messageWriter;
+    //groups in memory, created once the store is open
+    private GroupCache groups;
+    //encoded contact lists sent at login, dropped when a user's groups change
+    private LoginSnapshots loginSnapshots;
+    //private conversations, created when first opened
+    private PrivateConversations privateConversations;
+    //words of the messages, for searching all of a user's conversations
+    private SearchIndex search;
+    //online and offline announcements to contacts
+    private PresenceService presence;
+    //null unless this server is a node of a cluster
+    private ClusterNode cluster;
+    private ClusterBus clusterBus;
+    private int port;
+    private Mode mode;
+    private int eventLoops;
+    //runs the blocking sessions in THREADS and VIRTUAL modes
+    private ExecutorService sessionExecutor;
+    //runs the commands of the sessions in NIO mode, off the event loops
+    private ExecutorService commandExecutor;
+    private ServerStats stats = new ServerStats(this);
+    //clients disconnected because they could not keep up with their outbound queue
+    private AtomicLong slowConsumers = new AtomicLong();
+    private AtomicLong accepted = new AtomicLong();
+
+    public ServerModel() {
+        this(Mode.THREADS, 0);
+    }
+
+    public ServerModel(Mode mode, int eventLoops) {
+        this(mode, eventLoops, PORT, clusterBus(PORT));
+    }
+
+    //several nodes in one JVM need ports and buses of their own
+    public ServerModel(Mode mode, int eventLoops, int port, ClusterBus clusterBus) {
+        this.mode = mode;
+        this.eventLoops = eventLoops > 0 ? eventLoops : Runtime.getRuntime().availableProcessors();
+        this.port = port;
+        this.clusterBus = clusterBus;
+    }
+
+    //clusterBus - the bus chosen by chat.cluster.bus, null for a server on its own
+    private static ClusterBus clusterBus(int port) {
+        String bus = System.getProperty("chat.cluster.bus", "none");
+        if (bus.equals("socket")) {
+            String node = System.getProperty("chat.cluster.node", "127.0.0.1:" + (port + 1000));
+            List<String> peers = new ArrayList<>();
+            for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+                if (!peer.trim().isEmpty() && !peer.trim().equals(node)) peers.add(peer.trim());
+            }
+            return new SocketBus(node, peers);
+        }
+        if (bus.equals("local"))
+            return new LocalBus(System.getProperty("chat.cluster.name", "chat"), System.getProperty("chat.cluster.node", "node-" + port));
+        return null;
+    }
 
-    public Set<NewServerThread> getThreadPool() {
+    public Set<ClientSession> getThreadPool() {
         return threadPool;
     }
 
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    public MessageStore getStore() {
+        return store;
+    }
+
+    public AttachmentStore getAttachments() {
+        return attachments;
+    }
+
+    public MessageHistory getHistory() {
+        return history;
+    }
+
+    public IdAllocator getIds() {
+        return ids;
+    }
+
+    public MessageWriter getMessageWriter() {
+        return messageWriter;
+    }
+
+    public GroupCache getGroups() {
+        return groups;
+    }
+
+    public LoginSnapshots getLoginSnapshots() {
+        return loginSnapshots;
+    }
+
+    public PrivateConversations getPrivateConversations() {
+        return privateConversations;
+    }
+
+    public SearchIndex getSearch() {
+        return search;
+    }
+
+    public PresenceService getPresence() {
+        return presence;
+    }
+
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    public ExecutorService getSessionExecutor() {
+        return sessionExecutor;
+    }
+
+    public ExecutorService getCommandExecutor() {
+        return commandExecutor;
+    }
+
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    public void countSlowConsumer() {
+        slowConsumers.incrementAndGet();
+    }
+
+    public long getSlowConsumers() {
+        return slowConsumers.get();
+    }
+
+    //countAccepted - one more client connected, in any mode
+    public void countAccepted() {
+        accepted.incrementAndGet();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
     @Override
     public void run() {
-
-        // Creating a server socket
-        ServerSocket serverSocket = null;
         try {
-            serverSocket = new ServerSocket(6000);
-        } catch (IOException e) {
+            open(openStore());
+            stats.start();
+            if (mode == Mode.NIO) runSelectors();
+            else runThreads();
+        } catch (Exception e) {
             e.printStackTrace();
         }
+    }
+
+    //open - starts everything but the listening socket on the given store; benchmarks call it with a store of their
+    //own and talk to sessions directly
+    public void open(MessageStore store) throws IOException {
+        this.store = store;
+        store.init();
+        attachments = new AttachmentStore();
+        history = new MessageHistory(store);
+        groups = new GroupCache(store);
+        if (Boolean.getBoolean("chat.groups.preload")) groups.preload();
+        groups.start();
+        loginSnapshots = new LoginSnapshots(store);
+        groups.onChange(loginSnapshots::invalidate);
+        privateConversations = new PrivateConversations(groups);
+        presence = new PresenceService(sessions, groups);
+        presence.start();
+        if (clusterBus != null) {
+            //every node has to see the same users, groups and messages
+            if (store instanceof LogStore) throw new IllegalStateException("chat.store=log cannot be used in a cluster");
+            cluster = new ClusterNode(this, clusterBus);
+            sessions.setCluster(cluster);
+            history.getRecent().onChange(cluster::recentKept, cluster::recentDropped);
+            cluster.start();
+        }
+        ids = new IdAllocator(store);
+        messageWriter = new MessageWriter(store, ids);
+        search = new SearchIndex(store, cluster != null);
+        messageWriter.onWritten(search::written);
+        messageWriter.start();
+        //queued messages are written before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            messageWriter.shutdown(10000);
+            store.close();
+        }));
+        stats.addReport("store", store::report);
+        stats.addReport("messages", messageWriter::report);
+        stats.addReport("ids", ids::report);
+        stats.addReport("recent", history.getRecent()::report);
+        stats.addReport("attachments", attachments::report);
+        stats.addReport("groups", groups::report);
+        stats.addReport("logins", loginSnapshots::report);
+        stats.addReport("private", privateConversations::report);
+        stats.addReport("presence", presence::report);
+        stats.addReport("search", search::report);
+        stats.addReport("compression", CompressedCodec::report);
+        if (cluster != null) stats.addReport("cluster", cluster::report);
+    }
+
+    //openStore - the store chosen by chat.store
+    private static MessageStore openStore() throws IOException {
+        String kind = System.getProperty("chat.store", "postgres");
+        if (kind.equals("log")) return new LogStore();
+        if (!kind.equals("postgres")) throw new IllegalArgumentException("Unknown chat.store: " + kind);
 
         // Trying to establish postgres driver for database connection
         try {
@@ -47,22 +273,30 @@ public class ServerModel extends Thread {
         props.setProperty("user", "");
         props.setProperty("password", "");
         props.setProperty("ssl", "false");
+        ConnectionPool database = new ConnectionPool(url, props);
         try {
-            Connection dbConnection = DriverManager.getConnection(url, props);
-            Statement statement = dbConnection.createStatement();
-            Socket clientSocket;
+            database.warmUp();
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        return new PostgresStore(database);
+    }
 
-            // Waiting for new clients to come & creating new threads for each of them
+    //Thread per client: waiting for new clients to come & running each of them on a (virtual) thread of its own
+    private void runThreads() throws IOException {
+        sessionExecutor = mode == Mode.VIRTUAL ? SessionExecutors.virtual() : SessionExecutors.platform();
+        System.out.println("server.ServerModel: " + mode.name().toLowerCase() + " thread per client mode");
+        ServerSocket serverSocket = new ServerSocket(port, 1024);
+        try {
             while (true) {
-                clientSocket = serverSocket.accept();
-                NewServerThread newClient = new NewServerThread(this, clientSocket, dbConnection);
+                Socket clientSocket = serverSocket.accept();
+                NewServerThread newClient = new NewServerThread(this, clientSocket);
                 threadPool.add(newClient);
-                newClient.start();
+                countAccepted();
+                sessionExecutor.execute(newClient);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         } finally {
-
+            sessionExecutor.shutdownNow();
             try {
                 serverSocket.close();
             } catch (IOException io) {
@@ -70,8 +304,41 @@ public class ServerModel extends Thread {
                         io.getMessage());
             }
         }
+    }
 
+    //Non-blocking: accepting on this thread and handing every client over to the event loops round robin
+    private void runSelectors() throws IOException {
+        commandExecutor = SessionExecutors.workers(NIO_WORKERS);
+        stats.addReport("nio", NioSession::report);
+        EventLoop[] loops = new EventLoop[eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(this, i);
+            loops[i].setDaemon(true);
+            loops[i].start();
+        }
+        System.out.println("server.ServerModel: selector mode with " + loops.length + " event loops");
 
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            int next = 0;
+            while (true) {
+                SocketChannel clientChannel = serverChannel.accept();
+                clientChannel.socket().setTcpNoDelay(true);
+                loops[next].register(clientChannel);
+                next = (next + 1) % loops.length;
+            }
+        } finally {
+            for (EventLoop loop : loops) loop.interrupt();
+            commandExecutor.shutdownNow();
+            try {
+                serverChannel.close();
+            } catch (IOException io) {
+                System.err.println("Couldn't close server socket" +
+                        io.getMessage());
+            }
+        }
     }
 
 }
@@ -3,14 +3,19 @@ package server;
 /**
  * @author Roman Gaev
  *
- * Main method to start the server
+ * Main method to start the server.
+ * Usage: ServerStarter [threads|virtual|nio] [number of event loops]
  *
- * version 18.04.2018
+ * version 18.10.2026
  */
 
 public class ServerStarter {
     public static void main(String[] args){
-        ServerModel serverModel = new ServerModel();
+        ServerModel.Mode mode = ServerModel.Mode.THREADS;
+        int eventLoops = 0;
+        if (args.length > 0) mode = ServerModel.Mode.valueOf(args[0].toUpperCase());
+        if (args.length > 1) eventLoops = Integer.parseInt(args[1]);
+        ServerModel serverModel = new ServerModel(mode, eventLoops);
         serverModel.start();
     }
 }
@@ -0,0 +1,125 @@
+package server;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.ServerStats is the server's housekeeping thread. Every second, or more often if
+ * chat.outbound.maxLagSeconds is shorter, it disconnects clients which have been behind for too long (see
+ * server.OutboundQueue). Every chat.stats.intervalSeconds (default 60) it prints one line per registered report, so
+ * queue depths, cache hit rates and the like can be followed in the server log; the "slowest" line lists the
+ * chat.stats.topSessions (default 5) sessions with the most bytes waiting, with their queue depth and lag.
+ * <p>
+ * version 18.10.2026
+ */
+public class ServerStats extends Thread {
+    private static final long INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong("chat.stats.intervalSeconds", 60));
+    //a lagging client is gone at most this long after it went over the policy
+    private static final long LAG_CHECK_MILLIS = Math.max(1, Math.min(1000, OutboundQueue.MAX_LAG_MILLIS));
+    private static final int TOP_SESSIONS = Integer.getInteger("chat.stats.topSessions", 5);
+
+    private ServerModel server;
+    private Map<String, Supplier<String>> reports = new LinkedHashMap<>();
+
+    public ServerStats(ServerModel server) {
+        super("server.ServerStats");
+        this.server = server;
+        setDaemon(true);
+        addReport("outbound", this::describeOutbound);
+        addReport("slowest", this::describeSlowest);
+    }
+
+    //addReport - registers a line to print on every round
+    public synchronized void addReport(String name, Supplier<String> report) {
+        reports.put(name, report);
+    }
+
+    //report - all registered lines, as printed by the thread
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        reports.forEach((name, report) -> sb.append("stats ").append(name).append(": ").append(report.get()).append('\n'));
+        return sb.toString();
+    }
+
+    @Override
+    public void run() {
+        try {
+            long nextReport = System.currentTimeMillis() + INTERVAL_MILLIS;
+            while (!isInterrupted()) {
+                Thread.sleep(LAG_CHECK_MILLIS);
+                disconnectLaggingClients();
+                if (System.currentTimeMillis() < nextReport) continue;
+                nextReport += INTERVAL_MILLIS;
+                System.out.print(report());
+            }
+        } catch (InterruptedException e) {
+            //server is going down
+        }
+    }
+
+    //clients which stopped reading are dropped even if nobody sends them anything new
+    private void disconnectLaggingClients() {
+        server.getThreadPool().forEach(x -> {
+            if (x.getOutbound().isLagging()) {
+                System.out.println("server.ServerStats: disconnecting lagging client " +
+                        (x.getCurrentUser() == null ? "" : x.getCurrentUser().getLogin()));
+                server.countSlowConsumer();
+                x.disconnect();
+            }
+        });
+    }
+
+    private String describeOutbound() {
+        int sessions = 0;
+        long frames = 0;
+        long bytes = 0;
+        int maxDepth = 0;
+        long maxAge = 0;
+        long dropped = 0;
+        for (ClientSession session : server.getThreadPool()) {
+            OutboundQueue queue = session.getOutbound();
+            int depth = queue.depth();
+            sessions++;
+            frames += depth;
+            bytes += queue.bytes();
+            maxDepth = Math.max(maxDepth, depth);
+            maxAge = Math.max(maxAge, queue.age());
+            dropped += queue.dropped();
+        }
+        return "sessions=" + sessions + " accepted=" + server.getAccepted() + " online=" + server.getSessions().size() + " queuedFrames=" + frames + " queuedBytes=" + bytes + " maxDepth=" + maxDepth + " maxAgeMillis=" + maxAge +
+                " droppedPresence=" + dropped + " slowDisconnects=" + server.getSlowConsumers();
+    }
+
+    //describeSlowest - the sessions with the most bytes waiting: login, bytes, frames and age of the oldest frame
+    private String describeSlowest() {
+        //fewest bytes of the kept ones first, so it is the one replaced
+        PriorityQueue<Map.Entry<Long, ClientSession>> top = new PriorityQueue<>(Map.Entry.comparingByKey());
+        for (ClientSession session : server.getThreadPool()) {
+            long bytes = session.getOutbound().bytes();
+            if (bytes == 0 || top.size() == TOP_SESSIONS && top.peek().getKey() >= bytes) continue;
+            top.add(new AbstractMap.SimpleEntry<>(bytes, session));
+            if (top.size() > TOP_SESSIONS) top.poll();
+        }
+        if (top.isEmpty()) return "none";
+        List<Map.Entry<Long, ClientSession>> slowest = new ArrayList<>(top);
+        slowest.sort(Map.Entry.<Long, ClientSession>comparingByKey().reversed());
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Long, ClientSession> entry : slowest) {
+            ClientSession session = entry.getValue();
+            OutboundQueue queue = session.getOutbound();
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(session.getCurrentUser() == null ? "-" : session.getCurrentUser().getLogin())
+                    .append(" bytes=").append(entry.getKey()).append(" frames=").append(queue.depth())
+                    .append(" ageMillis=").append(queue.age());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,47 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.SessionExecutors creates the executor which runs blocking server.NewServerThread sessions.
+ * Platform executor gives every session a normal thread, virtual executor gives every session a virtual thread
+ * (Java 21+), so blocking socket reads and JDBC calls park the session instead of holding an OS thread.
+ * The project is compiled for Java 8, that is why virtual threads are looked up by reflection.
+ * In NIO mode the commands of server.NioSession are run by a fixed set of worker threads instead, see workers().
+ * <p>
+ * version 18.10.2026
+ */
+public class SessionExecutors {
+
+    //one platform thread per session, threads are reused after clients leave
+    public static ExecutorService platform() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> new Thread(r, "server.NewServerThread-" + counter.incrementAndGet()));
+    }
+
+    //one virtual thread per session
+    public static ExecutorService virtual() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer, running on " +
+                    System.getProperty("java.version"), e);
+        }
+    }
+
+    //workers - fixed threads running the commands of NIO sessions, so the event loops never wait for the store
+    public static ExecutorService workers(int threads) {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "server.NioWorker-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
@@ -0,0 +1,70 @@
+package server;
+
+import supplementary.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.SessionProbe measures how many concurrent sessions a running server can hold.
+ * It keeps opening idle connections and after every step checks with a fresh canary connection
+ * (EXIT command, which needs no database) that the server still serves new clients.
+ * Usage: SessionProbe [host] [port] [max sessions] [step]
+ * <p>
+ * version 18.10.2026
+ */
+public class SessionProbe {
+    private static final int TIMEOUT = 5000;
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ServerModel.PORT;
+        int max = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int step = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        ArrayList<Socket> sessions = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        int served = 0;
+        try {
+            while (sessions.size() < max) {
+                for (int i = 0; i < step && sessions.size() < max; i++) {
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+                    sessions.add(socket);
+                }
+                if (!canary(host, port)) break;
+                served = sessions.size();
+                System.out.println("sessions held: " + served + " (" + (System.currentTimeMillis() - start) + " ms)");
+            }
+        } catch (IOException e) {
+            System.out.println("server.SessionProbe: stopped opening sessions: " + e.getMessage());
+        }
+        System.out.println("max concurrent sessions served: " + served);
+        for (Socket socket : sessions) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //closing anyway
+            }
+        }
+    }
+
+    //checking that a brand new client still gets an answer
+    private static boolean canary(String host, int port) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            FrameOutputStream out = new FrameOutputStream(socket.getOutputStream());
+            FrameInputStream in = new FrameInputStream(socket.getInputStream());
+            out.writeObject(new Message(Protocol.EXIT));
+            return ((Message) in.readObject()).getCommand() == Protocol.EXIT;
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("server.SessionProbe: canary failed: " + e.getMessage());
+            return false;
+        }
+    }
+}
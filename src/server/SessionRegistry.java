@@ -0,0 +1,111 @@
+package server;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.SessionRegistry maps the login of every online user to its live sessions (a user may be logged in
+ * from several clients). Recipients are found with one lookup instead of scanning every connected session,
+ * and the map is safe to use while sessions connect and disconnect on other threads. On a node of a cluster
+ * (server.ClusterNode) users online on other nodes count as online too, and objects for them are forwarded there.
+ * <p>
+ * version 18.10.2026
+ */
+public class SessionRegistry {
+    private ConcurrentHashMap<String, Set<ClientSession>> sessions = new ConcurrentHashMap<>();
+    //null unless the server is a node of a cluster
+    private volatile ClusterNode cluster;
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    //add - registers a logged in session, returns true if it is the user's first one on this node
+    public boolean add(String login, ClientSession session) {
+        boolean[] first = new boolean[1];
+        sessions.compute(login, (key, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+                first[0] = true;
+            }
+            set.add(session);
+            return set;
+        });
+        ClusterNode cluster = this.cluster;
+        if (first[0] && cluster != null) cluster.localUserAdded(login);
+        return first[0];
+    }
+
+    //remove - forgets a session, returns true if it was the user's last one on this node
+    public boolean remove(String login, ClientSession session) {
+        boolean[] last = new boolean[1];
+        sessions.computeIfPresent(login, (key, set) -> {
+            if (set.remove(session) && set.isEmpty()) {
+                last[0] = true;
+                return null;
+            }
+            return set;
+        });
+        ClusterNode cluster = this.cluster;
+        if (last[0] && cluster != null) cluster.localUserRemoved(login);
+        return last[0];
+    }
+
+    //get - live sessions of the user, empty if the user is offline
+    public Set<ClientSession> get(String login) {
+        Set<ClientSession> set = sessions.get(login);
+        return set == null ? Collections.<ClientSession>emptySet() : set;
+    }
+
+    //isOnline - true if the user has a session on this or another node
+    public boolean isOnline(String login) {
+        ClusterNode cluster = this.cluster;
+        return sessions.containsKey(login) || cluster != null && cluster.isOnlineElsewhere(login);
+    }
+
+    //localLogins - live view of the logins which have at least one session on this node
+    public Set<String> localLogins() {
+        return sessions.keySet();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    //sendTo - sends objects to every session of the user, does nothing if the user is offline
+    public void sendTo(String login, Object... objects) {
+        sendToLocal(login, objects);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) cluster.forward(Collections.singletonList(login), objects);
+    }
+
+    //sendToAll - sends objects to every session of the users, other nodes get one forward for all of theirs
+    public void sendToAll(Collection<String> logins, Object... objects) {
+        for (String login : logins) sendToLocal(login, objects);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) cluster.forward(logins, objects);
+    }
+
+    //sendToEveryone - sends objects to every online user
+    public void sendToEveryone(Object... objects) {
+        for (String login : localLogins()) sendToLocal(login, objects);
+        ClusterNode cluster = this.cluster;
+        if (cluster != null) cluster.forwardToEveryone(objects);
+    }
+
+    //sendToLocal - sends objects to the user's sessions on this node only
+    public void sendToLocal(String login, Object... objects) {
+        for (ClientSession session : get(login)) {
+            try {
+                session.send(objects);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
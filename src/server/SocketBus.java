@@ -0,0 +1,242 @@
+package server;
+
+import supplementary.FrameInputStream;
+import supplementary.FrameOutputStream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * server.SocketBus connects cluster nodes with one TCP connection per pair of nodes. A node's id is the address
+ * its bus listens on ("host:port", chat.cluster.node) and chat.cluster.peers lists the other nodes' ids, separated
+ * by commas; of every pair the node with the smaller id dials and keeps redialing every second while the other is
+ * down. Payloads are length prefixed frames. Every connection has a queue of at most chat.cluster.queue (default
+ * 10000) payloads and a writer thread, so a slow node never holds up the session threads. A full queue closes the
+ * connection instead of dropping a payload: both sides take the node down and, once redialed, resend their routes
+ * and recent groups, so no route update is silently lost. Peers are not authenticated, whoever reaches the bus port
+ * joins the cluster, so chat.cluster.node has to be an address on a private interface or network.
+ * <p>
+ * version 18.10.2026
+ */
+public class SocketBus implements ClusterBus {
+    private static final int QUEUE = Integer.getInteger("chat.cluster.queue", 10000);
+    private static final long REDIAL_MILLIS = 1000;
+
+    //connection to one other node
+    private class Connection {
+        private final String node;
+        private final Socket socket;
+        private final FrameOutputStream out;
+        private final FrameInputStream in;
+        private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE);
+        //interrupted on close, so it does not wait on the queue of a dead connection
+        private final Thread writer;
+
+        Connection(String node, Socket socket, FrameOutputStream out, FrameInputStream in) {
+            this.node = node;
+            this.socket = socket;
+            this.out = out;
+            this.in = in;
+            writer = thread("server.SocketBus-write-" + node, this::write);
+        }
+
+        void write() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                //a connection closed before the writer started is seen here, later ones interrupt it
+                while (!socket.isClosed()) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    out.writeFrames(batch);
+                    batch.clear();
+                }
+            } catch (IOException | InterruptedException e) {
+                close();
+            }
+        }
+
+        void read() {
+            try {
+                while (true) receiver.receive(node, in.readFrame());
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            writer.interrupt();
+            queue.clear();
+            if (connections.remove(node, this)) receiver.nodeDown(node);
+        }
+    }
+
+    private String node;
+    private List<String> peers;
+    private volatile Receiver receiver;
+    private ServerSocket serverSocket;
+    private volatile boolean closed;
+    private ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+
+    private AtomicLong sent = new AtomicLong();
+    private AtomicLong dropped = new AtomicLong();
+    private AtomicLong overflows = new AtomicLong();
+    private AtomicLong connects = new AtomicLong();
+
+    public SocketBus(String node, List<String> peers) {
+        this.node = node;
+        this.peers = peers;
+    }
+
+    @Override
+    public String nodeId() {
+        return node;
+    }
+
+    @Override
+    public void start(Receiver receiver) throws IOException {
+        this.receiver = receiver;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address(node));
+        daemon("server.SocketBus-accept", this::accept);
+        for (String peer : peers) {
+            if (node.compareTo(peer) < 0) daemon("server.SocketBus-dial-" + peer, () -> dial(peer));
+        }
+    }
+
+    @Override
+    public void send(String node, byte[] payload) {
+        Connection connection = connections.get(node);
+        if (connection == null) {
+            //routes and recent groups are sent again when the node comes up
+            dropped.incrementAndGet();
+            return;
+        }
+        if (!connection.queue.offer(payload)) {
+            //the node has fallen behind, reconnecting resyncs it rather than leaving its routes wrong
+            overflows.incrementAndGet();
+            System.out.println("server.SocketBus: queue to " + node + " is full, reconnecting");
+            connection.close();
+            return;
+        }
+        sent.incrementAndGet();
+    }
+
+    @Override
+    public void broadcast(byte[] payload) {
+        for (String other : connections.keySet()) send(other, payload);
+    }
+
+    @Override
+    public Set<String> nodes() {
+        return new HashSet<>(connections.keySet());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Connection connection : connections.values()) connection.close();
+    }
+
+    @Override
+    public String report() {
+        int queued = 0;
+        for (Connection connection : connections.values()) queued += connection.queue.size();
+        return "node=" + node + " nodes=" + connections.size() + " queued=" + queued + " sent=" + sent.get() +
+                " dropped=" + dropped.get() + " overflows=" + overflows.get() + " connects=" + connects.get();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon("server.SocketBus-handshake", () -> {
+                    try {
+                        handshake(socket);
+                    } catch (IOException e) {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                if (!closed) e.printStackTrace();
+            }
+        }
+    }
+
+    //dial - keeps a connection to a peer with a bigger id, redialing while it is down
+    private void dial(String peer) {
+        while (!closed) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(address(peer));
+                Connection connection = handshake(socket);
+                //returns when the connection is lost
+                connection.read();
+            } catch (IOException e) {
+                //the peer is not up yet
+            }
+            try {
+                Thread.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    //handshake - both sides send their id first; the accepting side reads on a thread of its own
+    private Connection handshake(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        FrameOutputStream out = new FrameOutputStream(socket.getOutputStream());
+        FrameInputStream in = new FrameInputStream(socket.getInputStream());
+        out.writeFrame(node.getBytes(StandardCharsets.UTF_8));
+        String other = new String(in.readFrame(), StandardCharsets.UTF_8);
+        Connection connection = new Connection(other, socket, out, in);
+        Connection previous = connections.put(other, connection);
+        if (previous != null) previous.close();
+        connects.incrementAndGet();
+        receiver.nodeUp(other);
+        connection.writer.start();
+        if (node.compareTo(other) > 0) daemon("server.SocketBus-read-" + other, connection::read);
+        return connection;
+    }
+
+    private static InetSocketAddress address(String node) {
+        int colon = node.lastIndexOf(':');
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    private static void daemon(String name, Runnable task) {
+        thread(name, task).start();
+    }
+
+    private static Thread thread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,227 @@
+package supplementary;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.BinaryCodec is the compact codec for everything supplementary.Protocol sends.
+ * Every payload starts with one type tag, numbers are varints and strings are UTF-8 with a varint length
+ * (length + 1, so 0 means null). No class descriptors and no reflection are involved.
+ * <p>
+ * Types: MESSAGE (command, content, file path), CONVERSATION (name, participants, messages), INTEGER,
+ * STRING_LIST (ArrayList of String), CONVERSATION_MAP (group id to conversation, as sent at login) and
+ * BYTES (byte[], attachment chunks).
+ * <p>
+ * version 18.10.2026
+ */
+public class BinaryCodec extends FrameCodec {
+    public static final int VERSION = 1;
+
+    private static final int MESSAGE = 1;
+    private static final int CONVERSATION = 2;
+    private static final int INTEGER = 3;
+    private static final int STRING_LIST = 4;
+    private static final int CONVERSATION_MAP = 5;
+    private static final int BYTES = 6;
+
+    @Override
+    public int version() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object object) throws IOException {
+        Writer w = new Writer();
+        if (object instanceof Message) {
+            w.varint(MESSAGE);
+            Message message = (Message) object;
+            w.varint(message.getCommand());
+            w.strings(message.getContent());
+            w.string(message.getFile() == null ? null : message.getFile().getPath());
+        } else if (object instanceof Conversation) {
+            w.varint(CONVERSATION);
+            w.conversation((Conversation) object);
+        } else if (object instanceof Integer) {
+            w.varint(INTEGER);
+            w.signed((Integer) object);
+        } else if (object instanceof List) {
+            w.varint(STRING_LIST);
+            w.strings((List<?>) object);
+        } else if (object instanceof byte[]) {
+            w.varint(BYTES);
+            byte[] bytes = (byte[]) object;
+            w.varint(bytes.length);
+            w.write(bytes, 0, bytes.length);
+        } else if (object instanceof Map) {
+            w.varint(CONVERSATION_MAP);
+            Map<?, ?> map = (Map<?, ?>) object;
+            w.varint(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                w.signed((Integer) entry.getKey());
+                w.conversation((Conversation) entry.getValue());
+            }
+        } else {
+            throw new NotSerializableException("BinaryCodec cannot encode " +
+                    (object == null ? "null" : object.getClass().getName()));
+        }
+        return w.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] payload, int offset, int length) throws IOException {
+        Reader r = new Reader(payload, offset, length);
+        int type = r.varint();
+        switch (type) {
+            case MESSAGE:
+                int command = r.varint();
+                String[] content = r.stringArray();
+                String path = r.string();
+                return new Message(command, content, path == null ? null : new File(path));
+            case CONVERSATION:
+                return r.conversation();
+            case INTEGER:
+                return r.signed();
+            case STRING_LIST:
+                return r.stringList();
+            case CONVERSATION_MAP:
+                int size = r.count();
+                HashMap<Integer, Conversation> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    int id = r.signed();
+                    map.put(id, r.conversation());
+                }
+                return map;
+            case BYTES:
+                return r.bytes();
+            default:
+                throw new StreamCorruptedException("Unknown type tag " + type);
+        }
+    }
+
+    //growing output buffer with the primitive encodings
+    private static class Writer extends ByteArrayOutputStream {
+        Writer() {
+            super(64);
+        }
+
+        void varint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        //zigzag, so small negative numbers stay short
+        void signed(int value) {
+            varint((value << 1) ^ (value >> 31));
+        }
+
+        void string(String s) {
+            if (s == null) {
+                varint(0);
+                return;
+            }
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        void strings(String[] strings) {
+            if (strings == null) {
+                varint(0);
+                return;
+            }
+            varint(strings.length + 1);
+            for (String s : strings) string(s);
+        }
+
+        void strings(List<?> strings) {
+            varint(strings.size());
+            for (Object s : strings) string((String) s);
+        }
+
+        void conversation(Conversation conversation) {
+            string(conversation.getName());
+            strings(conversation.getParticipants());
+            strings(conversation.getMessages());
+        }
+    }
+
+    //bounds checked cursor over one payload
+    private static class Reader {
+        private byte[] buffer;
+        private int position;
+        private int limit;
+
+        Reader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        int varint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (position >= limit) throw new EOFException("Truncated varint");
+                int b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new StreamCorruptedException("Varint too long");
+        }
+
+        int signed() throws IOException {
+            int value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        //element count, never more than the bytes left, so a broken frame cannot make us allocate huge arrays
+        int count() throws IOException {
+            int count = varint();
+            if (count < 0 || count > limit - position)
+                throw new StreamCorruptedException("Illegal element count " + count);
+            return count;
+        }
+
+        String string() throws IOException {
+            int length = varint() - 1;
+            if (length < 0) return null;
+            if (length > limit - position) throw new EOFException("Truncated string");
+            String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+
+        byte[] bytes() throws IOException {
+            int length = count();
+            byte[] bytes = Arrays.copyOfRange(buffer, position, position + length);
+            position += length;
+            return bytes;
+        }
+
+        String[] stringArray() throws IOException {
+            int size = count() - 1;
+            if (size < 0) return null;
+            String[] strings = new String[size];
+            for (int i = 0; i < size; i++) strings[i] = string();
+            return strings;
+        }
+
+        ArrayList<String> stringList() throws IOException {
+            int size = count();
+            ArrayList<String> strings = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) strings.add(string());
+            return strings;
+        }
+
+        Conversation conversation() throws IOException {
+            Conversation conversation = new Conversation(string(), stringList());
+            conversation.getMessages().addAll(stringList());
+            return conversation;
+        }
+    }
+}
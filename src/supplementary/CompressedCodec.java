@@ -0,0 +1,195 @@
+package supplementary;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.CompressedCodec deflates the payloads of another codec, for connections which agreed on
+ * Handshake.FEATURE_DEFLATE. Payloads of at least chat.compress.minBytes (default 512) are compressed, smaller ones
+ * and ones which do not get smaller are sent as they are; the first byte of the payload tells which it is.
+ * A compressed payload is [1][int length of the original][deflate data]. With Handshake.FEATURE_DICTIONARY the
+ * deflate stream starts from DICTIONARY, text typical for chat frames, which makes short history pages much smaller.
+ * <p>
+ * Every payload is compressed on its own, so encoded payloads can still be queued, cached and shared
+ * (server.LoginSnapshots) whatever was sent before them. Deflaters and inflaters are reused: a few of them are kept
+ * for all connections (chat.compress.pooled, default twice the processors), since one per connection would cost a
+ * quarter of a megabyte of native memory per client. Counters of all connections are in report().
+ * <p>
+ * version 18.10.2026
+ */
+public class CompressedCodec extends FrameCodec {
+    private static final int MIN_BYTES = Integer.getInteger("chat.compress.minBytes", 512);
+    private static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+    private static final int POOLED = Integer.getInteger("chat.compress.pooled", 2 * Runtime.getRuntime().availableProcessors());
+    //format() of a compressing codec, added to the wrapped codec's format
+    private static final int FORMAT_DEFLATE = 0x100;
+    private static final int FORMAT_DICTIONARY = 0x200;
+    private static final byte RAW = 0;
+    private static final byte DEFLATED = 1;
+    //marker byte and original length
+    private static final int HEADER = 5;
+
+    //preset dictionary: the most frequent strings go last, where deflate finds them with the shortest distances
+    private static final byte[] DICTIONARY = ("java.util.HashMapjava.util.ArrayListjava.lang.Integerjava.lang.Number" +
+            "supplementary.Conversationsupplementary.Message[Ljava.lang.String;participantsnamecommandcontentfile" +
+            "thanks, can you have a look at the meeting tomorrow? I think we should send it today. " +
+            "Hi, how are you? Good morning, yes no ok sure, let me know when you are done. " +
+            "the and for with that this from what when will would could about please project report " +
+            "http://https://www..com ").getBytes(StandardCharsets.UTF_8);
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+    private static final AtomicLong frames = new AtomicLong();
+    private static final AtomicLong attempts = new AtomicLong();
+    private static final AtomicLong compressed = new AtomicLong();
+    private static final AtomicLong rawBytes = new AtomicLong();
+    private static final AtomicLong deflatedBytes = new AtomicLong();
+    private static final AtomicLong deflateNanos = new AtomicLong();
+    private static final AtomicLong inflated = new AtomicLong();
+    private static final AtomicLong inflateNanos = new AtomicLong();
+
+    private final FrameCodec codec;
+    private final boolean dictionary;
+
+    public CompressedCodec(FrameCodec codec, boolean dictionary) {
+        this.codec = codec;
+        this.dictionary = dictionary;
+    }
+
+    //wrap - the codec with the compression the features ask for, the codec itself if they ask for none
+    public static FrameCodec wrap(FrameCodec codec, int features) {
+        if ((features & Handshake.FEATURE_DEFLATE) == 0) return codec;
+        return new CompressedCodec(codec, (features & Handshake.FEATURE_DICTIONARY) != 0);
+    }
+
+    @Override
+    public int version() {
+        return codec.version();
+    }
+
+    @Override
+    public int format() {
+        return codec.format() | FORMAT_DEFLATE | (dictionary ? FORMAT_DICTIONARY : 0);
+    }
+
+    @Override
+    public byte[] encode(Object object) throws IOException {
+        byte[] raw = codec.encode(object);
+        frames.incrementAndGet();
+        if (raw.length >= MIN_BYTES) {
+            long start = System.nanoTime();
+            byte[] packed = deflate(raw);
+            attempts.incrementAndGet();
+            deflateNanos.addAndGet(System.nanoTime() - start);
+            if (packed != null) {
+                compressed.incrementAndGet();
+                rawBytes.addAndGet(raw.length);
+                deflatedBytes.addAndGet(packed.length);
+                return packed;
+            }
+        }
+        byte[] payload = new byte[raw.length + 1];
+        payload[0] = RAW;
+        System.arraycopy(raw, 0, payload, 1, raw.length);
+        return payload;
+    }
+
+    @Override
+    public Object decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length < 1) throw new StreamCorruptedException("Empty compressed frame");
+        if (payload[offset] == RAW) return codec.decode(payload, offset + 1, length - 1);
+        if (payload[offset] != DEFLATED || length < HEADER) throw new StreamCorruptedException("Unknown frame compression");
+        long start = System.nanoTime();
+        byte[] raw = inflate(payload, offset, length);
+        inflated.incrementAndGet();
+        inflateNanos.addAndGet(System.nanoTime() - start);
+        return codec.decode(raw, 0, raw.length);
+    }
+
+    //deflate - the compressed payload, null if it would not be smaller than the raw one
+    private byte[] deflate(byte[] raw) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(LEVEL);
+        else pooledDeflaters.decrementAndGet();
+        try {
+            deflater.reset();
+            if (dictionary) deflater.setDictionary(DICTIONARY);
+            deflater.setInput(raw);
+            deflater.finish();
+            //not smaller than the raw payload with its marker is of no use
+            byte[] packed = new byte[raw.length];
+            packed[0] = DEFLATED;
+            packed[1] = (byte) (raw.length >>> 24);
+            packed[2] = (byte) (raw.length >>> 16);
+            packed[3] = (byte) (raw.length >>> 8);
+            packed[4] = (byte) raw.length;
+            int size = HEADER;
+            while (!deflater.finished() && size < packed.length) size += deflater.deflate(packed, size, packed.length - size);
+            return deflater.finished() ? Arrays.copyOf(packed, size) : null;
+        } finally {
+            if (pooledDeflaters.incrementAndGet() <= POOLED) deflaters.offer(deflater);
+            else {
+                pooledDeflaters.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    private byte[] inflate(byte[] payload, int offset, int length) throws IOException {
+        int rawLength = checkLength(((payload[offset + 1] & 0xFF) << 24) | ((payload[offset + 2] & 0xFF) << 16) |
+                ((payload[offset + 3] & 0xFF) << 8) | (payload[offset + 4] & 0xFF));
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater();
+        else pooledInflaters.decrementAndGet();
+        try {
+            inflater.reset();
+            inflater.setInput(payload, offset + HEADER, length - HEADER);
+            byte[] raw = new byte[rawLength];
+            int size = 0;
+            while (size < rawLength) {
+                int n = inflater.inflate(raw, size, rawLength - size);
+                if (n == 0) {
+                    if (inflater.needsDictionary() && dictionary) inflater.setDictionary(DICTIONARY);
+                    else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) break;
+                }
+                size += n;
+            }
+            if (size != rawLength || !inflater.finished()) throw new StreamCorruptedException("Compressed frame is cut or too long");
+            return raw;
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Broken compressed frame: " + e.getMessage());
+        } finally {
+            if (pooledInflaters.incrementAndGet() <= POOLED) inflaters.offer(inflater);
+            else {
+                pooledInflaters.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+
+    //report - compression of all connections for server.ServerStats: ratio is compressed to raw bytes of the frames
+    //compressed, the times are per frame deflated (including ones which did not get smaller) and per frame inflated
+    public static String report() {
+        long raw = rawBytes.get();
+        long tried = attempts.get();
+        long in = inflated.get();
+        return "frames=" + frames.get() + " compressed=" + compressed.get() +
+                " ratio=" + (raw == 0 ? "-" : String.format("%.2f", (double) deflatedBytes.get() / raw)) +
+                " savedBytes=" + (raw - deflatedBytes.get()) +
+                " deflateMicros=" + (tried == 0 ? "-" : String.format("%.1f", deflateNanos.get() / 1e3 / tried)) +
+                " inflated=" + in + " inflateMicros=" + (in == 0 ? "-" : String.format("%.1f", inflateNanos.get() / 1e3 / in));
+    }
+}
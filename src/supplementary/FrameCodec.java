@@ -0,0 +1,54 @@
+package supplementary;
+
+import java.io.*;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.FrameCodec turns protocol objects into self-contained frames and back.
+ * Every frame on the wire is a 4 byte length followed by that many bytes of payload, so both the blocking
+ * server threads and the selector based server can cut the stream into objects without knowing their content.
+ * How the payload looks is decided by the codec version agreed in supplementary.Handshake:
+ * supplementary.SerialCodec (Java serialization, used by clients which do not negotiate) or supplementary.BinaryCodec.
+ * <p>
+ * version 18.10.2026
+ */
+public abstract class FrameCodec {
+    //size of the length prefix in front of every frame
+    public static final int HEADER_SIZE = 4;
+    //biggest payload we agree to read, anything bigger is treated as a broken connection
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    //version number of the codec as used in the handshake
+    public abstract int version();
+
+    //format - identifies the payloads encode() produces, payloads of codecs with the same format are interchangeable
+    public int format() {
+        return version();
+    }
+
+    //encoding one object into a payload (without the length prefix)
+    public abstract byte[] encode(Object object) throws IOException;
+
+    //decoding one payload back into an object
+    public abstract Object decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException;
+
+    //codec for a negotiated version
+    public static FrameCodec forVersion(int version) {
+        switch (version) {
+            case SerialCodec.VERSION:
+                return new SerialCodec();
+            case BinaryCodec.VERSION:
+                return new BinaryCodec();
+            default:
+                throw new IllegalArgumentException("Unknown codec version " + version);
+        }
+    }
+
+    //checking the length prefix which came from the other side
+    public static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("Illegal frame length: " + length);
+        return length;
+    }
+}
@@ -0,0 +1,48 @@
+package supplementary;
+
+import java.io.*;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.FrameInputStream reads length-prefixed frames (see supplementary.FrameCodec) and decodes them into objects
+ * with the codec agreed in supplementary.Handshake.
+ * Like ObjectInputStream it throws EOFException when the other side has closed the connection.
+ * <p>
+ * version 18.10.2026
+ */
+public class FrameInputStream implements Closeable {
+    private DataInputStream in;
+    private FrameCodec codec = new SerialCodec();
+
+    public FrameInputStream(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    //reading one frame and decoding it
+    public Object readObject() throws IOException, ClassNotFoundException {
+        byte[] payload = readFrame();
+        return codec.decode(payload, 0, payload.length);
+    }
+
+    //reading the raw payload of one frame
+    public byte[] readFrame() throws IOException {
+        int length = FrameCodec.checkLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    public FrameCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
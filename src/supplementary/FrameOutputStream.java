@@ -0,0 +1,77 @@
+package supplementary;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.FrameOutputStream writes protocol objects as length-prefixed frames (see supplementary.FrameCodec)
+ * encoded with the codec agreed in supplementary.Handshake.
+ * Writing of one frame is atomic, so several threads may share the stream. A lock is used rather than
+ * synchronized methods, so virtual threads blocked in a write do not pin their carrier.
+ * <p>
+ * version 18.10.2026
+ */
+public class FrameOutputStream implements Closeable {
+    private DataOutputStream out;
+    private ReentrantLock lock = new ReentrantLock();
+    private volatile FrameCodec codec = new SerialCodec();
+
+    public FrameOutputStream(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, 32 * 1024));
+    }
+
+    //writing one object as a frame and pushing it to the socket
+    public void writeObject(Object object) throws IOException {
+        writeFrame(codec.encode(object));
+    }
+
+    //writing an already encoded payload as a frame
+    public void writeFrame(byte[] payload) throws IOException {
+        lock.lock();
+        try {
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    //writing several objects as frames which nothing else can come between, e.g. a command and the data following it
+    public void writeObjects(Object... objects) throws IOException {
+        List<byte[]> payloads = new ArrayList<>(objects.length);
+        for (Object object : objects) payloads.add(codec.encode(object));
+        writeFrames(payloads);
+    }
+
+    //writing several encoded payloads as frames with a single flush
+    public void writeFrames(List<byte[]> payloads) throws IOException {
+        lock.lock();
+        try {
+            for (byte[] payload : payloads) {
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            out.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public FrameCodec getCodec() {
+        return codec;
+    }
+
+    public void setCodec(FrameCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,98 @@
+package supplementary;
+
+import java.util.Arrays;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.Handshake negotiates the frame codec right after connecting.
+ * The client's first frame is an offer: "CHAT" magic, number of versions and the codec versions it speaks,
+ * best first. The server answers with the magic and the version it picked. The magic can never start a
+ * Java serialization stream, so a client which does not offer anything simply keeps supplementary.SerialCodec.
+ * Bytes after the known fields are ignored, which leaves room for later extensions. The first of them is a
+ * set of features: the client offers the ones it supports after the versions, the server answers with the ones it
+ * also supports after the picked version, and only those are used. Peers which do not know features send no byte.
+ * <p>
+ * version 18.10.2026
+ */
+public class Handshake {
+    private static final byte[] MAGIC = {'C', 'H', 'A', 'T'};
+
+    //versions this build speaks, best first
+    public static final int[] SUPPORTED = {BinaryCodec.VERSION, SerialCodec.VERSION};
+
+    //large payloads are deflated (supplementary.CompressedCodec)
+    public static final int FEATURE_DEFLATE = 1;
+    //deflating starts from the preset dictionary
+    public static final int FEATURE_DICTIONARY = 2;
+    //features this build uses, -Dchat.compress=false turns compression off on either side
+    public static final int FEATURES = Boolean.parseBoolean(System.getProperty("chat.compress", "true")) ?
+            FEATURE_DEFLATE | FEATURE_DICTIONARY : 0;
+
+    //client's offer frame
+    public static byte[] offer(int[] versions, int features) {
+        byte[] frame = Arrays.copyOf(MAGIC, MAGIC.length + 1 + versions.length + 1);
+        frame[MAGIC.length] = (byte) versions.length;
+        for (int i = 0; i < versions.length; i++) frame[MAGIC.length + 1 + i] = (byte) versions[i];
+        frame[frame.length - 1] = (byte) features;
+        return frame;
+    }
+
+    //versions offered by the client, or null if the frame is not an offer
+    public static int[] parseOffer(byte[] frame) {
+        if (!hasMagic(frame) || frame.length < MAGIC.length + 1) return null;
+        int count = frame[MAGIC.length] & 0xFF;
+        if (frame.length < MAGIC.length + 1 + count) return null;
+        int[] versions = new int[count];
+        for (int i = 0; i < count; i++) versions[i] = frame[MAGIC.length + 1 + i] & 0xFF;
+        return versions;
+    }
+
+    //features offered by the client, none if it sent none
+    public static int parseOfferFeatures(byte[] frame) {
+        int at = MAGIC.length + 1 + (frame[MAGIC.length] & 0xFF);
+        return frame.length > at ? frame[at] & 0xFF : 0;
+    }
+
+    //features both sides use: the offered ones which this build uses as well
+    public static int chooseFeatures(int offered) {
+        return offered & FEATURES;
+    }
+
+    //first version of the client's offer which we speak as well, serialization if there is none
+    public static int choose(int[] offered) {
+        for (int version : offered) {
+            for (int supported : SUPPORTED) {
+                if (version == supported) return version;
+            }
+        }
+        return SerialCodec.VERSION;
+    }
+
+    //server's answer frame
+    public static byte[] accept(int version, int features) {
+        byte[] frame = Arrays.copyOf(MAGIC, MAGIC.length + 2);
+        frame[MAGIC.length] = (byte) version;
+        frame[MAGIC.length + 1] = (byte) features;
+        return frame;
+    }
+
+    //version picked by the server, or -1 if the frame is not an answer
+    public static int parseAccept(byte[] frame) {
+        if (!hasMagic(frame) || frame.length < MAGIC.length + 1) return -1;
+        return frame[MAGIC.length] & 0xFF;
+    }
+
+    //features the server agreed to, none if it sent none
+    public static int parseAcceptFeatures(byte[] frame) {
+        return frame.length > MAGIC.length + 1 ? frame[MAGIC.length + 1] & 0xFF : 0;
+    }
+
+    private static boolean hasMagic(byte[] frame) {
+        if (frame.length < MAGIC.length) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (frame[i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+}
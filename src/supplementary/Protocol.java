@@ -1,6 +1,6 @@
 package supplementary;
 
-import server.NewServerThread;
+import server.ClientSession;
 
 import java.io.IOException;
 
@@ -10,6 +10,8 @@ import java.io.IOException;
  * supplementary.Protocol for communication between server and client
  */
 public class Protocol {
+    //LOGIN {login, password} -> TRUE {overlap} and the conversations, or FALSE. Message ids are ordered across
+    //servers only that far apart, so a client continuing after its newest cached id asks from overlap below it.
     public static final int LOGIN = 0;
     public static final int REGISTER = 1;
     public static final int MESSAGE = 3;
@@ -19,12 +21,61 @@ public class Protocol {
     public static final int CREATE_GROUP = 7;
     public static final int LEAVE_GROUP = 8;
 
+    //Attachment transfer (server.FileTransfers, client.FileTransfers). Every chunk is a message followed by a byte[]
+    //frame of at most CHUNK_SIZE bytes, and the receiver acknowledges the offset it has got up to.
+    //UPLOAD {upload id, size} -> UPLOAD_ACK {upload id, offset to continue from, window}
+    //UPLOAD_CHUNK {upload id, offset} + bytes -> UPLOAD_ACK ..., after the last one UPLOAD_DONE {upload id, reference}
+    //DOWNLOAD {reference, offset} -> DOWNLOAD_CHUNK {reference, offset, size} + bytes, answered with DOWNLOAD_ACK {reference, offset}
+    //TRANSFER_FAILED {upload id or reference, reason}
+    public static final int UPLOAD = 9;
+    public static final int UPLOAD_CHUNK = 10;
+    public static final int UPLOAD_ACK = 11;
+    public static final int UPLOAD_DONE = 12;
+    public static final int DOWNLOAD = 13;
+    public static final int DOWNLOAD_CHUNK = 14;
+    public static final int DOWNLOAD_ACK = 15;
+    public static final int TRANSFER_FAILED = 16;
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    //CONTACTS {after login, page size} -> CONTACTS {"true" if there is more} + the next logins of the user directory
+    public static final int CONTACTS = 17;
+    //OPEN_PRIVATE {other login} -> CREATE_GROUP with the private conversation, created on the first OPEN_PRIVATE.
+    //REGISTER sent by the server {login} only announces a new user for the directory.
+    public static final int OPEN_PRIVATE = 18;
+    //PRESENCE {update, ...} from the server, each update is PRESENCE_ONLINE or PRESENCE_OFFLINE followed by a login.
+    //It replaces ONLINE/OFFLINE: changes of several contacts come in one frame, the first one after login lists
+    //the contacts already online.
+    public static final int PRESENCE = 19;
+    public static final String PRESENCE_ONLINE = "+";
+    public static final String PRESENCE_OFFLINE = "-";
+    //SEARCH {query, cursor id or "" for the newest hits, page size} -> SEARCH {query, "true" if there is more,
+    //cursor for the next page, "false" if some conversations are still being indexed and were left out} + a list
+    //of {group id, message id, snippet} for every hit, newest first.
+    //A hit has all words of the query, searched in all conversations of the user (server.SearchIndex).
+    public static final int SEARCH = 20;
+    //MESSAGE_FAILED {group id, text} from the server: a message of the user could not be stored, so it is missing
+    //from the history (and with durability commit nobody got it).
+    public static final int MESSAGE_FAILED = 21;
+
+    //MESSAGE content: {sender, group id, text, attachment reference, message id}, the reference only if there is an
+    //attachment. The server adds the id of the stored message for the recipients, with "" as reference if there is none.
+    public static final int ATTACHMENT = 3;
+    public static final int MESSAGE_ID = 4;
+
+    //HISTORY request: {group id, page size, direction, cursor id, HISTORY_IDS}, everything after the group id may be
+    //left out for the newest page. The answer is {group id, direction, oldest id, newest id, "true" if there is more}
+    //and the page, followed by a list of the ids of its lines if HISTORY_IDS was given.
+    public static final String HISTORY_NEWEST = "newest";
+    public static final String HISTORY_BEFORE = "before";
+    public static final String HISTORY_AFTER = "after";
+    public static final String HISTORY_IDS = "ids";
+
     public static final int EXIT = 101;
     public static final int TRUE = 1;
     public static final int FALSE = 0;
-    NewServerThread thread;
+    ClientSession thread;
 
-    public Protocol(NewServerThread thread) {
+    public Protocol(ClientSession thread) {
         this.thread = thread;
     }
 
@@ -43,7 +94,7 @@ public class Protocol {
                 thread.sendMessage(message);
                 break;
             case HISTORY:
-                thread.sendHistory(message.getContent()[0]);
+                thread.sendHistory(message.getContent());
                 break;
             case CREATE_GROUP:
                 thread.createGroup();
@@ -51,6 +102,27 @@ public class Protocol {
             case LEAVE_GROUP:
                 thread.leaveGroup(message);
                 break;
+            case UPLOAD:
+                thread.getTransfers().startUpload(message.getContent());
+                break;
+            case UPLOAD_CHUNK:
+                thread.uploadChunk(message);
+                break;
+            case DOWNLOAD:
+                thread.getTransfers().startDownload(message.getContent());
+                break;
+            case DOWNLOAD_ACK:
+                thread.getTransfers().downloadAck(message.getContent());
+                break;
+            case CONTACTS:
+                thread.sendContacts(message.getContent());
+                break;
+            case OPEN_PRIVATE:
+                thread.openPrivate(message.getContent());
+                break;
+            case SEARCH:
+                thread.search(message.getContent());
+                break;
         }
     }
 }
@@ -0,0 +1,40 @@
+package supplementary;
+
+import java.io.*;
+
+/**
+ * @author Roman Gaev
+ * <p>
+ * supplementary.SerialCodec encodes every frame with Java serialization. Each frame is a stream of its own, so
+ * there is no handle table growing for the lifetime of the connection. It is the codec of clients which
+ * do not take part in supplementary.Handshake.
+ * <p>
+ * version 18.10.2026
+ */
+public class SerialCodec extends FrameCodec {
+    public static final int VERSION = 0;
+
+    @Override
+    public int version() {
+        return VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(object);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+}